@@ -13,6 +13,7 @@ import org.dsa.iot.splunk.utils.LinkPair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.security.Security;
 import java.util.Map;
 
@@ -38,6 +39,14 @@ public class Main extends DSLinkHandler {
     public void preInit() {
         // Splunk is insecure and requires use of SSLv3
         Security.setProperty("jdk.tls.disabledAlgorithms", "");
+
+        // Data is kept next to the nodes of the link rather than in
+        // whatever directory the process was started from
+        File nodes = getConfig().getSerializationPath();
+        if (nodes != null) {
+            File dir = nodes.getAbsoluteFile().getParentFile();
+            pair.setDataDir(new File(dir, "data"));
+        }
     }
 
     @Override
@@ -9,10 +9,15 @@ import org.dsa.iot.dslink.node.actions.EditorType;
 import org.dsa.iot.dslink.node.actions.Parameter;
 import org.dsa.iot.dslink.node.value.Value;
 import org.dsa.iot.dslink.node.value.ValueType;
+import org.dsa.iot.splunk.output.Balancing;
+import org.dsa.iot.splunk.output.OutputType;
 import org.dsa.iot.splunk.splunk.Splunk;
 import org.dsa.iot.splunk.utils.LinkPair;
 import org.dsa.iot.dslink.util.handler.Handler;
 
+import java.util.LinkedHashSet;
+import java.util.Set;
+
 /**
  * @author Samuel Grenier
  */
@@ -57,6 +62,89 @@ public class CreateSplunkDbAction implements Handler<ActionResult> {
         if (vIn != null) {
             child.setConfig("input", new Value(vIn.getString()));
         }
+
+        {
+            String output = event.getParameter("output").getString();
+            child.setConfig("output", new Value(OutputType.toEnum(output).getName()));
+
+            Value v = event.getParameter("hecPort", ValueType.NUMBER);
+            child.setConfig("hecPort", new Value(v.getNumber().intValue()));
+
+            v = event.getParameter("hecToken");
+            if (v != null) {
+                child.setConfig("hecToken", new Value(v.getString()));
+            }
+
+            v = event.getParameter("maxInFlight", ValueType.NUMBER);
+            int inFlight = Math.max(1, v.getNumber().intValue());
+            child.setConfig("maxInFlight", new Value(inFlight));
+
+            v = event.getParameter("hecAck", ValueType.BOOL);
+            child.setConfig("hecAck", new Value(v.getBool()));
+
+            v = event.getParameter("metricsIndex");
+            if (v != null) {
+                child.setConfig("metricsIndex", new Value(v.getString()));
+            }
+        }
+
+        {
+            Value v = event.getParameter("maxSearches", ValueType.NUMBER);
+            int max = Math.max(1, v.getNumber().intValue());
+            child.setConfig("maxSearches", new Value(max));
+
+            v = event.getParameter("timeSkew", ValueType.NUMBER);
+            long skew = Math.max(0, v.getNumber().longValue());
+            child.setConfig("timeSkew", new Value(skew));
+
+            v = event.getParameter("historyBatchSize", ValueType.NUMBER);
+            int batch = Math.max(1, v.getNumber().intValue());
+            child.setConfig("historyBatchSize", new Value(batch));
+        }
+
+        {
+            Value v = event.getParameter("endpoints");
+            if (v != null) {
+                child.setConfig("endpoints", new Value(v.getString()));
+            }
+
+            v = event.getParameter("connections", ValueType.NUMBER);
+            int conns = Math.max(1, v.getNumber().intValue());
+            child.setConfig("connections", new Value(conns));
+
+            String balancing = event.getParameter("balancing").getString();
+            balancing = Balancing.toEnum(balancing).getName();
+            child.setConfig("balancing", new Value(balancing));
+        }
+
+        {
+            Value v = event.getParameter("spool", ValueType.BOOL);
+            child.setConfig("spool", new Value(v.getBool()));
+
+            v = event.getParameter("spoolMaxSize", ValueType.NUMBER);
+            long size = Math.max(1, v.getNumber().longValue());
+            child.setConfig("spoolMaxSize", new Value(size));
+        }
+
+        {
+            Value v = event.getParameter("historyCache", ValueType.BOOL);
+            child.setConfig("historyCache", new Value(v.getBool()));
+
+            v = event.getParameter("historyCacheRetention", ValueType.NUMBER);
+            long hours = Math.max(1, v.getNumber().longValue());
+            child.setConfig("historyCacheRetention", new Value(hours));
+
+            v = event.getParameter("historyCacheSize", ValueType.NUMBER);
+            long size = Math.max(1, v.getNumber().longValue());
+            child.setConfig("historyCacheSize", new Value(size));
+        }
+
+        {
+            Value v = event.getParameter("queryCacheSize", ValueType.NUMBER);
+            long size = Math.max(0, v.getNumber().longValue());
+            child.setConfig("queryCacheSize", new Value(size));
+        }
+
         Splunk splunk = new Splunk(pair, child);
         splunk.init();
     }
@@ -76,6 +164,49 @@ public class CreateSplunkDbAction implements Handler<ActionResult> {
         Parameter p = new Parameter("password", ValueType.STRING);
         p.setEditorType(EditorType.PASSWORD);
         a.addParameter(p);
+
+        {
+            Set<String> enums = new LinkedHashSet<>();
+            for (OutputType t : OutputType.values()) {
+                enums.add(t.getName());
+            }
+            ValueType e = ValueType.makeEnum(enums);
+            Value def = new Value(OutputType.TCP.getName());
+            a.addParameter(new Parameter("output", e, def));
+        }
+        a.addParameter(new Parameter("hecPort", ValueType.NUMBER, new Value(8088)));
+
+        p = new Parameter("hecToken", ValueType.STRING);
+        p.setEditorType(EditorType.PASSWORD);
+        a.addParameter(p);
+
+        a.addParameter(new Parameter("maxInFlight", ValueType.NUMBER, new Value(4)));
+        a.addParameter(new Parameter("hecAck", ValueType.BOOL, new Value(false)));
+        a.addParameter(new Parameter("metricsIndex", ValueType.STRING));
+
+        a.addParameter(new Parameter("endpoints", ValueType.STRING));
+        a.addParameter(new Parameter("connections", ValueType.NUMBER, new Value(1)));
+        {
+            Set<String> enums = new LinkedHashSet<>();
+            for (Balancing b : Balancing.values()) {
+                enums.add(b.getName());
+            }
+            ValueType e = ValueType.makeEnum(enums);
+            Value def = new Value(Balancing.PATH_HASH.getName());
+            a.addParameter(new Parameter("balancing", e, def));
+        }
+
+        a.addParameter(new Parameter("maxSearches", ValueType.NUMBER, new Value(8)));
+        a.addParameter(new Parameter("timeSkew", ValueType.NUMBER, new Value(60)));
+        a.addParameter(new Parameter("historyBatchSize", ValueType.NUMBER, new Value(500)));
+
+        a.addParameter(new Parameter("spool", ValueType.BOOL, new Value(false)));
+        a.addParameter(new Parameter("spoolMaxSize", ValueType.NUMBER, new Value(1024)));
+
+        a.addParameter(new Parameter("historyCache", ValueType.BOOL, new Value(false)));
+        a.addParameter(new Parameter("historyCacheRetention", ValueType.NUMBER, new Value(24)));
+        a.addParameter(new Parameter("historyCacheSize", ValueType.NUMBER, new Value(256)));
+        a.addParameter(new Parameter("queryCacheSize", ValueType.NUMBER, new Value(32)));
         return a;
     }
 }
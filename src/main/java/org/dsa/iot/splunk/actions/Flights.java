@@ -0,0 +1,73 @@
+package org.dsa.iot.splunk.actions;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The searches in flight, keyed by the identical requests that share
+ * them. Looking up a flight, joining it and creating a new one happen
+ * under a single lock, so identical requests that arrive together start
+ * only one search.
+ *
+ * @author Samuel Grenier
+ */
+class Flights<F> {
+
+    private final Map<String, F> flights = new HashMap<>();
+
+    /**
+     * Joins the flight of the key, or creates and joins a new flight if
+     * there is none or it no longer accepts requests.
+     *
+     * @param key Key of the identical requests.
+     * @param joiner Creates and joins flights for the request.
+     * @return The created flight whose search the caller must start, or
+     *         {@code null} if the request joined a flight in progress.
+     */
+    synchronized F join(String key, Joiner<F> joiner) {
+        F flight = flights.get(key);
+        if (flight != null && joiner.join(flight)) {
+            return null;
+        }
+        flight = joiner.create(key);
+        joiner.join(flight);
+        flights.put(key, flight);
+        return flight;
+    }
+
+    /**
+     * Removes a flight so that later requests start a new search. A newer
+     * flight of the same key is kept.
+     *
+     * @param key Key of the flight.
+     * @param flight Flight that finished.
+     */
+    synchronized void remove(String key, F flight) {
+        if (flights.get(key) == flight) {
+            flights.remove(key);
+        }
+    }
+
+    /**
+     * @return Amount of flights in progress.
+     */
+    synchronized int size() {
+        return flights.size();
+    }
+
+    interface Joiner<F> {
+
+        /**
+         * @param key Key of the identical requests.
+         * @return A new flight.
+         */
+        F create(String key);
+
+        /**
+         * @param flight Flight to join.
+         * @return Whether the request joined, {@code false} if the flight
+         *         no longer accepts requests.
+         */
+        boolean join(F flight);
+    }
+}
@@ -1,30 +1,62 @@
 package org.dsa.iot.splunk.actions;
 
 import com.splunk.*;
+import org.dsa.iot.dslink.methods.StreamState;
 import org.dsa.iot.dslink.node.Node;
 import org.dsa.iot.dslink.node.Permission;
 import org.dsa.iot.dslink.node.actions.*;
-import org.dsa.iot.dslink.node.actions.table.Row;
 import org.dsa.iot.dslink.node.actions.table.Table;
 import org.dsa.iot.dslink.node.value.Value;
 import org.dsa.iot.dslink.node.value.ValueType;
 import org.dsa.iot.dslink.node.value.ValueUtils;
+import org.dsa.iot.dslink.util.Objects;
 import org.dsa.iot.dslink.util.json.JsonObject;
+import org.dsa.iot.splunk.splunk.HistoryCache;
+import org.dsa.iot.splunk.splunk.HistoryVisitor;
+import org.dsa.iot.splunk.splunk.QueryCache;
 import org.dsa.iot.splunk.splunk.Splunk;
+import org.dsa.iot.splunk.splunk.Watch;
 import org.dsa.iot.splunk.stats.Interval;
+import org.dsa.iot.splunk.utils.CsvReader;
+import org.dsa.iot.splunk.utils.SearchUtils;
 import org.dsa.iot.splunk.utils.TimeParser;
 import org.dsa.iot.dslink.util.handler.Handler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.math.BigDecimal;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Samuel Grenier
  */
 public class GetHistory implements Handler<ActionResult> {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(GetHistory.class);
+    private static final int MAX_SLICES = 4;
+    private static final long MIN_SLICE = TimeUnit.DAYS.toMillis(1);
+    private static final int MAX_EVENT_PATHS = 10000;
+    private static final long EVENT_PATH_TTL = TimeUnit.MINUTES.toMillis(10);
+
+    private final Flights<HistoryFlight> flights = new Flights<>();
+
+    /**
+     * Paths of a metrics index setup that only have events, by the time
+     * they were found to have no measurements. They are read from events
+     * directly until the entry expires.
+     */
+    private final Map<String, Long> eventPaths = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_EVENT_PATHS;
+        }
+    };
     private final Splunk splunk;
     private final int subStringPos;
 
@@ -55,54 +87,566 @@ public class GetHistory implements Handler<ActionResult> {
         final String sRollup = event.getParameter("Rollup").getString();
         final Interval interval = Interval.parse(sInterval, sRollup);
 
-        String q = "search path=\"%s\"";
-        q += "| spath time | spath value";
-        q += "| where time >= %d and time <= %d";
-        q += "| sort time";
-        q += "| table _raw";
-        final String query = String.format(q, path, from, to);
+        long maxRows = 0;
+        {
+            Value v = event.getParameter("Max Rows");
+            if (v != null && v.getNumber() != null) {
+                maxRows = Math.max(0, v.getNumber().longValue());
+            }
+        }
+
+        Table table = event.getTable();
+        table.setMode(Table.Mode.APPEND);
+        final HistoryStream stream = new HistoryStream(table,
+                                                       splunk.getResponder(),
+                                                       splunk.getHistoryBatchSize(),
+                                                       maxRows);
+        event.setStreamState(StreamState.OPEN);
+        event.setCloseHandler(new Handler<Void>() {
+            @Override
+            public void handle(Void event) {
+                stream.cancel();
+            }
+        });
+
+        if (readCache(stream, path, from, to, interval)) {
+            stream.close();
+            return;
+        }
+
+        // Searches cover the range aligned to the buckets of the interval,
+        // or to buckets scaled to the range, so that they can be cached and
+        // shared while a moving range stays within the same buckets.
+        long bucket;
+        if (interval != null && interval.getLength() > 0) {
+            bucket = interval.getLength();
+        } else {
+            bucket = QueryCache.bucketOf(to - from);
+        }
+        long qFrom = QueryCache.alignFrom(from, bucket);
+        long qTo = QueryCache.alignTo(to, bucket);
+        stream.setRange(from, to, qFrom);
+
+        QueryCache cache = splunk.getQueryCache();
+        QueryCache.Entry entry = null;
+        if (cache != null) {
+            entry = cache.get(path, sInterval, sRollup, qFrom, qTo);
+            if (entry != null) {
+                if (entry.isRolled()) {
+                    stream.setRolled();
+                }
+                entry.read(toVisitor(stream, entry.isRolled() ? null : interval));
+                stream.close();
+                return;
+            }
+            entry = cache.create(path, sInterval, sRollup, qFrom, qTo);
+        }
+
+        // Identical requests join the search that is already in flight
+        String key = path + '\n' + sInterval + '\n' + sRollup + '\n' + qFrom + '\n' + qTo;
+        final QueryCache.Entry e = entry;
+        HistoryFlight flight = flights.join(key, new Flights.Joiner<HistoryFlight>() {
+            @Override
+            public HistoryFlight create(String key) {
+                return new HistoryFlight(key, e);
+            }
+
+            @Override
+            public boolean join(HistoryFlight flight) {
+                return flight.join(stream, interval);
+            }
+        });
+        if (flight == null) {
+            return;
+        }
+
+        String index = splunk.getMetricsIndex();
+        if (index != null && !isEventPath(path)) {
+            queryMetrics(flight, index, path, qFrom, qTo, sRollup, interval);
+        } else {
+            queryEvents(flight, path, qFrom, qTo, sRollup, interval);
+        }
+    }
+
+    /**
+     * Reads the history of a path from the recent samples of its watch or
+     * the local cache of written values, whichever covers the range.
+     *
+     * @return Whether the range was completely cached.
+     */
+    private boolean readCache(HistoryStream stream,
+                              String path,
+                              long from,
+                              long to,
+                              Interval interval) {
+        HistoryVisitor visitor = toVisitor(stream, interval);
+
+        Watch watch = splunk.getWatch(path);
+        if (watch != null && watch.readRecent(from, to, visitor)) {
+            return true;
+        }
+        HistoryCache cache = splunk.getHistoryCache();
+        return cache != null && cache.read(path, from, to, visitor);
+    }
+
+    /**
+     * Reads the history of a path from events. When the interval can be
+     * converted to a span and the rollup has a stats equivalent then the events
+     * are bucketed and rolled up by Splunk so that only one row per
+     * interval is returned. Otherwise every event is read and rolled up
+     * locally.
+     */
+    private void queryEvents(HistoryFlight flight,
+                             String path,
+                             long from,
+                             long to,
+                             String rollup,
+                             Interval interval) {
+        if (interval != null) {
+            String span = interval.toSpan();
+            String func = toStatsFunction(rollup);
+            if (span != null && func != null) {
+                flight.setRolled();
+                queryEventRollup(flight, path, from, to, rollup, span, func);
+                return;
+            }
+        }
+        queryRawEvents(flight, path, from, to, rollup);
+    }
+
+    /**
+     * Reads every event of a path. Long ranges are split into slices that
+     * are exported concurrently and merged back into time order, so the
+     * first rows arrive as soon as the first slice is read. The flight
+     * is finished once the last slice is read.
+     */
+    private void queryRawEvents(final HistoryFlight flight,
+                                final String path,
+                                final long from,
+                                final long to,
+                                final String rollup) {
+        SliceMerger.Listener listener = new SliceMerger.Listener() {
+            @Override
+            public void handle(long time, Value value) {
+                flight.handle(time, value);
+            }
+
+            @Override
+            public void done() {
+                finish(flight, path);
+            }
+
+            @Override
+            public boolean isDone() {
+                return flight.isDone();
+            }
+        };
+
+        long range = to - from + 1;
+        final int count = (int) Math.max(1, Math.min(MAX_SLICES, range / MIN_SLICE));
+        final long length = range / count;
+        final SliceMerger merger = new SliceMerger(count, listener);
+
+        splunk.getService(new Handler<Service>() {
+            @Override
+            public void handle(final Service service) {
+                for (int i = 0; i < count; ++i) {
+                    final long sFrom = from + i * length;
+                    final long sTo = (i == count - 1) ? to : sFrom + length - 1;
+                    final SliceMerger.Slice slice = merger.getSlice(i);
+                    Objects.getDaemonThreadPool().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            exportSlice(service, flight, path, rollup,
+                                        sFrom, sTo, slice);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    private void exportSlice(Service service,
+                             HistoryFlight flight,
+                             String path,
+                             String rollup,
+                             long from,
+                             long to,
+                             final SliceMerger.Slice slice) {
+        String q = "search path=%s";
+        q += "| spath timestamp";
+        q += "| where timestamp >= %d and timestamp <= %d";
+        q += "| sort 0 timestamp";
+        q += "| eval time=timestamp";
+        q += "| spath value";
+        // Tags the JSON type of the value by its first character, spath
+        // extracts every scalar as text and maps and arrays not at all
+        q += "| rex field=_raw \",\\\"value\\\":(?<vt>[\\\"{[tfn])\"";
+        if (hasRollupField(rollup)) {
+            String f = "value_" + rollup;
+            q += readRollupField(rollup);
+            q += "| eval vt=if(isnull('" + f + "'), vt, null())";
+        }
+        q += "| eval raw=if(vt==\"{\" OR vt==\"[\", _raw, null())";
+        q += "| table time value vt raw";
+        String query = String.format(q, SearchUtils.quote(path), from, to);
+
+        try {
+            if (flight.isDone()) {
+                return;
+            }
+            InputStream in = service.export(query, exportArgs(from, to));
+            readValues(in, flight, new HistoryVisitor() {
+                @Override
+                public void handle(long time, Value value) {
+                    slice.add(time, value);
+                }
+            });
+        } catch (RuntimeException e) {
+            LOGGER.warn("Failed to export history of {}", path, e);
+            flight.fail();
+        } finally {
+            slice.finish();
+        }
+    }
+
+    /**
+     * Reads the history of a path from a metrics index with mstats. When
+     * the interval can be converted to a span and the rollup has an mstats
+     * equivalent then the rollup is performed by Splunk. Otherwise the
+     * latest value of each second is read and rolled up locally, which
+     * drops every other measurement within the same second. Paths
+     * without any measurements are read from events, since non-numeric
+     * values are written as events, and are remembered for a while so
+     * that later requests read events directly.
+     */
+    private void queryMetrics(final HistoryFlight flight,
+                              String index,
+                              final String path,
+                              final long from,
+                              final long to,
+                              final String rollup,
+                              final Interval interval) {
+        String span = null;
+        String func = null;
+        if (interval != null) {
+            span = interval.toSpan();
+            func = toStatsFunction(rollup);
+        }
+        final boolean pushDown = span != null && func != null;
+        if (pushDown) {
+            flight.setRolled();
+        } else {
+            func = "latest";
+            span = "1s";
+        }
+
+        String q = "| mstats %s(_value) as value";
+        q += " WHERE index=%s AND metric_name=%s";
+        q += " earliest=%s latest=%s span=%s";
+        q += "| eval time=round(_time*1000)";
+        q += "| table time value";
+        String earliest = BigDecimal.valueOf(from, 3).toPlainString();
+        // Latest is exclusive
+        String latest = BigDecimal.valueOf(to + 1, 3).toPlainString();
+        final String query = String.format(q, func,
+                                           SearchUtils.quote(index),
+                                           SearchUtils.quote(path),
+                                           earliest, latest, span);
 
         splunk.getService(new Handler<Service>() {
             @Override
             public void handle(Service service) {
-                InputStream stream = service.export(query);
-                MultiResultsReaderXml reader = null;
+                boolean fallback = false;
                 try {
-                    Table t = event.getTable();
-                    reader = new MultiResultsReaderXml(stream);
-                    for (SearchResults res : reader) {
-                        for (Event e : res) {
-                            JsonObject obj = new JsonObject(e.get("_raw"));
-
-                            long ms = obj.get("time");
-                            Object v = obj.get("value");
-                            Value val = ValueUtils.toValue(v);
-
-                            if (interval == null) {
-                                String time = TimeParser.parse(ms);
-                                Value tVal = new Value(time);
-                                t.addRow(Row.make(tVal, val));
-                            } else {
-                                Row r = interval.getRowUpdate(val, ms);
-                                if (r != null) {
-                                    t.addRow(r);
-                                }
-                            }
-                        }
-                    }
-                } catch (IOException ignored) {
+                    InputStream in = service.export(query, csvArgs());
+                    fallback = readValues(in, flight, flight) == 0;
+                } catch (RuntimeException e) {
+                    flight.fail();
+                    throw e;
                 } finally {
-                    if (reader != null) {
-                        try {
-                            reader.close();
-                        } catch (IOException ignored) {
-                        }
+                    if (!fallback) {
+                        finish(flight, path);
                     }
                 }
+                if (fallback) {
+                    flight.setFallback();
+                    queryEvents(flight, path, from, to, rollup, interval);
+                }
             }
         });
     }
 
+    /**
+     * Reads the events of a path bucketed by the span and rolled up with
+     * the stats function.
+     */
+    private void queryEventRollup(final HistoryFlight flight,
+                                  final String path,
+                                  long from,
+                                  long to,
+                                  String rollup,
+                                  String span,
+                                  String func) {
+        String q = "search path=%s";
+        q += "| spath timestamp | spath value%s";
+        q += "| where timestamp >= %d and timestamp <= %d";
+        q += "| eval _time=timestamp/1000";
+        q += "| bin _time span=%s";
+        q += "| stats %s(value) as value by _time";
+        q += "| eval time=round(_time*1000)";
+        q += "| table time value";
+        final String query = String.format(q, SearchUtils.quote(path),
+                                           readRollupField(rollup),
+                                           from, to, span, func);
+        final JobExportArgs args = exportArgs(from, to);
+
+        splunk.getService(new Handler<Service>() {
+            @Override
+            public void handle(Service service) {
+                try {
+                    readValues(service.export(query, args), flight, flight);
+                } catch (RuntimeException e) {
+                    flight.fail();
+                    throw e;
+                } finally {
+                    finish(flight, path);
+                }
+            }
+        });
+    }
+
+    /**
+     * Finishes a flight so that later requests start a new search, and
+     * caches the values it recorded if every value of the search was
+     * read.
+     */
+    private void finish(HistoryFlight flight, String path) {
+        flights.remove(flight.getKey(), flight);
+        if (flight.isFallback() && flight.getCount() > 0) {
+            synchronized (eventPaths) {
+                eventPaths.put(path, System.currentTimeMillis());
+            }
+        }
+        QueryCache.Entry entry = flight.finish();
+        QueryCache cache = splunk.getQueryCache();
+        if (entry != null && cache != null) {
+            cache.put(entry, splunk.getWatch(path));
+        }
+    }
+
+    /**
+     * @return Whether the path was recently found to only have events.
+     */
+    private boolean isEventPath(String path) {
+        synchronized (eventPaths) {
+            Long time = eventPaths.get(path);
+            if (time == null) {
+                return false;
+            } else if (System.currentTimeMillis() - time > EVENT_PATH_TTL) {
+                eventPaths.remove(path);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Bounds the search to the time range so that Splunk only scans the
+     * buckets that can contain it. The bounds are widened by the time
+     * skew of the server since the indexed time of an event may differ
+     * from its timestamp, the exact range is filtered by the search.
+     *
+     * @param from Start of the range in milliseconds.
+     * @param to End of the range in milliseconds, inclusive.
+     * @return Arguments of the export.
+     */
+    private JobExportArgs exportArgs(long from, long to) {
+        long skew = splunk.getTimeSkew();
+        JobExportArgs args = csvArgs();
+        args.setEarliestTime(BigDecimal.valueOf(from - skew, 3).toPlainString());
+        // Latest is exclusive
+        args.setLatestTime(BigDecimal.valueOf(to + 1 + skew, 3).toPlainString());
+        return args;
+    }
+
+    /**
+     * Results are exported as CSV, which is parsed without building a
+     * map for each result.
+     *
+     * @return Arguments of an export.
+     */
+    private static JobExportArgs csvArgs() {
+        JobExportArgs args = new JobExportArgs();
+        args.setOutputMode(JobExportArgs.OutputMode.CSV);
+        return args;
+    }
+
+    /**
+     * Reads the time and value of CSV results. Events are exported with
+     * the JSON type of their value, so that values are restored as they
+     * were written. Only events whose value is a map or an array carry
+     * their raw JSON, which is decoded for the value. Results of stats
+     * and mstats hold the value as a number. The results are closed once
+     * they are read or every request of the flight is done, whichever
+     * comes first.
+     *
+     * @param in Results of the search.
+     * @param flight Flight the values are read for.
+     * @param visitor Visitor that receives the values.
+     * @return Amount of results that were read.
+     */
+    private static int readValues(InputStream in,
+                                  HistoryFlight flight,
+                                  HistoryVisitor visitor) {
+        CsvReader reader = null;
+        int rows = 0;
+        try {
+            reader = new CsvReader(in);
+            int time = reader.indexOf("time");
+            int value = reader.indexOf("value");
+            int type = reader.indexOf("vt");
+            int raw = reader.indexOf("raw");
+            while (!flight.isDone() && reader.next()) {
+                String sTime = reader.get(time);
+                if (sTime == null) {
+                    continue;
+                }
+                long ms = (long) Double.parseDouble(sTime);
+                String s = reader.get(value);
+                Value v;
+                if (type >= 0) {
+                    try {
+                        v = toValue(s, reader.get(type), reader.get(raw));
+                    } catch (RuntimeException e) {
+                        LOGGER.debug("Skipping event with an unreadable value", e);
+                        continue;
+                    }
+                } else if (s == null) {
+                    // Buckets without any numeric value
+                    continue;
+                } else {
+                    v = parseNumber(s);
+                }
+                rows++;
+                visitor.handle(ms, v);
+            }
+        } catch (IOException | NumberFormatException e) {
+            flight.fail();
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return rows;
+    }
+
+    private static Value parseNumber(String s) {
+        if (s.indexOf('.') < 0 && s.indexOf('e') < 0 && s.indexOf('E') < 0) {
+            try {
+                return new Value(Long.parseLong(s));
+            } catch (NumberFormatException ignored) {
+                // Too large for a long
+            }
+        }
+        return new Value(Double.parseDouble(s));
+    }
+
+    /**
+     * Restores the value of an event from its text and JSON type.
+     *
+     * @param s Value as extracted by spath.
+     * @param type First character of the value in the raw event, or
+     *             {@code null} if the value is a number.
+     * @param raw Raw event, only exported for maps and arrays.
+     * @return The value or {@code null} if the event has none.
+     */
+    private static Value toValue(String s, String type, String raw) {
+        char c = (type == null || type.isEmpty()) ? '0' : type.charAt(0);
+        switch (c) {
+            case '"':
+                return new Value(s == null ? "" : s);
+            case 't':
+            case 'f':
+                return new Value(Boolean.valueOf(s));
+            case 'n':
+                return null;
+            case '{':
+            case '[':
+                Object v = new JsonObject(raw).get("value");
+                return (v == null) ? null : ValueUtils.toValue(v);
+            default:
+                return (s == null) ? null : parseNumber(s);
+        }
+    }
+
+    /**
+     * @return A visitor that adds the values to the stream, rolled up by
+     *         the interval if there is one.
+     */
+    private static HistoryVisitor toVisitor(final HistoryStream stream,
+                                            final Interval interval) {
+        return new HistoryVisitor() {
+            @Override
+            public void handle(long time, Value value) {
+                stream.add(interval, time, value);
+            }
+        };
+    }
+
+    /**
+     * Aggregates written with several rollups carry each rollup in a
+     * field of its own next to the value. Rolling up the field of the
+     * requested rollup again is exact for min, max, sum, first and last
+     * and closer than the value for avg.
+     *
+     * @return Search commands that replace the value with the field of
+     *         the rollup where it exists.
+     */
+    private static String readRollupField(String rollup) {
+        if (hasRollupField(rollup)) {
+            String f = "value_" + rollup;
+            return " | spath " + f + " | eval value=coalesce('" + f + "', value)";
+        }
+        return "";
+    }
+
+    /**
+     * @return Whether aggregates carry a field of the rollup that is read
+     *         in place of the value.
+     */
+    private static boolean hasRollupField(String rollup) {
+        return "avg".equals(rollup)
+                || "min".equals(rollup)
+                || "max".equals(rollup)
+                || "sum".equals(rollup)
+                || "first".equals(rollup)
+                || "last".equals(rollup);
+    }
+
+    /**
+     * @return The stats function equivalent to the rollup or {@code null}
+     *         if there is none. The functions are shared by stats and
+     *         mstats.
+     */
+    private static String toStatsFunction(String rollup) {
+        if ("avg".equals(rollup)
+                || "min".equals(rollup)
+                || "max".equals(rollup)
+                || "sum".equals(rollup)
+                || "count".equals(rollup)) {
+            return rollup;
+        } else if ("first".equals(rollup)) {
+            return "earliest";
+        } else if ("last".equals(rollup)) {
+            return "latest";
+        }
+        return null;
+    }
+
     public static Action make(Node data, Node parent, Splunk splunk) {
         Action a =  new Action(Permission.READ, new GetHistory(data, splunk));
         initProfile(parent, a);
@@ -119,6 +663,9 @@ public class GetHistory implements Handler<ActionResult> {
         {
             Value def = new Value("none");
             Parameter param = new Parameter("Interval", ValueType.STRING, def);
+            param.setDescription("Values of a metrics index are read as the "
+                    + "latest value of each second unless the interval is 1S, "
+                    + "1M or 1H and the rollup is neither none nor delta");
             act.addParameter(param);
         }
 
@@ -138,6 +685,14 @@ public class GetHistory implements Handler<ActionResult> {
             act.addParameter(param);
         }
 
+        {
+            Value def = new Value(0);
+            Parameter param = new Parameter("Max Rows", ValueType.NUMBER, def);
+            param.setDescription("Amount of rows after which the history is "
+                    + "cut short with a status row, 0 for no limit");
+            act.addParameter(param);
+        }
+
         {
             Parameter param = new Parameter("timestamp", ValueType.TIME);
             act.addResult(param);
@@ -148,7 +703,12 @@ public class GetHistory implements Handler<ActionResult> {
             act.addResult(param);
         }
 
-        act.setResultType(ResultType.TABLE);
+        {
+            Parameter param = new Parameter("status", ValueType.STRING);
+            act.addResult(param);
+        }
+
+        act.setResultType(ResultType.STREAM);
         node.setAction(act);
     }
 }
@@ -0,0 +1,218 @@
+package org.dsa.iot.splunk.actions;
+
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.splunk.splunk.HistoryVisitor;
+import org.dsa.iot.splunk.splunk.QueryCache;
+import org.dsa.iot.splunk.stats.Interval;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A history search that is in flight. Identical requests that arrive
+ * while the search runs join it instead of starting their own search.
+ * Every value that is read is passed on to the stream of each request,
+ * which rolls it up with its own interval. Values are passed on outside
+ * of the lock of the flight, since a stream waits while its queue is
+ * full, and by one search thread at a time.
+ *
+ * The values read so far are kept so that they can be replayed to
+ * requests that join late. Once too many values were read the flight
+ * stops accepting requests, later requests start a search of their own.
+ *
+ * @author Samuel Grenier
+ */
+class HistoryFlight implements HistoryVisitor {
+
+    /**
+     * Amount of values kept for requests that join late.
+     */
+    private static final int MAX_REPLAY = 65536;
+
+    private final List<Member> members = new ArrayList<>();
+
+    /**
+     * Members the values are passed on to, replaced whenever a request
+     * joins.
+     */
+    private Member[] targets = new Member[0];
+
+    private final String key;
+    private final QueryCache.Entry entry;
+
+    private long[] times = new long[64];
+    private Value[] values = new Value[64];
+    private int size;
+
+    private boolean joinable = true;
+    private boolean rolled;
+    private boolean fallback;
+    private long count;
+    private volatile boolean failed;
+
+    /**
+     * @param key Key of the identical requests.
+     * @param entry Entry to record the values into or {@code null} if
+     *              they are not cached.
+     */
+    HistoryFlight(String key, QueryCache.Entry entry) {
+        this.key = key;
+        this.entry = entry;
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    /**
+     * Adds a request to the flight and replays the values that were
+     * read so far.
+     *
+     * @param stream Stream of the request.
+     * @param interval Interval of the request.
+     * @return Whether the request joined, {@code false} if the flight
+     *         finished or no longer accepts requests.
+     */
+    synchronized boolean join(HistoryStream stream, Interval interval) {
+        if (!joinable) {
+            return false;
+        }
+        Member m = new Member(stream, interval);
+        if (rolled) {
+            stream.setRolled();
+        }
+        for (int i = 0; i < size; ++i) {
+            m.stream.replay(m.getInterval(rolled), times[i], values[i]);
+        }
+        members.add(m);
+        targets = members.toArray(new Member[members.size()]);
+        return true;
+    }
+
+    @Override
+    public void handle(long time, Value value) {
+        Member[] targets;
+        boolean rolled;
+        synchronized (this) {
+            count++;
+            if (entry != null) {
+                entry.add(time, value);
+            }
+            if (joinable) {
+                if (size == MAX_REPLAY) {
+                    joinable = false;
+                    times = null;
+                    values = null;
+                    size = 0;
+                } else {
+                    if (size == times.length) {
+                        times = Arrays.copyOf(times, size * 2);
+                        values = Arrays.copyOf(values, size * 2);
+                    }
+                    times[size] = time;
+                    values[size] = value;
+                    size++;
+                }
+            }
+            // Requests that join later have the value replayed
+            targets = this.targets;
+            rolled = this.rolled;
+        }
+        for (Member m : targets) {
+            m.stream.add(m.getInterval(rolled), time, value);
+        }
+    }
+
+    /**
+     * Marks the values as rolled up by Splunk.
+     */
+    synchronized void setRolled() {
+        rolled = true;
+        if (entry != null) {
+            entry.setRolled();
+        }
+        for (Member m : members) {
+            m.stream.setRolled();
+        }
+    }
+
+    /**
+     * Marks the values as read from events since the path has no
+     * measurements.
+     */
+    synchronized void setFallback() {
+        fallback = true;
+    }
+
+    /**
+     * @return Whether the values were read from events after the path had
+     *         no measurements.
+     */
+    synchronized boolean isFallback() {
+        return fallback;
+    }
+
+    /**
+     * @return Amount of values read.
+     */
+    synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Marks the search as incomplete since reading it failed.
+     */
+    void fail() {
+        failed = true;
+    }
+
+    /**
+     * @return Whether every request is done so that the search can stop.
+     */
+    synchronized boolean isDone() {
+        for (Member m : members) {
+            if (!m.stream.isDone()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Closes the stream of every request.
+     *
+     * @return The entry of the values if every value of the search was
+     *         read, otherwise {@code null}.
+     */
+    synchronized QueryCache.Entry finish() {
+        boolean complete = !failed && !isDone();
+        joinable = false;
+        times = null;
+        values = null;
+        size = 0;
+        for (Member m : members) {
+            m.stream.close();
+        }
+        return complete ? entry : null;
+    }
+
+    private class Member {
+
+        private final HistoryStream stream;
+        private final Interval interval;
+
+        private Member(HistoryStream stream, Interval interval) {
+            this.stream = stream;
+            this.interval = interval;
+        }
+
+        /**
+         * @return Interval the values are rolled up by locally, {@code null}
+         *         if they were rolled up by Splunk.
+         */
+        private Interval getInterval(boolean rolled) {
+            return rolled ? null : interval;
+        }
+    }
+}
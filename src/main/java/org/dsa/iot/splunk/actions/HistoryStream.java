@@ -0,0 +1,313 @@
+package org.dsa.iot.splunk.actions;
+
+import org.dsa.iot.dslink.DSLink;
+import org.dsa.iot.dslink.connection.NetworkClient;
+import org.dsa.iot.dslink.node.actions.table.BatchRow;
+import org.dsa.iot.dslink.node.actions.table.Row;
+import org.dsa.iot.dslink.node.actions.table.Table;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.util.Objects;
+import org.dsa.iot.splunk.stats.Interval;
+import org.dsa.iot.splunk.utils.TimeParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams the rows of a history request to the requester in batches.
+ *
+ * Rows are queued and sent a batch at a time while the connection to the
+ * broker keeps up. Once the connection has a backlog of unsent data the
+ * queue is held back and retried shortly after. The queue is bounded, a
+ * producer that adds to a full queue waits until a batch was sent, which
+ * throttles the export that feeds the stream. A stream whose queue does
+ * not move at all for too long is stopped so that the search it shares
+ * with other requests can carry on.
+ *
+ * The stream is done once a row beyond the maximum amount of rows is
+ * added, the requester closed it or it was stopped, and producers are
+ * expected to stop reading at that point. A stream that reached its
+ * limit ends with a row whose status tells the requester that the
+ * history was cut short.
+ *
+ * The search that feeds a stream may cover a range aligned to buckets so
+ * that it can be cached and shared, only the values of the requested
+ * range are passed on.
+ *
+ * @author Samuel Grenier
+ */
+class HistoryStream {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HistoryStream.class);
+
+    /**
+     * Amount of batches that are queued before producers wait.
+     */
+    private static final int QUEUED_BATCHES = 4;
+
+    /**
+     * Time in milliseconds after which rows held back by a backlog are
+     * retried.
+     */
+    private static final long RETRY_INTERVAL = 50;
+
+    /**
+     * Time in milliseconds a producer waits for a full queue before the
+     * stream is stopped.
+     */
+    private static final long STALL_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+    private final Queue<Row> queue = new ArrayDeque<>();
+    private final Table table;
+    private final DSLink link;
+    private final int batchSize;
+    private final int capacity;
+    private final long maxRows;
+
+    private long from = Long.MIN_VALUE;
+    private long to = Long.MAX_VALUE;
+    private long bucketFrom = Long.MIN_VALUE;
+    private boolean rolled;
+
+    private long rows;
+    private Value lastTime;
+    private boolean sending;
+    private boolean retrying;
+    private boolean closing;
+    private boolean closed;
+    private volatile boolean done;
+
+    /**
+     * @param table Table of the request.
+     * @param link Link whose connection the rows are sent over, its
+     *             backlog holds back the queue.
+     * @param batchSize Amount of rows sent at once.
+     * @param maxRows Amount of rows after which the stream is done, 0 for
+     *                no limit.
+     */
+    HistoryStream(Table table,
+                  DSLink link,
+                  int batchSize,
+                  long maxRows) {
+        this.table = table;
+        this.link = link;
+        this.batchSize = Math.max(1, batchSize);
+        this.capacity = this.batchSize * QUEUED_BATCHES;
+        this.maxRows = maxRows;
+    }
+
+    /**
+     * Adds a value to the stream, rolled up by the interval if there is
+     * one. Waits while the queue is full, so it must not be called while
+     * holding a lock that other streams depend on.
+     */
+    void add(Interval interval, long time, Value value) {
+        Row row = toRow(interval, time, value);
+        if (row != null) {
+            add(row, true);
+        }
+    }
+
+    /**
+     * Adds a value that was read before the request joined a search. The
+     * replayed values are bounded by the search, so they are queued
+     * without waiting.
+     */
+    void replay(Interval interval, long time, Value value) {
+        Row row = toRow(interval, time, value);
+        if (row != null) {
+            add(row, false);
+        }
+    }
+
+    /**
+     * Only passes on the values of a range.
+     *
+     * @param from Start of the range.
+     * @param to End of the range, inclusive.
+     * @param bucketFrom Start of the bucket of the start of the range.
+     *                   Values rolled up by Splunk are timed at the start
+     *                   of their bucket.
+     */
+    void setRange(long from, long to, long bucketFrom) {
+        this.from = from;
+        this.to = to;
+        this.bucketFrom = bucketFrom;
+    }
+
+    /**
+     * Marks the values that are added as rolled up by Splunk.
+     */
+    void setRolled() {
+        rolled = true;
+    }
+
+    /**
+     * @return Whether no more rows are accepted.
+     */
+    boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Sends the remaining rows and closes the table. Never waits, the
+     * rows are sent once the connection keeps up.
+     */
+    void close() {
+        synchronized (this) {
+            if (closing || closed) {
+                return;
+            }
+            closing = true;
+            done = true;
+            notifyAll();
+        }
+        send();
+    }
+
+    /**
+     * Stops the stream without sending anything, called once the
+     * requester closed it.
+     */
+    synchronized void cancel() {
+        done = true;
+        closed = true;
+        queue.clear();
+        notifyAll();
+    }
+
+    private Row toRow(Interval interval, long time, Value value) {
+        if (time > to || time < (rolled ? bucketFrom : from)) {
+            return null;
+        }
+
+        if (interval == null) {
+            Value tVal = new Value(TimeParser.parse(time));
+            return Row.make(tVal, value);
+        }
+        return interval.getRowUpdate(value, time);
+    }
+
+    private void add(Row row, boolean wait) {
+        synchronized (this) {
+            long deadline = 0;
+            while (wait && !done && queue.size() >= capacity) {
+                long now = System.currentTimeMillis();
+                if (deadline == 0) {
+                    deadline = now + STALL_TIMEOUT;
+                } else if (now >= deadline) {
+                    stall();
+                    return;
+                }
+                try {
+                    wait(deadline - now);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    cancel();
+                    return;
+                }
+            }
+            if (done) {
+                return;
+            }
+            if (maxRows > 0 && rows >= maxRows) {
+                LOGGER.info("History request reached the limit of {} rows", maxRows);
+                Value status = new Value("Reached the limit of " + maxRows + " rows");
+                queue.add(Row.make(lastTime, null, status));
+                closing = true;
+                done = true;
+            } else {
+                queue.add(row);
+                rows++;
+                lastTime = row.getValues().get(0);
+                if (queue.size() < batchSize) {
+                    return;
+                }
+            }
+        }
+        send();
+    }
+
+    /**
+     * Stops a stream whose requester does not read its rows, the queued
+     * rows are discarded.
+     */
+    private void stall() {
+        LOGGER.warn("History request stopped, no rows were sent for {} seconds",
+                    TimeUnit.MILLISECONDS.toSeconds(STALL_TIMEOUT));
+        done = true;
+        closed = true;
+        queue.clear();
+        notifyAll();
+        table.close();
+    }
+
+    /**
+     * Sends full batches, or every row once the stream is closing, until
+     * the queue is drained or the connection has a backlog. Only one
+     * thread sends at a time so that batches stay in order.
+     */
+    private void send() {
+        while (true) {
+            BatchRow batch = null;
+            synchronized (this) {
+                if (sending || retrying || closed) {
+                    return;
+                }
+                if (queue.isEmpty() || (!closing && queue.size() < batchSize)) {
+                    if (!closing) {
+                        return;
+                    }
+                    closed = true;
+                } else if (isBacklogged()) {
+                    retrying = true;
+                    scheduleRetry();
+                    return;
+                } else {
+                    batch = new BatchRow();
+                    for (int i = 0; i < batchSize && !queue.isEmpty(); ++i) {
+                        batch.addRow(queue.poll());
+                    }
+                    sending = true;
+                    notifyAll();
+                }
+            }
+
+            if (batch == null) {
+                table.close();
+                return;
+            }
+            try {
+                table.addBatchRows(batch);
+            } finally {
+                synchronized (this) {
+                    sending = false;
+                }
+            }
+        }
+    }
+
+    private void scheduleRetry() {
+        Objects.getDaemonThreadPool().schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (HistoryStream.this) {
+                    retrying = false;
+                }
+                send();
+            }
+        }, RETRY_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return Whether the connection to the broker has more data queued
+     *         than it accepts, in which case rows are held back.
+     */
+    private boolean isBacklogged() {
+        NetworkClient writer = (link == null) ? null : link.getWriter();
+        return writer != null && !writer.writable();
+    }
+}
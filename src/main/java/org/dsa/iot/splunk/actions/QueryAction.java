@@ -26,6 +26,7 @@ import java.util.List;
  */
 public class QueryAction implements Handler<ActionResult> {
 
+    private final Flights<QueryFlight> flights = new Flights<>();
     private final Splunk splunk;
 
     private QueryAction(Splunk splunk) {
@@ -47,16 +48,20 @@ public class QueryAction implements Handler<ActionResult> {
         }
 
         boolean windowSend = false;
+        String earliest = null;
+        String latest = null;
         if (!realTime) {
             table.setMode(Table.Mode.APPEND);
             Value v = event.getParameter("Earliest Time");
             if (v != null) {
-                jea.setEarliestTime(v.getString());
+                earliest = v.getString();
+                jea.setEarliestTime(earliest);
             }
 
             v = event.getParameter("Latest Time");
             if (v != null) {
                 String lt = v.getString();
+                latest = lt;
                 jea.setLatestTime(lt);
                 if ("rt".equals(lt)) {
                     realTime = true;
@@ -80,6 +85,28 @@ public class QueryAction implements Handler<ActionResult> {
         Value v = event.getParameter("Query", ValueType.STRING);
         final String query = v.getString();
 
+        // Identical queries join the export that is already in flight,
+        // real time searches never finish so they are not shared.
+        QueryFlight flight = null;
+        if (!realTime) {
+            String key = query + '\n' + earliest + '\n' + latest;
+            flight = flights.join(key, new Flights.Joiner<QueryFlight>() {
+                @Override
+                public QueryFlight create(String key) {
+                    return new QueryFlight(key);
+                }
+
+                @Override
+                public boolean join(QueryFlight flight) {
+                    return QueryAction.this.join(event, flight);
+                }
+            });
+            if (flight == null) {
+                return;
+            }
+        }
+        final QueryFlight qf = flight;
+
         Objects.getDaemonThreadPool().execute(new Runnable() {
 
             private boolean windowSend;
@@ -96,6 +123,16 @@ public class QueryAction implements Handler<ActionResult> {
                 splunk.getService(new Handler<Service>() {
                     @Override
                     public void handle(Service service) {
+                        try {
+                            export(service);
+                        } finally {
+                            if (qf != null) {
+                                finish(qf);
+                            }
+                        }
+                    }
+
+                    private void export(Service service) {
                         InputStream stream = service.export(query, jea);
                         MultiResultsReaderXml r;
                         try {
@@ -110,6 +147,8 @@ public class QueryAction implements Handler<ActionResult> {
                                 continue;
                             } else if (!splunk.isRunning()) {
                                 break;
+                            } else if (qf != null && qf.isDone()) {
+                                break;
                             }
                             BatchRow row = null;
                             if (windowSend) {
@@ -123,6 +162,8 @@ public class QueryAction implements Handler<ActionResult> {
                                 List<Parameter> added = setColumns(prevCols, cols, e);
                                 if (windowSend && row != null) {
                                     row.addRow(processRow(cols, e));
+                                } else if (qf != null) {
+                                    qf.add(added, processRow(cols, e));
                                 } else {
                                     table.addRow(added, processRow(cols, e));
                                 }
@@ -132,7 +173,9 @@ public class QueryAction implements Handler<ActionResult> {
                             }
                         }
 
-                        table.close();
+                        if (qf == null) {
+                            table.close();
+                        }
                         close(reader);
                     }
                 });
@@ -140,6 +183,33 @@ public class QueryAction implements Handler<ActionResult> {
         }.setWindowSend(windowSend));
     }
 
+    /**
+     * Joins the table of a query to a flight.
+     *
+     * @return Whether the query joined.
+     */
+    private boolean join(ActionResult event, QueryFlight flight) {
+        final QueryFlight.Member member = flight.join(event.getTable());
+        if (member == null) {
+            return false;
+        }
+        event.setCloseHandler(new Handler<Void>() {
+            @Override
+            public void handle(Void event) {
+                member.cancel();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Finishes a flight so that later queries start a new export.
+     */
+    private void finish(QueryFlight flight) {
+        flights.remove(flight.getKey(), flight);
+        flight.finish();
+    }
+
     private List<Parameter> setColumns(List<String> names,
                             List<Parameter> cols,
                             Event event) {
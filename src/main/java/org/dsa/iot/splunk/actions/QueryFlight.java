@@ -0,0 +1,131 @@
+package org.dsa.iot.splunk.actions;
+
+import org.dsa.iot.dslink.node.actions.Parameter;
+import org.dsa.iot.dslink.node.actions.table.Row;
+import org.dsa.iot.dslink.node.actions.table.Table;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A query that is in flight. Identical queries that arrive while the
+ * export runs join it instead of starting their own export, every row
+ * that is read is added to the table of each query.
+ *
+ * The rows read so far are kept so that they can be replayed to queries
+ * that join late. Once too many rows were read the flight stops
+ * accepting queries, later queries start an export of their own.
+ *
+ * @author Samuel Grenier
+ */
+class QueryFlight {
+
+    /**
+     * Amount of rows kept for queries that join late.
+     */
+    private static final int MAX_REPLAY = 16384;
+
+    private final List<Member> members = new ArrayList<>();
+    private final String key;
+
+    private List<List<Parameter>> columns = new ArrayList<>();
+    private List<Row> rows = new ArrayList<>();
+    private boolean joinable = true;
+
+    /**
+     * @param key Key of the identical queries.
+     */
+    QueryFlight(String key) {
+        this.key = key;
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    /**
+     * Adds a query to the flight and replays the rows that were read so
+     * far.
+     *
+     * @param table Table of the query.
+     * @return The member of the query or {@code null} if the flight
+     *         finished or no longer accepts queries.
+     */
+    synchronized Member join(Table table) {
+        if (!joinable) {
+            return null;
+        }
+        for (int i = 0; i < rows.size(); ++i) {
+            table.addRow(columns.get(i), rows.get(i));
+        }
+        Member m = new Member(table);
+        members.add(m);
+        return m;
+    }
+
+    /**
+     * Adds a row to the table of every query.
+     *
+     * @param added Columns that the row adds, if any.
+     * @param row Row that was read.
+     */
+    synchronized void add(List<Parameter> added, Row row) {
+        if (joinable) {
+            if (rows.size() == MAX_REPLAY) {
+                joinable = false;
+                columns = null;
+                rows = null;
+            } else {
+                columns.add(added);
+                rows.add(row);
+            }
+        }
+        for (Member m : members) {
+            if (!m.cancelled) {
+                m.table.addRow(added, row);
+            }
+        }
+    }
+
+    /**
+     * @return Whether every query was closed so that the export can stop.
+     */
+    synchronized boolean isDone() {
+        for (Member m : members) {
+            if (!m.cancelled) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Closes the table of every query.
+     */
+    synchronized void finish() {
+        joinable = false;
+        columns = null;
+        rows = null;
+        for (Member m : members) {
+            m.table.close();
+        }
+    }
+
+    class Member {
+
+        private final Table table;
+        private volatile boolean cancelled;
+
+        private Member(Table table) {
+            this.table = table;
+        }
+
+        /**
+         * Stops adding rows to the table, called once the query was
+         * closed.
+         */
+        void cancel() {
+            cancelled = true;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package org.dsa.iot.splunk.actions;
+
+import org.dsa.iot.dslink.node.value.Value;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Merges the values of consecutive time slices that are read concurrently
+ * back into time order. The values of the earliest unfinished slice are
+ * passed on as soon as they are read. Later slices buffer their values
+ * until every slice before them finished. The listener is told once the
+ * last slice finished.
+ *
+ * The buffer of each slice is bounded. A slice whose buffer is full
+ * blocks the thread reading it until the slice is next in line, so the
+ * pace of the listener throttles every export. Values are passed on
+ * outside of the lock of the merger and never concurrently.
+ *
+ * Once the listener is done, such as when every request reached its row
+ * limit, blocked slices are released and further values are discarded so
+ * that the exports feeding them can stop.
+ *
+ * @author Samuel Grenier
+ */
+class SliceMerger {
+
+    /**
+     * Amount of values a slice buffers before it blocks.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Time in milliseconds a blocked slice waits before checking whether
+     * the listener is done.
+     */
+    private static final long CHECK_INTERVAL = 500;
+
+    private final Listener listener;
+    private final Slice[] slices;
+
+    /**
+     * Index of the slice whose values are passed on directly.
+     */
+    private int current;
+
+    /**
+     * Whether a thread is passing on values.
+     */
+    private boolean delivering;
+
+    /**
+     * @param count Amount of slices.
+     * @param listener Listener that receives the values in order.
+     */
+    SliceMerger(int count, Listener listener) {
+        this.listener = listener;
+        this.slices = new Slice[count];
+        for (int i = 0; i < count; ++i) {
+            slices[i] = new Slice(i);
+        }
+    }
+
+    /**
+     * @param index Index of the slice, slices are ordered by time.
+     * @return The slice.
+     */
+    Slice getSlice(int index) {
+        return slices[index];
+    }
+
+    /**
+     * Passes on the values of a buffer, must be called outside of the
+     * lock while delivering.
+     */
+    private void deliver(Buffer buf) {
+        for (int i = 0; i < buf.size && !listener.isDone(); ++i) {
+            listener.handle(buf.times[i], buf.values[i]);
+        }
+    }
+
+    private synchronized void release() {
+        delivering = false;
+        notifyAll();
+    }
+
+    class Slice {
+
+        private final int index;
+        private Buffer buffer;
+        private boolean finished;
+
+        private Slice(int index) {
+            this.index = index;
+        }
+
+        /**
+         * Adds a value of this slice, values must be added in time order.
+         * Blocks while the buffer of the slice is full. Values added once
+         * the listener is done are discarded.
+         */
+        void add(long time, Value value) {
+            Buffer buffered;
+            synchronized (SliceMerger.this) {
+                while (true) {
+                    if (listener.isDone()) {
+                        buffer = null;
+                        return;
+                    } else if (index == current && !delivering) {
+                        delivering = true;
+                        buffered = buffer;
+                        buffer = null;
+                        break;
+                    }
+
+                    if (buffer == null) {
+                        buffer = new Buffer();
+                    }
+                    if (buffer.size < BUFFER_SIZE) {
+                        buffer.add(time, value);
+                        return;
+                    }
+                    try {
+                        SliceMerger.this.wait(CHECK_INTERVAL);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+
+            try {
+                if (buffered != null) {
+                    deliver(buffered);
+                }
+                if (!listener.isDone()) {
+                    listener.handle(time, value);
+                }
+            } finally {
+                release();
+            }
+        }
+
+        /**
+         * Marks the slice as finished, whether it was read completely or
+         * failed.
+         */
+        void finish() {
+            List<Buffer> buffered = new ArrayList<>();
+            boolean done;
+            synchronized (SliceMerger.this) {
+                finished = true;
+                SliceMerger.this.notifyAll();
+                if (index != current) {
+                    return;
+                }
+                while (delivering) {
+                    try {
+                        SliceMerger.this.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (index != current) {
+                    // Another thread already moved past this slice
+                    return;
+                }
+
+                // Finished slices no longer have a thread of their own
+                // that passes on their values
+                delivering = true;
+                while (current < slices.length && slices[current].finished) {
+                    Slice s = slices[current++];
+                    if (s.buffer != null) {
+                        buffered.add(s.buffer);
+                        s.buffer = null;
+                    }
+                }
+                done = current == slices.length;
+            }
+
+            try {
+                for (Buffer buf : buffered) {
+                    deliver(buf);
+                }
+            } finally {
+                release();
+            }
+            if (done) {
+                listener.done();
+            }
+        }
+    }
+
+    private static class Buffer {
+
+        private final long[] times = new long[BUFFER_SIZE];
+        private final Value[] values = new Value[BUFFER_SIZE];
+        private int size;
+
+        private void add(long time, Value value) {
+            times[size] = time;
+            values[size] = value;
+            size++;
+        }
+    }
+
+    interface Listener {
+
+        /**
+         * Receives a value of a slice.
+         *
+         * @param time Time of the value in milliseconds.
+         * @param value Value that was read.
+         */
+        void handle(long time, Value value);
+
+        /**
+         * Called once every slice finished and every value was passed on.
+         */
+        void done();
+
+        /**
+         * @return Whether no more values are needed, blocked slices stop
+         *         waiting and later values are discarded.
+         */
+        boolean isDone();
+    }
+}
@@ -0,0 +1,327 @@
+package org.dsa.iot.splunk.output;
+
+import org.dsa.iot.dslink.util.handler.Handler;
+import org.dsa.iot.splunk.splunk.EventBatch;
+import org.dsa.iot.splunk.utils.PathValuePair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads batches across several connections to a tier of indexers. Each
+ * connection is a lane with a home endpoint. When a lane fails it fails
+ * over to the next endpoint that is not known to be down and returns to
+ * its home endpoint once that endpoint had time to recover.
+ *
+ * With {@link Balancing#PATH_HASH} every batch is split by the hash of
+ * each event's path, so all events of a path are always written through
+ * the same lane in order. Batches without pairs, such as batches replayed
+ * from a spool, can't be split and are always written through the first
+ * lane. The parts of a split batch are written through their lanes
+ * concurrently.
+ *
+ * When some lanes fail while others wrote their part of the batch, only
+ * the parts of the failed lanes are handed to the undelivered handler so
+ * that the written parts are not sent again. The write only fails when
+ * no part could be written, or without an undelivered handler, in which
+ * case the whole batch is retried and events are written at least once.
+ *
+ * @author Samuel Grenier
+ */
+public class BalancedOutput extends Output {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BalancedOutput.class);
+    private static final long DOWN_TIME = TimeUnit.SECONDS.toMillis(30);
+
+    private final EventBatch.Format format;
+    private final Connector connector;
+    private final Balancing balancing;
+    private final String[] endpoints;
+    private final long[] downUntil;
+    private final Lane[] lanes;
+    private final EventBatch[] partitions;
+    private final ExecutorService executor;
+    private int next;
+
+    /**
+     * @param endpoints Endpoints of the indexers.
+     * @param connections Amount of connections to keep open.
+     * @param balancing How events are spread across the connections.
+     * @param format Format batches are encoded in.
+     * @param connector Opens connections to an endpoint.
+     */
+    public BalancedOutput(List<String> endpoints,
+                          int connections,
+                          Balancing balancing,
+                          EventBatch.Format format,
+                          Connector connector) {
+        if (endpoints == null || endpoints.isEmpty()) {
+            throw new IllegalArgumentException("No endpoints");
+        } else if (connections <= 0) {
+            throw new IllegalArgumentException("connections <= 0");
+        } else if (balancing == null) {
+            throw new NullPointerException("balancing");
+        } else if (format == null) {
+            throw new NullPointerException("format");
+        } else if (connector == null) {
+            throw new NullPointerException("connector");
+        }
+        this.format = format;
+        this.connector = connector;
+        this.balancing = balancing;
+        this.endpoints = endpoints.toArray(new String[endpoints.size()]);
+        this.downUntil = new long[this.endpoints.length];
+        this.lanes = new Lane[connections];
+        this.partitions = new EventBatch[connections];
+        for (int i = 0; i < connections; ++i) {
+            lanes[i] = new Lane(i % this.endpoints.length);
+            partitions[i] = new EventBatch(format);
+        }
+        this.executor = Executors.newFixedThreadPool(connections, new ThreadFactory() {
+
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "balanced-output-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    @Override
+    public EventBatch.Format getFormat() {
+        return format;
+    }
+
+    @Override
+    public synchronized void write(EventBatch batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        List<PathValuePair> pairs = batch.getPairs();
+        if (balancing == Balancing.ROUND_ROBIN) {
+            int lane = next;
+            next = (next + 1) % lanes.length;
+            write(lanes[lane], batch);
+            return;
+        } else if (lanes.length == 1 || pairs.size() != batch.size()) {
+            write(lanes[0], batch);
+            return;
+        }
+
+        for (EventBatch p : partitions) {
+            p.clear();
+        }
+        for (int i = 0; i < pairs.size(); ++i) {
+            int hash = pairs.get(i).getPath().hashCode();
+            int lane = (hash & Integer.MAX_VALUE) % lanes.length;
+            partitions[lane].add(batch, i);
+        }
+        writePartitions();
+    }
+
+    @Override
+    public synchronized void close() {
+        executor.shutdown();
+        for (Lane lane : lanes) {
+            lane.close();
+        }
+    }
+
+    /**
+     * Writes every partition through its lane concurrently and waits for
+     * all of them. Partitions of failed lanes are handed back when other
+     * partitions were written.
+     */
+    private void writePartitions() throws IOException {
+        Future<?>[] writes = new Future<?>[lanes.length];
+        for (int i = 0; i < lanes.length; ++i) {
+            if (partitions[i].isEmpty()) {
+                continue;
+            }
+            final Lane lane = lanes[i];
+            final EventBatch partition = partitions[i];
+            writes[i] = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    write(lane, partition);
+                    return null;
+                }
+            });
+        }
+
+        boolean[] failed = new boolean[lanes.length];
+        boolean written = false;
+        IOException last = null;
+        for (int i = 0; i < lanes.length; ++i) {
+            if (writes[i] == null) {
+                continue;
+            }
+            try {
+                await(writes[i]);
+                written = true;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    last = (IOException) cause;
+                } else {
+                    last = new IOException(cause);
+                }
+                failed[i] = true;
+            }
+        }
+
+        Handler<EventBatch> handler = getUndeliveredHandler();
+        if (last == null) {
+            return;
+        } else if (!written || handler == null) {
+            throw last;
+        }
+        for (int i = 0; i < lanes.length; ++i) {
+            if (!failed[i]) {
+                continue;
+            }
+            EventBatch partition = partitions[i];
+            LOGGER.warn("Handing back {} events of a failed lane", partition.size());
+            EventBatch copy = new EventBatch(format);
+            for (int j = 0; j < partition.size(); ++j) {
+                copy.add(partition, j);
+            }
+            handler.handle(copy);
+        }
+    }
+
+    /**
+     * Waits for a write to complete, even if interrupted, since its lane
+     * and partition are in use until then.
+     */
+    private static void await(Future<?> write) throws ExecutionException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    write.get();
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Writes the batch through the lane, failing over to every other
+     * endpoint at most once.
+     */
+    private void write(Lane lane, EventBatch batch) throws IOException {
+        IOException last = null;
+        for (int i = 0; i < endpoints.length; ++i) {
+            try {
+                lane.connect().write(batch);
+                return;
+            } catch (IOException e) {
+                last = e;
+                String endpoint = endpoints[lane.endpoint];
+                LOGGER.warn("Failed to write to {}, failing over", endpoint, e);
+                markDown(lane.endpoint);
+                lane.close();
+                lane.endpoint = nextEndpoint(lane.endpoint);
+            }
+        }
+        throw last;
+    }
+
+    /**
+     * Endpoints are shared by lanes that write concurrently.
+     */
+    private void markDown(int endpoint) {
+        synchronized (downUntil) {
+            downUntil[endpoint] = System.currentTimeMillis() + DOWN_TIME;
+        }
+    }
+
+    private boolean isDown(int endpoint) {
+        synchronized (downUntil) {
+            return downUntil[endpoint] > System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @return The next endpoint that is not down. If every endpoint is down
+     *         then the endpoint following the given one is returned.
+     */
+    private int nextEndpoint(int endpoint) {
+        for (int i = 1; i <= endpoints.length; ++i) {
+            int e = (endpoint + i) % endpoints.length;
+            if (!isDown(e)) {
+                return e;
+            }
+        }
+        return (endpoint + 1) % endpoints.length;
+    }
+
+    private class Lane {
+
+        private final int home;
+        private int endpoint;
+        private Output output;
+
+        public Lane(int home) {
+            this.home = home;
+            this.endpoint = home;
+        }
+
+        public Output connect() throws IOException {
+            if (endpoint != home && !isDown(home)) {
+                // The home endpoint recovered, move back to it
+                close();
+                endpoint = home;
+            }
+            if (output == null) {
+                if (isDown(endpoint)) {
+                    endpoint = nextEndpoint(endpoint);
+                }
+                output = connector.connect(endpoints[endpoint]);
+                output.setUndeliveredHandler(getUndeliveredHandler());
+            }
+            return output;
+        }
+
+        public void close() {
+            if (output != null) {
+                output.close();
+                output = null;
+            }
+        }
+    }
+
+    /**
+     * Opens connections to an endpoint.
+     */
+    public interface Connector {
+
+        /**
+         * @param endpoint Endpoint to connect to, as configured.
+         * @return A connected output.
+         * @throws IOException If the connection failed.
+         */
+        Output connect(String endpoint) throws IOException;
+    }
+}
@@ -0,0 +1,33 @@
+package org.dsa.iot.splunk.output;
+
+/**
+ * Determines how events are spread across the connections of a
+ * {@link BalancedOutput}.
+ *
+ * @author Samuel Grenier
+ */
+public enum Balancing {
+
+    PATH_HASH("Path Hash"),
+    ROUND_ROBIN("Round Robin");
+
+    private final String name;
+
+    Balancing(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public static Balancing toEnum(String s) {
+        if (PATH_HASH.getName().equals(s)) {
+            return PATH_HASH;
+        } else if (ROUND_ROBIN.getName().equals(s)) {
+            return ROUND_ROBIN;
+        } else {
+            throw new IllegalArgumentException("Invalid balancing: " + s);
+        }
+    }
+}
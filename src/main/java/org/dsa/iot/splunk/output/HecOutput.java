@@ -0,0 +1,400 @@
+package org.dsa.iot.splunk.output;
+
+import org.dsa.iot.dslink.util.Objects;
+import org.dsa.iot.dslink.util.handler.Handler;
+import org.dsa.iot.dslink.util.json.JsonArray;
+import org.dsa.iot.dslink.util.json.JsonObject;
+import org.dsa.iot.splunk.splunk.EventBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes batches of events to the Splunk HTTP Event Collector. Every
+ * batch is sent as a single gzip-compressed multi-event POST. Posts are
+ * performed asynchronously with a bounded amount of requests in flight.
+ * A failed post is retried until it succeeds or the output is closed.
+ * While the collector is unreachable new batches are rejected so the
+ * caller can fail over to another endpoint or spool them. Batches that are
+ * still being retried or were never acknowledged when the output is
+ * closed are handed to the undelivered handler. Batches the collector
+ * rejects as malformed or too large are never retried, they are logged
+ * and dropped. Any other error, including an expired token or a disabled
+ * input, is retried and makes the collector unavailable until a post
+ * succeeds.
+ *
+ * @author Samuel Grenier
+ */
+public class HecOutput extends Output {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HecOutput.class);
+    private static final long RETRY_DELAY = TimeUnit.SECONDS.toMillis(5);
+    private static final long ACK_POLL_INTERVAL = 5;
+    private static final long ACK_TIMEOUT = TimeUnit.SECONDS.toMillis(60);
+    private static final int CONNECT_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(10);
+    private static final int READ_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(60);
+    private static final long CLOSE_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
+
+    private final Map<Long, Payload> pendingAcks = new ConcurrentHashMap<>();
+    private final Set<Payload> unsent = Collections.newSetFromMap(
+            new ConcurrentHashMap<Payload, Boolean>());
+    private final String channel = UUID.randomUUID().toString();
+    private final URL eventUrl;
+    private final URL ackUrl;
+    private final String auth;
+    private final boolean ack;
+
+    private final Semaphore inFlight;
+    private final ExecutorService executor;
+    private ScheduledFuture<?> ackPoller;
+    private volatile boolean running = true;
+    private volatile boolean available = true;
+
+    /**
+     * @param baseUrl Base URL of the collector, for example
+     *                {@code https://localhost:8088}.
+     * @param token HEC token.
+     * @param maxInFlight Maximum amount of concurrent posts.
+     * @param ack Whether to wait for indexer acknowledgements and resend
+     *            batches that were never acknowledged.
+     */
+    public HecOutput(String baseUrl, String token, int maxInFlight, boolean ack) {
+        if (baseUrl == null) {
+            throw new NullPointerException("baseUrl");
+        } else if (token == null) {
+            throw new NullPointerException("token");
+        } else if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight <= 0");
+        }
+        if (baseUrl.endsWith("/")) {
+            baseUrl = baseUrl.substring(0, baseUrl.length() - 1);
+        }
+        try {
+            this.eventUrl = new URL(baseUrl + "/services/collector/event");
+            this.ackUrl = new URL(baseUrl + "/services/collector/ack");
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException(e);
+        }
+        this.auth = "Splunk " + token;
+        this.ack = ack;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.executor = Executors.newFixedThreadPool(maxInFlight, new ThreadFactory() {
+
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "hec-output-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        if (ack) {
+            ScheduledThreadPoolExecutor stpe = Objects.getDaemonThreadPool();
+            ackPoller = stpe.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        pollAcks();
+                    } catch (Exception e) {
+                        LOGGER.warn("Failed to poll HEC acknowledgements", e);
+                    }
+                }
+            }, ACK_POLL_INTERVAL, ACK_POLL_INTERVAL, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public EventBatch.Format getFormat() {
+        return EventBatch.Format.HEC;
+    }
+
+    @Override
+    public void write(EventBatch batch) throws IOException {
+        if (!running) {
+            throw new IOException("Output is closed");
+        } else if (!available) {
+            throw new IOException("Collector is unavailable: " + eventUrl);
+        }
+        ByteArrayOutputStream raw = new ByteArrayOutputStream(batch.getLength());
+        batch.writeTo(raw);
+
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        Payload payload = new Payload(batch.getFormat(), raw.toByteArray(), batch.size());
+        unsent.add(payload);
+        submit(payload, true);
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        if (ackPoller != null) {
+            ackPoller.cancel(false);
+        }
+        // Retries are interrupted, posts that are in progress are given a
+        // moment to complete before their batches are handed back.
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        List<Payload> undelivered = new ArrayList<>(unsent);
+        undelivered.addAll(pendingAcks.values());
+        unsent.clear();
+        pendingAcks.clear();
+        if (undelivered.isEmpty()) {
+            return;
+        }
+
+        Handler<EventBatch> handler = getUndeliveredHandler();
+        if (handler == null) {
+            LOGGER.warn("HEC output closed, dropping {} undelivered batches",
+                        undelivered.size());
+            return;
+        }
+        for (Payload payload : undelivered) {
+            EventBatch batch = new EventBatch(payload.format);
+            ByteBuffer buf = ByteBuffer.wrap(payload.data);
+            batch.read(buf, payload.data.length, payload.events);
+            handler.handle(batch);
+        }
+    }
+
+    private void submit(final Payload payload, final boolean permit) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        post(payload);
+                    } finally {
+                        if (permit) {
+                            inFlight.release();
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The output is closed, the payload is handed back on close
+            if (permit) {
+                inFlight.release();
+            }
+        }
+    }
+
+    private void post(Payload payload) {
+        byte[] body;
+        try {
+            body = payload.compress();
+        } catch (IOException e) {
+            LOGGER.error("Failed to compress batch, dropping it", e);
+            unsent.remove(payload);
+            return;
+        }
+
+        while (running) {
+            try {
+                JsonObject resp = request(eventUrl, body, true);
+                available = true;
+                if (ack) {
+                    Number id = resp.get("ackId");
+                    if (id != null) {
+                        payload.sent = System.currentTimeMillis();
+                        pendingAcks.put(id.longValue(), payload);
+                    }
+                }
+                unsent.remove(payload);
+                return;
+            } catch (RejectedException e) {
+                LOGGER.error("Collector rejected batch of {} events, dropping it",
+                             payload.events, e);
+                unsent.remove(payload);
+                return;
+            } catch (IOException e) {
+                available = false;
+                LOGGER.warn("Failed to post batch to {}, retrying", eventUrl, e);
+                try {
+                    Thread.sleep(RETRY_DELAY);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void pollAcks() throws IOException {
+        if (pendingAcks.isEmpty()) {
+            return;
+        }
+
+        JsonArray ids = new JsonArray();
+        for (Long id : pendingAcks.keySet()) {
+            ids.add(id);
+        }
+        JsonObject req = new JsonObject();
+        req.put("acks", ids);
+
+        JsonObject resp = request(ackUrl, req.encode(), false);
+        JsonObject acks = resp.get("acks");
+        if (acks != null) {
+            for (Map.Entry<String, Object> entry : acks) {
+                if (Boolean.TRUE.equals(entry.getValue())) {
+                    pendingAcks.remove(Long.parseLong(entry.getKey()));
+                }
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        Iterator<Payload> it = pendingAcks.values().iterator();
+        while (it.hasNext()) {
+            Payload payload = it.next();
+            if (now - payload.sent > ACK_TIMEOUT) {
+                it.remove();
+                unsent.add(payload);
+                LOGGER.warn("Batch was not acknowledged in time, resending");
+                // Resends are already accounted for by the pool size
+                submit(payload, false);
+            }
+        }
+    }
+
+    private JsonObject request(URL url,
+                               byte[] body,
+                               boolean gzip) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setFixedLengthStreamingMode(body.length);
+        conn.setConnectTimeout(CONNECT_TIMEOUT);
+        conn.setReadTimeout(READ_TIMEOUT);
+        conn.setRequestProperty("Authorization", auth);
+        conn.setRequestProperty("Content-Type", "application/json");
+        conn.setRequestProperty("X-Splunk-Request-Channel", channel);
+        if (gzip) {
+            conn.setRequestProperty("Content-Encoding", "gzip");
+        }
+
+        OutputStream out = conn.getOutputStream();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+
+        int code = conn.getResponseCode();
+        InputStream in = (code < 400) ? conn.getInputStream() : conn.getErrorStream();
+        String resp = readFully(in);
+        if (code != HttpURLConnection.HTTP_OK) {
+            String msg = "HEC responded with " + code + ": " + resp;
+            if (isRejected(code)) {
+                throw new RejectedException(msg);
+            }
+            throw new IOException(msg);
+        }
+        return resp.isEmpty() ? new JsonObject() : new JsonObject(resp);
+    }
+
+    /**
+     * @return Whether a response code means that the batch itself is
+     *         malformed or too large, so that retrying it can never
+     *         succeed. Authorization failures are not, the token may be
+     *         rotated or the input enabled again.
+     */
+    static boolean isRejected(int code) {
+        return code == HttpURLConnection.HTTP_BAD_REQUEST
+                || code == HttpURLConnection.HTTP_ENTITY_TOO_LARGE;
+    }
+
+    /**
+     * Reads the response completely so the underlying connection can be
+     * kept alive and reused by the next request.
+     */
+    private static String readFully(InputStream in) throws IOException {
+        if (in == null) {
+            return "";
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try {
+            byte[] buf = new byte[1024];
+            int read;
+            while ((read = in.read(buf)) != -1) {
+                baos.write(buf, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return baos.toString("UTF-8");
+    }
+
+    private static class Payload {
+
+        /**
+         * Format the events were encoded in, measurements are handed back
+         * as measurements so that they are replayed from a spool of the
+         * same format.
+         */
+        private final EventBatch.Format format;
+
+        /**
+         * Encoded events, kept uncompressed so that they can be handed
+         * back as a batch.
+         */
+        private final byte[] data;
+        private final int events;
+        private volatile long sent;
+
+        public Payload(EventBatch.Format format, byte[] data, int events) {
+            this.format = format;
+            this.data = data;
+            this.events = events;
+        }
+
+        public byte[] compress() throws IOException {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length / 4);
+            GZIPOutputStream gzip = new GZIPOutputStream(baos);
+            gzip.write(data);
+            gzip.close();
+            return baos.toByteArray();
+        }
+    }
+
+    /**
+     * Thrown when the collector rejected a request that can not succeed
+     * when it is retried.
+     */
+    private static class RejectedException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public RejectedException(String msg) {
+            super(msg);
+        }
+    }
+}
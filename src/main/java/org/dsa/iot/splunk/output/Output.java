@@ -0,0 +1,55 @@
+package org.dsa.iot.splunk.output;
+
+import org.dsa.iot.dslink.util.handler.Handler;
+import org.dsa.iot.splunk.splunk.EventBatch;
+
+import java.io.IOException;
+
+/**
+ * A destination that batches of events are written to.
+ *
+ * @author Samuel Grenier
+ */
+public abstract class Output {
+
+    private volatile Handler<EventBatch> undeliveredHandler;
+
+    /**
+     * @return The format batches must be encoded in for this output.
+     */
+    public abstract EventBatch.Format getFormat();
+
+    /**
+     * Writes the batch. The batch may be reused by the caller as soon as
+     * this method returns.
+     *
+     * @param batch Batch to write.
+     * @throws IOException If the batch could not be written. The output
+     *                     must be closed and recreated in this case.
+     */
+    public abstract void write(EventBatch batch) throws IOException;
+
+    /**
+     * Closes the output and releases all of its resources. Batches that
+     * were accepted by {@link #write(EventBatch)} but not delivered yet
+     * are handed to the undelivered handler.
+     */
+    public abstract void close();
+
+    /**
+     * Sets the handler of batches that an output accepted but could not
+     * deliver, such as batches that an asynchronous output was still
+     * retrying when it was closed or the parts of a batch that only some
+     * connections failed to write. Without a handler such batches are
+     * lost.
+     *
+     * @param handler Handler that takes over the batches.
+     */
+    public void setUndeliveredHandler(Handler<EventBatch> handler) {
+        this.undeliveredHandler = handler;
+    }
+
+    protected Handler<EventBatch> getUndeliveredHandler() {
+        return undeliveredHandler;
+    }
+}
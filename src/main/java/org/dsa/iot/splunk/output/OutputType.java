@@ -0,0 +1,30 @@
+package org.dsa.iot.splunk.output;
+
+/**
+ * @author Samuel Grenier
+ */
+public enum OutputType {
+
+    TCP("TCP"),
+    HEC("HTTP Event Collector");
+
+    private final String name;
+
+    OutputType(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public static OutputType toEnum(String s) {
+        if (TCP.getName().equals(s)) {
+            return TCP;
+        } else if (HEC.getName().equals(s)) {
+            return HEC;
+        } else {
+            throw new IllegalArgumentException("Invalid output type: " + s);
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package org.dsa.iot.splunk.output;
+
+import org.dsa.iot.splunk.splunk.EventBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * An append-only, disk-backed store of encoded batches that could not be
+ * written to Splunk. Batches are stored in memory-mapped segment files and
+ * read back in the order they were appended. The read position is kept in
+ * a checkpoint file so that replaying resumes after a restart.
+ *
+ * Each record consists of the encoded length, the amount of events and
+ * the {@link EventBatch.Format} of the batch, followed by the encoded
+ * batch. A length of 0 marks the end of the records in a segment.
+ *
+ * @author Samuel Grenier
+ */
+public class Spool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Spool.class);
+    private static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final int HEADER_SIZE = 9;
+    private static final String CHECKPOINT = "checkpoint";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+
+    private final File dir;
+    private final long maxBytes;
+    private final MappedByteBuffer checkpoint;
+
+    private long readId;
+    private MappedByteBuffer readBuf;
+    private int recordLength;
+
+    private long writeId;
+    private MappedByteBuffer writeBuf;
+
+    private long diskBytes;
+    private long pendingEvents;
+
+    /**
+     * Opens the spool in the directory, creating it if necessary. Any
+     * segments that were not completely replayed before are retained.
+     *
+     * @param dir Directory to store the spool in.
+     * @param maxBytes Maximum amount of disk space the segments may use.
+     * @throws IOException If the spool could not be opened.
+     */
+    public Spool(File dir, long maxBytes) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create spool directory: " + dir);
+        }
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.checkpoint = map(new File(dir, CHECKPOINT), 16);
+
+        long[] ids = listSegments();
+        long cpId = checkpoint.getLong(0);
+        int cpPos = (int) checkpoint.getLong(8);
+        if (ids.length == 0) {
+            readId = writeId = cpId;
+            cpPos = 0;
+        } else if (Arrays.binarySearch(ids, cpId) >= 0) {
+            readId = cpId;
+            writeId = ids[ids.length - 1];
+        } else {
+            readId = ids[0];
+            writeId = ids[ids.length - 1];
+            cpPos = 0;
+        }
+
+        for (long id : ids) {
+            if (id < readId) {
+                deleteSegment(id);
+            } else {
+                diskBytes += segmentFile(id).length();
+            }
+        }
+
+        readBuf = map(segmentFile(readId), SEGMENT_SIZE);
+        readBuf.position(cpPos);
+        writeBuf = map(segmentFile(writeId), SEGMENT_SIZE);
+        diskBytes = Math.max(diskBytes, writeBuf.capacity());
+        countPending();
+        saveCheckpoint();
+
+        if (pendingEvents > 0) {
+            LOGGER.info("Spool {} has {} events pending", dir, pendingEvents);
+        }
+    }
+
+    /**
+     * Appends a batch to the spool.
+     *
+     * @param batch Batch to append.
+     * @return Whether the batch was stored, {@code false} if the spool
+     *         reached its size limit.
+     * @throws IOException If a new segment could not be created.
+     */
+    public synchronized boolean append(EventBatch batch) throws IOException {
+        int size = HEADER_SIZE + batch.getLength();
+        // Always leave room for the end of segment marker
+        if (writeBuf.remaining() < size + 4) {
+            int segmentSize = Math.max(SEGMENT_SIZE, size + 4);
+            if (diskBytes + segmentSize > maxBytes) {
+                return false;
+            }
+            writeBuf.force();
+            writeId++;
+            writeBuf = map(segmentFile(writeId), segmentSize);
+            diskBytes += writeBuf.capacity();
+        }
+
+        int pos = writeBuf.position();
+        writeBuf.position(pos + 4);
+        writeBuf.putInt(batch.size());
+        writeBuf.put((byte) batch.getFormat().ordinal());
+        batch.writeTo(writeBuf);
+        // The length is written last so a partial record is never read
+        writeBuf.putInt(pos, batch.getLength());
+        pendingEvents += batch.size();
+        return true;
+    }
+
+    /**
+     * Reads the next record into the batch without consuming it. Records
+     * that were spooled in a different format than the batch uses are
+     * discarded.
+     *
+     * @param batch Batch to read into.
+     * @return Whether a record was read.
+     * @throws IOException If the next segment could not be opened.
+     */
+    public synchronized boolean read(EventBatch batch) throws IOException {
+        while (true) {
+            int pos = readBuf.position();
+            int length = (readBuf.remaining() < HEADER_SIZE) ? 0 : readBuf.getInt(pos);
+            if (length == 0) {
+                if (readId == writeId) {
+                    return false;
+                }
+                nextSegment();
+                continue;
+            }
+
+            int events = readBuf.getInt(pos + 4);
+            int format = readBuf.get(pos + 8);
+            if (format != batch.getFormat().ordinal()) {
+                LOGGER.warn("Discarding {} spooled events of format {}",
+                        events, EventBatch.Format.values()[format]);
+                readBuf.position(pos + HEADER_SIZE + length);
+                pendingEvents -= events;
+                saveCheckpoint();
+                continue;
+            }
+
+            readBuf.position(pos + HEADER_SIZE);
+            batch.read(readBuf, length, events);
+            readBuf.position(pos);
+            recordLength = HEADER_SIZE + length;
+            return true;
+        }
+    }
+
+    /**
+     * Consumes the record that was last read and persists the new read
+     * position.
+     *
+     * @param batch Batch that the record was read into.
+     */
+    public synchronized void commit(EventBatch batch) {
+        if (recordLength == 0) {
+            throw new IllegalStateException("No record was read");
+        }
+        readBuf.position(readBuf.position() + recordLength);
+        recordLength = 0;
+        pendingEvents -= batch.size();
+        saveCheckpoint();
+    }
+
+    public synchronized boolean hasPending() {
+        return pendingEvents > 0;
+    }
+
+    public synchronized long getPendingEvents() {
+        return pendingEvents;
+    }
+
+    /**
+     * @return Amount of disk space used by the segments.
+     */
+    public synchronized long getDiskBytes() {
+        return diskBytes;
+    }
+
+    /**
+     * Flushes all segments and the checkpoint to disk.
+     */
+    public synchronized void close() {
+        writeBuf.force();
+        checkpoint.force();
+    }
+
+    private void nextSegment() throws IOException {
+        long old = readId++;
+        readBuf = map(segmentFile(readId), SEGMENT_SIZE);
+        saveCheckpoint();
+        diskBytes -= segmentFile(old).length();
+        deleteSegment(old);
+    }
+
+    private void countPending() {
+        pendingEvents = 0;
+        MappedByteBuffer buf = readBuf;
+        int pos = buf.position();
+        long id = readId;
+        while (true) {
+            int length = (buf.capacity() - pos < HEADER_SIZE) ? 0 : buf.getInt(pos);
+            if (length == 0) {
+                if (id == writeId) {
+                    break;
+                }
+                id++;
+                buf = (id == writeId) ? writeBuf : mapQuietly(id);
+                pos = 0;
+                continue;
+            }
+            pendingEvents += buf.getInt(pos + 4);
+            pos += HEADER_SIZE + length;
+            if (id == writeId) {
+                writeBuf.position(pos);
+            }
+        }
+        if (readId == writeId) {
+            writeBuf.position(Math.max(writeBuf.position(), readBuf.position()));
+        }
+    }
+
+    private MappedByteBuffer mapQuietly(long id) {
+        try {
+            return map(segmentFile(id), SEGMENT_SIZE);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void saveCheckpoint() {
+        checkpoint.putLong(0, readId);
+        checkpoint.putLong(8, readBuf.position());
+    }
+
+    private void deleteSegment(long id) {
+        File file = segmentFile(id);
+        if (file.exists() && !file.delete()) {
+            // Mapped files can't be deleted on some platforms, they will
+            // be removed the next time the spool is opened.
+            LOGGER.debug("Failed to delete spool segment: {}", file);
+        }
+    }
+
+    private File segmentFile(long id) {
+        String name = String.format("%s%016d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX);
+        return new File(dir, name);
+    }
+
+    private long[] listSegments() {
+        String[] names = dir.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX)
+                        && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (names == null) {
+            return new long[0];
+        }
+        long[] ids = new long[names.length];
+        for (int i = 0; i < names.length; ++i) {
+            String id = names[i].substring(SEGMENT_PREFIX.length(),
+                    names[i].length() - SEGMENT_SUFFIX.length());
+            ids[i] = Long.parseLong(id);
+        }
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Maps the file, creating it with the given size if it doesn't exist.
+     * Existing files are mapped with their current size.
+     */
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long length = raf.length();
+            if (length == 0) {
+                raf.setLength(size);
+                length = size;
+            }
+            FileChannel channel = raf.getChannel();
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package org.dsa.iot.splunk.output;
+
+import org.dsa.iot.splunk.splunk.EventBatch;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes raw events to a Splunk TCP input.
+ *
+ * @author Samuel Grenier
+ */
+public class TcpOutput extends Output {
+
+    private final OutputStream out;
+
+    public TcpOutput(OutputStream out) {
+        if (out == null) {
+            throw new NullPointerException("out");
+        }
+        this.out = out;
+    }
+
+    @Override
+    public EventBatch.Format getFormat() {
+        return EventBatch.Format.RAW;
+    }
+
+    @Override
+    public void write(EventBatch batch) throws IOException {
+        batch.writeTo(out);
+    }
+
+    @Override
+    public void close() {
+        try {
+            out.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package org.dsa.iot.splunk.splunk;
+
+import org.dsa.iot.splunk.utils.PathValuePair;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Encodes a batch of events into a single reusable buffer so that the
+ * whole batch can be written to Splunk with a single flush. Events are
+ * serialized by an {@link EventEncoder} straight into the buffer.
+ *
+ * @author Samuel Grenier
+ */
+public class EventBatch {
+
+    public static final int DEFAULT_MAX_EVENTS = 5000;
+    public static final int DEFAULT_MAX_BYTES = 1024 * 1024;
+
+    private static final byte[] DELIMITER = new byte[] { '\r', '\n' };
+
+    private final List<PathValuePair> pairs = new ArrayList<>();
+    private final Format format;
+    private final int maxEvents;
+    private final int maxBytes;
+
+    private final EventEncoder encoder = new EventEncoder(8192);
+    private int[] offsets = new int[64];
+    private int events;
+
+    public EventBatch(Format format) {
+        this(format, DEFAULT_MAX_EVENTS, DEFAULT_MAX_BYTES);
+    }
+
+    public EventBatch(Format format, int maxEvents, int maxBytes) {
+        if (format == null) {
+            throw new NullPointerException("format");
+        } else if (maxEvents <= 0) {
+            throw new IllegalArgumentException("maxEvents <= 0");
+        } else if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes <= 0");
+        }
+        this.format = format;
+        this.maxEvents = maxEvents;
+        this.maxBytes = maxBytes;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * Sets the index that {@link Format#METRICS} measurements are written
+     * to. Events that fall back to the event format always use the default
+     * index of the token.
+     *
+     * @param index Name of a metrics index.
+     */
+    public void setMetricsIndex(String index) {
+        encoder.setMetricsIndex(index);
+    }
+
+    /**
+     * Encodes the pair into the batch. The first event of a batch is
+     * always accepted, regardless of its size.
+     *
+     * @param pair Event to add.
+     * @return Whether the event fit into the batch.
+     */
+    public boolean add(PathValuePair pair) {
+        if (isFull()) {
+            return false;
+        }
+
+        ByteBuffer buf = encoder.getBuffer();
+        int start = buf.position();
+        encoder.encode(pair.getPath(), pair.getValue(),
+                       pair.getRollups(), pair.getTime(), format);
+        encoder.writeRaw(DELIMITER);
+
+        buf = encoder.getBuffer();
+        if (events > 0 && buf.position() > maxBytes) {
+            buf.position(start);
+            return false;
+        }
+
+        addOffset(start);
+        pairs.add(pair);
+        events++;
+        return true;
+    }
+
+    /**
+     * Copies an already encoded event of another batch into this batch.
+     * Only events that were added through {@link #add(PathValuePair)} can
+     * be copied.
+     *
+     * @param src Batch to copy from, must be of the same format.
+     * @param index Index of the event in the source batch.
+     */
+    public void add(EventBatch src, int index) {
+        if (src.format != format) {
+            throw new IllegalArgumentException("Mismatched formats");
+        } else if (index < 0 || index >= src.pairs.size()) {
+            throw new IndexOutOfBoundsException("index: " + index);
+        }
+        int start = src.offsets[index];
+        int end = (index + 1 < src.events) ? src.offsets[index + 1] : src.getLength();
+        int len = end - start;
+
+        encoder.ensureRemaining(len);
+        ByteBuffer buf = encoder.getBuffer();
+        addOffset(buf.position());
+        buf.put(src.encoder.getBuffer().array(), start, len);
+        pairs.add(src.pairs.get(index));
+        events++;
+    }
+
+    private void addOffset(int offset) {
+        if (events == offsets.length) {
+            offsets = Arrays.copyOf(offsets, events * 2);
+        }
+        offsets[events] = offset;
+    }
+
+    /**
+     * Replaces the contents of the batch with events that were previously
+     * encoded in the same format, such as events read back from a spool.
+     * The batch will have no pairs associated with it.
+     *
+     * @param src Buffer to read the encoded events from.
+     * @param length Amount of bytes to read.
+     * @param events Amount of events contained in the bytes.
+     */
+    public void read(ByteBuffer src, int length, int events) {
+        clear();
+        encoder.ensureRemaining(length);
+        ByteBuffer buf = encoder.getBuffer();
+        int limit = src.limit();
+        src.limit(src.position() + length);
+        buf.put(src);
+        src.limit(limit);
+        this.events = events;
+    }
+
+    /**
+     * Writes the encoded batch to the stream and flushes it once.
+     *
+     * @param out Stream to write to.
+     * @throws IOException If the write failed.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        ByteBuffer buf = encoder.getBuffer();
+        out.write(buf.array(), buf.arrayOffset(), buf.position());
+        out.flush();
+    }
+
+    /**
+     * Copies the encoded batch into the buffer.
+     *
+     * @param dst Buffer to write to.
+     */
+    public void writeTo(ByteBuffer dst) {
+        ByteBuffer buf = encoder.getBuffer();
+        dst.put(buf.array(), buf.arrayOffset(), buf.position());
+    }
+
+    public boolean isFull() {
+        return events >= maxEvents || getLength() >= maxBytes;
+    }
+
+    public boolean isEmpty() {
+        return events == 0;
+    }
+
+    /**
+     * @return Amount of events in the batch.
+     */
+    public int size() {
+        return events;
+    }
+
+    /**
+     * @return Amount of encoded bytes in the batch.
+     */
+    public int getLength() {
+        return encoder.getBuffer().position();
+    }
+
+    /**
+     * @return Events of the batch in the order they were added.
+     */
+    public List<PathValuePair> getPairs() {
+        return pairs;
+    }
+
+    /**
+     * Resets the batch for reuse. The underlying buffer is retained.
+     */
+    public void clear() {
+        pairs.clear();
+        encoder.reset();
+        events = 0;
+    }
+
+    public enum Format {
+
+        /**
+         * Events delimited by new lines, as expected by a TCP input.
+         */
+        RAW,
+
+        /**
+         * Events wrapped in an HTTP Event Collector envelope that carries
+         * the event time in seconds.
+         */
+        HEC,
+
+        /**
+         * Numeric values as HTTP Event Collector metric measurements with
+         * the path as the metric name. Values that are not numeric fall
+         * back to {@link #HEC} events.
+         */
+        METRICS
+    }
+}
@@ -0,0 +1,492 @@
+package org.dsa.iot.splunk.splunk;
+
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.node.value.ValueUtils;
+import org.dsa.iot.dslink.util.json.JsonArray;
+import org.dsa.iot.dslink.util.json.JsonObject;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Serializes events directly into a reusable {@link ByteBuffer} without
+ * building an intermediate {@link JsonObject}. The output is identical to
+ * what {@link JsonObject#encode()} produces for the same event, so events
+ * written by this encoder remain searchable by existing queries. The only
+ * exceptions are strings with surrogates. Characters outside of the basic
+ * multilingual plane are written as four byte UTF-8 sequences where
+ * {@link JsonObject} escapes them, both decode to the same string.
+ * Unpaired surrogates are escaped rather than rejected.
+ *
+ * Strings are encoded to UTF-8 in place and integral numbers are written
+ * digit by digit, so encoding an event with a string, boolean or integral
+ * value does not allocate.
+ *
+ * @author Samuel Grenier
+ */
+public class EventEncoder {
+
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+    private static final byte[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+
+    private static final byte[] RAW_TIME = "{\"time\":".getBytes();
+    private static final byte[] RAW_TIMESTAMP = ",\"timestamp\":".getBytes();
+    private static final byte[] TIMESTAMP = "{\"timestamp\":".getBytes();
+    private static final long DAY = 86400000L;
+    private static final byte[] PATH = ",\"path\":".getBytes();
+    private static final byte[] VALUE = ",\"value\":".getBytes();
+    private static final byte[] HEC_TIME = "{\"time\":".getBytes();
+    private static final byte[] HEC_EVENT = ",\"event\":".getBytes();
+    private static final byte[] METRIC_EVENT = ",\"event\":\"metric\"".getBytes();
+    private static final byte[] METRIC_INDEX = ",\"index\":".getBytes();
+    private static final byte[] METRIC_NAME = ",\"fields\":{\"metric_name\":".getBytes();
+    private static final byte[] METRIC_VALUE = ",\"_value\":".getBytes();
+    private static final byte[] NULL = "null".getBytes();
+    private static final byte[] TRUE = "true".getBytes();
+    private static final byte[] FALSE = "false".getBytes();
+    private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes();
+
+    /**
+     * Scratch space for writing digits in reverse.
+     */
+    private final byte[] digits = new byte[20];
+    private ByteBuffer buffer;
+    private String metricsIndex;
+
+    public EventEncoder(int capacity) {
+        buffer = ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * The buffer may be replaced when it needs to grow, it must not be
+     * retained across calls to the encoder.
+     *
+     * @return The buffer that is written to.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @param index Index metrics are written to or {@code null} to use the
+     *              default index of the HEC token.
+     */
+    public void setMetricsIndex(String index) {
+        this.metricsIndex = index;
+    }
+
+    /**
+     * Discards everything that was encoded.
+     */
+    public void reset() {
+        buffer.clear();
+    }
+
+    /**
+     * Ensures the buffer has room for at least the given amount of bytes
+     * beyond its current position.
+     *
+     * @param bytes Amount of bytes required.
+     */
+    public void ensureRemaining(int bytes) {
+        if (buffer.remaining() < bytes) {
+            int required = buffer.position() + bytes;
+            int size = Math.max(buffer.capacity() * 2, required);
+            ByteBuffer grown = ByteBuffer.allocate(size);
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+    }
+
+    /**
+     * Encodes an event.
+     *
+     * @param path Path of the event.
+     * @param value Value of the event.
+     * @param time Time of the event in milliseconds.
+     * @param format Format to encode the event in.
+     */
+    public void encode(String path, Value value, long time, EventBatch.Format format) {
+        encode(path, value, null, time, format);
+    }
+
+    /**
+     * Encodes an event. The value of each rollup is written as a field
+     * named after the rollup with a {@code value_} prefix, such as
+     * {@code value_max}. Events with rollups are never written as
+     * measurements so that none of the rollups are lost.
+     *
+     * @param path Path of the event.
+     * @param value Value of the event.
+     * @param rollups Value of each rollup by its name, or {@code null}.
+     * @param time Time of the event in milliseconds.
+     * @param format Format to encode the event in.
+     */
+    public void encode(String path,
+                       Value value,
+                       Map<String, Value> rollups,
+                       long time,
+                       EventBatch.Format format) {
+        if (format == EventBatch.Format.METRICS && rollups == null) {
+            Number num = (value == null) ? null : value.getNumber();
+            if (isFinite(num)) {
+                encodeMetric(path, num, time);
+                return;
+            }
+        }
+
+        boolean hec = format != EventBatch.Format.RAW;
+        if (hec) {
+            writeRaw(HEC_TIME);
+            writeSeconds(time);
+            writeRaw(HEC_EVENT);
+            writeRaw(TIMESTAMP);
+        } else {
+            // Raw events lead with a time Splunk recognizes as _time
+            writeRaw(RAW_TIME);
+            writeIsoTime(time);
+            writeRaw(RAW_TIMESTAMP);
+        }
+        writeLong(time);
+        writeRaw(PATH);
+        writeString(path);
+        writeRaw(VALUE);
+        writeObject(value);
+        if (rollups != null) {
+            for (Map.Entry<String, Value> entry : rollups.entrySet()) {
+                writeByte(',');
+                writeString("value_" + entry.getKey());
+                writeByte(':');
+                writeObject(entry.getValue());
+            }
+        }
+        writeByte('}');
+
+        if (hec) {
+            writeByte('}');
+        }
+    }
+
+    /**
+     * Encodes a measurement for a metrics index in the HEC format, the
+     * path is used as the metric name.
+     */
+    private void encodeMetric(String path, Number num, long time) {
+        writeRaw(HEC_TIME);
+        writeSeconds(time);
+        writeRaw(METRIC_EVENT);
+        if (metricsIndex != null) {
+            writeRaw(METRIC_INDEX);
+            writeString(metricsIndex);
+        }
+        writeRaw(METRIC_NAME);
+        writeString(path);
+        writeRaw(METRIC_VALUE);
+        writeNumber(num);
+        writeByte('}');
+        writeByte('}');
+    }
+
+    private static boolean isFinite(Number num) {
+        if (num == null) {
+            return false;
+        }
+        double d = num.doubleValue();
+        return !(Double.isNaN(d) || Double.isInfinite(d));
+    }
+
+    public void writeByte(char b) {
+        ensureRemaining(1);
+        buffer.put((byte) b);
+    }
+
+    public void writeRaw(byte[] bytes) {
+        ensureRemaining(bytes.length);
+        buffer.put(bytes);
+    }
+
+    /**
+     * Writes any value that can be held by a {@link JsonObject}.
+     *
+     * @param obj Object to write.
+     */
+    public void writeObject(Object obj) {
+        if (obj instanceof Value) {
+            obj = ValueUtils.toObject((Value) obj);
+        }
+
+        if (obj == null) {
+            writeRaw(NULL);
+        } else if (obj instanceof String) {
+            writeString((String) obj);
+        } else if (obj instanceof Boolean) {
+            writeRaw((Boolean) obj ? TRUE : FALSE);
+        } else if (obj instanceof Number) {
+            writeNumber((Number) obj);
+        } else if (obj instanceof JsonObject) {
+            writeByte('{');
+            boolean first = true;
+            for (Map.Entry<String, Object> entry : (JsonObject) obj) {
+                if (!first) {
+                    writeByte(',');
+                }
+                first = false;
+                writeString(entry.getKey());
+                writeByte(':');
+                writeObject(entry.getValue());
+            }
+            writeByte('}');
+        } else if (obj instanceof JsonArray) {
+            writeByte('[');
+            boolean first = true;
+            for (Object o : (JsonArray) obj) {
+                if (!first) {
+                    writeByte(',');
+                }
+                first = false;
+                writeObject(o);
+            }
+            writeByte(']');
+        } else if (obj instanceof byte[]) {
+            writeBinary((byte[]) obj);
+        } else {
+            writeString(obj.toString());
+        }
+    }
+
+    public void writeNumber(Number num) {
+        if (num instanceof Integer
+                || num instanceof Long
+                || num instanceof Short
+                || num instanceof Byte) {
+            writeLong(num.longValue());
+        } else if (num instanceof Double) {
+            double d = num.doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d)) {
+                // Non-numeric numbers are quoted
+                writeString(Double.toString(d));
+            } else {
+                writeAscii(Double.toString(d));
+            }
+        } else if (num instanceof Float) {
+            float f = num.floatValue();
+            if (Float.isNaN(f) || Float.isInfinite(f)) {
+                writeString(Float.toString(f));
+            } else {
+                writeAscii(Float.toString(f));
+            }
+        } else {
+            // BigDecimal, BigInteger and anything else
+            writeAscii(num.toString());
+        }
+    }
+
+    public void writeLong(long l) {
+        if (l == Long.MIN_VALUE) {
+            writeRaw(MIN_LONG);
+            return;
+        }
+        ensureRemaining(20);
+        if (l < 0) {
+            buffer.put((byte) '-');
+            l = -l;
+        }
+        int i = 0;
+        do {
+            digits[i++] = (byte) ('0' + (l % 10));
+            l /= 10;
+        } while (l > 0);
+        while (i > 0) {
+            buffer.put(digits[--i]);
+        }
+    }
+
+    /**
+     * Writes milliseconds as seconds with three decimal places, matching
+     * {@code java.math.BigDecimal.valueOf(ms, 3).toString()}.
+     *
+     * @param ms Milliseconds to write.
+     */
+    public void writeSeconds(long ms) {
+        if (ms < 0 && ms > -1000) {
+            writeByte('-');
+            writeLong(0);
+        } else {
+            writeLong(ms / 1000);
+        }
+        long frac = Math.abs(ms % 1000);
+        ensureRemaining(4);
+        buffer.put((byte) '.');
+        buffer.put((byte) ('0' + frac / 100));
+        buffer.put((byte) ('0' + (frac / 10) % 10));
+        buffer.put((byte) ('0' + frac % 10));
+    }
+
+    /**
+     * Writes milliseconds as a quoted ISO 8601 date in UTC, such as
+     * {@code "2016-01-02T03:04:05.678Z"}.
+     *
+     * @param ms Milliseconds since the epoch to write.
+     */
+    public void writeIsoTime(long ms) {
+        long days = ms / DAY;
+        long millis = ms % DAY;
+        if (millis < 0) {
+            days--;
+            millis += DAY;
+        }
+
+        // Converts days since the epoch to a civil date
+        long z = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        long day = doy - (153 * mp + 2) / 5 + 1;
+        long month = (mp < 10) ? mp + 3 : mp - 9;
+        long year = yoe + era * 400 + ((month <= 2) ? 1 : 0);
+
+        ensureRemaining(26);
+        buffer.put((byte) '"');
+        putDigits(year, 4);
+        buffer.put((byte) '-');
+        putDigits(month, 2);
+        buffer.put((byte) '-');
+        putDigits(day, 2);
+        buffer.put((byte) 'T');
+        putDigits(millis / 3600000, 2);
+        buffer.put((byte) ':');
+        putDigits((millis / 60000) % 60, 2);
+        buffer.put((byte) ':');
+        putDigits((millis / 1000) % 60, 2);
+        buffer.put((byte) '.');
+        putDigits(millis % 1000, 3);
+        buffer.put((byte) 'Z');
+        buffer.put((byte) '"');
+    }
+
+    private void putDigits(long value, int width) {
+        for (int i = width - 1; i >= 0; --i) {
+            digits[i] = (byte) ('0' + (value % 10));
+            value /= 10;
+        }
+        buffer.put(digits, 0, width);
+    }
+
+    /**
+     * Writes a quoted and escaped JSON string encoded in UTF-8.
+     *
+     * @param s String to write.
+     */
+    public void writeString(String s) {
+        int len = s.length();
+        // Worst case is every character being escaped as \\uXXXX
+        ensureRemaining(len * 6 + 2);
+        buffer.put((byte) '"');
+        for (int i = 0; i < len; ++i) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (c == '"' || c == '\\') {
+                    buffer.put((byte) '\\');
+                    buffer.put((byte) c);
+                } else if (c >= 0x20) {
+                    buffer.put((byte) c);
+                } else {
+                    writeControl(c);
+                }
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buffer.put((byte) (0xF0 | (cp >> 18)));
+                buffer.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (cp & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                // A lone surrogate can't be encoded to UTF-8
+                writeEscape(c);
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        buffer.put((byte) '"');
+    }
+
+    private void writeControl(char c) {
+        buffer.put((byte) '\\');
+        switch (c) {
+            case '\b':
+                buffer.put((byte) 'b');
+                break;
+            case '\t':
+                buffer.put((byte) 't');
+                break;
+            case '\n':
+                buffer.put((byte) 'n');
+                break;
+            case '\f':
+                buffer.put((byte) 'f');
+                break;
+            case '\r':
+                buffer.put((byte) 'r');
+                break;
+            default:
+                buffer.put((byte) 'u');
+                buffer.put((byte) '0');
+                buffer.put((byte) '0');
+                buffer.put(HEX[c >> 4]);
+                buffer.put(HEX[c & 0xF]);
+        }
+    }
+
+    private void writeEscape(char c) {
+        buffer.put((byte) '\\');
+        buffer.put((byte) 'u');
+        buffer.put(HEX[(c >> 12) & 0xF]);
+        buffer.put(HEX[(c >> 8) & 0xF]);
+        buffer.put(HEX[(c >> 4) & 0xF]);
+        buffer.put(HEX[c & 0xF]);
+    }
+
+    private void writeAscii(String s) {
+        int len = s.length();
+        ensureRemaining(len);
+        for (int i = 0; i < len; ++i) {
+            buffer.put((byte) s.charAt(i));
+        }
+    }
+
+    private void writeBinary(byte[] data) {
+        ensureRemaining(((data.length + 2) / 3) * 4 + 2);
+        buffer.put((byte) '"');
+        int i = 0;
+        for (; i + 2 < data.length; i += 3) {
+            int b = ((data[i] & 0xFF) << 16)
+                    | ((data[i + 1] & 0xFF) << 8)
+                    | (data[i + 2] & 0xFF);
+            buffer.put(BASE64[(b >> 18) & 0x3F]);
+            buffer.put(BASE64[(b >> 12) & 0x3F]);
+            buffer.put(BASE64[(b >> 6) & 0x3F]);
+            buffer.put(BASE64[b & 0x3F]);
+        }
+        int rem = data.length - i;
+        if (rem > 0) {
+            int b = (data[i] & 0xFF) << 16;
+            if (rem == 2) {
+                b |= (data[i + 1] & 0xFF) << 8;
+            }
+            buffer.put(BASE64[(b >> 18) & 0x3F]);
+            buffer.put(BASE64[(b >> 12) & 0x3F]);
+            buffer.put(rem == 2 ? BASE64[(b >> 6) & 0x3F] : (byte) '=');
+            buffer.put((byte) '=');
+        }
+        buffer.put((byte) '"');
+    }
+}
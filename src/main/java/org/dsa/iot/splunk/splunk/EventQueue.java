@@ -0,0 +1,209 @@
+package org.dsa.iot.splunk.splunk;
+
+import org.dsa.iot.splunk.utils.OverflowPolicy;
+import org.dsa.iot.splunk.utils.PathValuePair;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded, preallocated ring of events waiting to be written. When the
+ * ring is full the configured {@link OverflowPolicy} decides which event
+ * is discarded.
+ *
+ * The queue supports any amount of producers but only a single consumer.
+ * The consumer must {@link #peek()} the head and then remove it with
+ * {@link #remove(PathValuePair)} once it was consumed, since the head may
+ * be discarded or replaced by a producer in the meantime.
+ *
+ * @author Samuel Grenier
+ */
+public class EventQueue {
+
+    /**
+     * Sequence of the latest queued event of each path. Only maintained
+     * when the policy is {@link OverflowPolicy#LATEST_PER_PATH}.
+     */
+    private final Map<String, Long> latest = new HashMap<>();
+
+    private PathValuePair[] ring;
+    private OverflowPolicy policy;
+
+    /**
+     * Sequence of the head, the slot is {@code head % ring.length}.
+     */
+    private long head;
+
+    /**
+     * Sequence of the next event to be added.
+     */
+    private long tail;
+
+    private long dropped;
+
+    public EventQueue(int capacity, OverflowPolicy policy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity <= 0");
+        } else if (policy == null) {
+            throw new NullPointerException("policy");
+        }
+        this.ring = new PathValuePair[capacity];
+        this.policy = policy;
+    }
+
+    /**
+     * Adds an event to the tail of the queue, applying the overflow
+     * policy when the queue is full.
+     *
+     * @param pair Event to add.
+     * @return Whether the event was queued.
+     */
+    public synchronized boolean offer(PathValuePair pair) {
+        if (tail - head >= ring.length) {
+            dropped++;
+            if (policy == OverflowPolicy.DROP_NEWEST) {
+                return false;
+            } else if (policy == OverflowPolicy.LATEST_PER_PATH) {
+                Long seq = latest.get(pair.getPath());
+                if (seq != null && seq > head) {
+                    // Never replace the head, the consumer may be reading it
+                    ring[slot(seq)] = pair;
+                    return true;
+                }
+            }
+            removeHead();
+        }
+
+        if (policy == OverflowPolicy.LATEST_PER_PATH) {
+            latest.put(pair.getPath(), tail);
+        }
+        ring[slot(tail++)] = pair;
+        return true;
+    }
+
+    /**
+     * Puts events back at the head of the queue, in order. Events that no
+     * longer fit into the queue are discarded.
+     *
+     * @param pairs Events to requeue, oldest first.
+     */
+    public synchronized void requeue(List<PathValuePair> pairs) {
+        for (int i = pairs.size() - 1; i >= 0; --i) {
+            if (tail - head >= ring.length) {
+                dropped += i + 1;
+                break;
+            }
+            PathValuePair pair = pairs.get(i);
+            ring[slot(--head)] = pair;
+            if (policy == OverflowPolicy.LATEST_PER_PATH
+                    && !latest.containsKey(pair.getPath())) {
+                latest.put(pair.getPath(), head);
+            }
+        }
+    }
+
+    /**
+     * @return The head of the queue or {@code null} if it is empty.
+     */
+    public synchronized PathValuePair peek() {
+        if (head == tail) {
+            return null;
+        }
+        return ring[slot(head)];
+    }
+
+    /**
+     * Removes the head of the queue if it is still the given event.
+     *
+     * @param pair Event that was previously peeked.
+     */
+    public synchronized void remove(PathValuePair pair) {
+        if (head != tail && ring[slot(head)] == pair) {
+            removeHead();
+        }
+    }
+
+    public synchronized int size() {
+        return (int) (tail - head);
+    }
+
+    public synchronized boolean isEmpty() {
+        return head == tail;
+    }
+
+    public synchronized int getCapacity() {
+        return ring.length;
+    }
+
+    /**
+     * @return Total amount of events discarded due to overflowing.
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Resizes the queue. When shrinking, the oldest events that no longer
+     * fit are discarded.
+     *
+     * @param capacity New capacity of the queue.
+     */
+    public synchronized void setCapacity(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity <= 0");
+        } else if (capacity == ring.length) {
+            return;
+        }
+        while (tail - head > capacity) {
+            removeHead();
+            dropped++;
+        }
+
+        PathValuePair[] resized = new PathValuePair[capacity];
+        int size = (int) (tail - head);
+        for (int i = 0; i < size; ++i) {
+            resized[i] = ring[slot(head + i)];
+        }
+        ring = resized;
+        tail = size;
+        head = 0;
+        rebuildIndex();
+    }
+
+    public synchronized void setPolicy(OverflowPolicy policy) {
+        if (policy == null) {
+            throw new NullPointerException("policy");
+        }
+        this.policy = policy;
+        rebuildIndex();
+    }
+
+    private void removeHead() {
+        int slot = slot(head);
+        PathValuePair pair = ring[slot];
+        ring[slot] = null;
+        if (policy == OverflowPolicy.LATEST_PER_PATH) {
+            Long seq = latest.get(pair.getPath());
+            if (seq != null && seq == head) {
+                latest.remove(pair.getPath());
+            }
+        }
+        head++;
+    }
+
+    private void rebuildIndex() {
+        latest.clear();
+        if (policy != OverflowPolicy.LATEST_PER_PATH) {
+            return;
+        }
+        for (long seq = head; seq < tail; ++seq) {
+            latest.put(ring[slot(seq)].getPath(), seq);
+        }
+    }
+
+    private int slot(long seq) {
+        int slot = (int) (seq % ring.length);
+        return slot < 0 ? slot + ring.length : slot;
+    }
+}
@@ -0,0 +1,487 @@
+package org.dsa.iot.splunk.splunk;
+
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.node.value.ValueUtils;
+import org.dsa.iot.dslink.util.json.JsonArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A local, write-through cache of the values that were written to Splunk.
+ * Recent history can be read from the cache instead of searching Splunk.
+ *
+ * Every watched path has its own directory of compressed chunks. Values
+ * are collected in memory for up to an hour and are then written to a
+ * chunk file named after the oldest and newest time it holds, so chunks
+ * can be selected without reading them. Chunks beyond
+ * the retention or the size budget are deleted, oldest first.
+ *
+ * Each path tracks the time since which every written value is cached.
+ * It is persisted when the cache is closed. After a crash the values that
+ * were still in memory are lost, so coverage starts over at the time the
+ * cache is opened again.
+ *
+ * @author Samuel Grenier
+ */
+public class HistoryCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HistoryCache.class);
+    private static final long CHUNK_LENGTH = TimeUnit.HOURS.toMillis(1);
+    private static final int MAX_CHUNK_VALUES = 8192;
+    private static final String CHUNK_SUFFIX = ".gz";
+    private static final String COVERAGE = "coverage";
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_LONG = 1;
+    private static final byte TYPE_DOUBLE = 2;
+    private static final byte TYPE_JSON = 3;
+
+    private final Map<String, Series> series = new HashMap<>();
+    private final File dir;
+    private final long retention;
+    private final long maxBytes;
+    private final long opened;
+    private long diskBytes;
+
+    /**
+     * Opens the cache in the directory, creating it if necessary.
+     *
+     * @param dir Directory to store the cache in.
+     * @param retention Milliseconds that values are retained for.
+     * @param maxBytes Maximum amount of disk space the chunks may use.
+     * @throws IOException If the directory could not be created.
+     */
+    public HistoryCache(File dir, long retention, long maxBytes) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create history cache directory: " + dir);
+        }
+        this.dir = dir;
+        this.retention = retention;
+        this.maxBytes = maxBytes;
+        this.opened = System.currentTimeMillis();
+
+        File[] dirs = dir.listFiles();
+        if (dirs != null) {
+            for (File d : dirs) {
+                if (d.isDirectory()) {
+                    Series s = new Series(d);
+                    series.put(s.path, s);
+                }
+            }
+        }
+        purge();
+    }
+
+    /**
+     * Adds a value that was written to Splunk. Called by the writer
+     * thread.
+     *
+     * @param path Path of the value.
+     * @param time Time of the value.
+     * @param value Value that was written.
+     */
+    public synchronized void append(String path, long time, Value value) {
+        Series s = series.get(path);
+        if (s == null) {
+            File d = new File(dir, encode(path));
+            if (!d.isDirectory() && !d.mkdirs()) {
+                LOGGER.warn("Failed to create history cache directory: {}", d);
+                return;
+            }
+            s = new Series(d);
+            series.put(path, s);
+        }
+        s.append(time, value);
+        if (s.isFull()) {
+            s.seal();
+            purge();
+        }
+    }
+
+    /**
+     * Reads the cached values of a path in time order if the cache holds
+     * every value of the range.
+     *
+     * @param path Path to read.
+     * @param from Start of the range in milliseconds.
+     * @param to End of the range in milliseconds, inclusive.
+     * @param visitor Visitor that receives the values.
+     * @return Whether the range was read, {@code false} if it is not
+     *         completely cached.
+     */
+    public boolean read(String path, long from, long to, HistoryVisitor visitor) {
+        // Chunks are decompressed outside of the lock so that reads never
+        // stall the writer thread appending values
+        List<Chunk> chunks = new ArrayList<>();
+        List<Entry> entries = new ArrayList<>();
+        synchronized (this) {
+            Series s = series.get(path);
+            if (s == null || s.covered > from) {
+                return false;
+            }
+            s.snapshot(from, to, chunks, entries);
+        }
+
+        try {
+            for (Chunk c : chunks) {
+                c.read(from, to, entries);
+            }
+        } catch (IOException e) {
+            // The chunk may have been purged in the meantime
+            LOGGER.debug("Failed to read history cache of {}", path, e);
+            return false;
+        }
+
+        Collections.sort(entries);
+        for (Entry e : entries) {
+            visitor.handle(e.time, e.value);
+        }
+        return true;
+    }
+
+    /**
+     * Writes every chunk that is still in memory and persists the
+     * coverage of each path.
+     */
+    public synchronized void close() {
+        for (Series s : series.values()) {
+            s.seal();
+            s.saveCoverage();
+        }
+    }
+
+    /**
+     * Deletes chunks that are beyond the retention and then the oldest
+     * chunks until the size budget is met.
+     */
+    private void purge() {
+        long expired = System.currentTimeMillis() - retention;
+        for (Series s : series.values()) {
+            while (!s.chunks.isEmpty() && s.chunks.first().end < expired) {
+                s.delete(s.chunks.first());
+            }
+        }
+
+        while (diskBytes > maxBytes) {
+            Series oldest = null;
+            for (Series s : series.values()) {
+                if (s.chunks.isEmpty()) {
+                    continue;
+                }
+                if (oldest == null || s.chunks.first().end < oldest.chunks.first().end) {
+                    oldest = s;
+                }
+            }
+            if (oldest == null) {
+                break;
+            }
+            oldest.delete(oldest.chunks.first());
+        }
+    }
+
+    private static String encode(String path) {
+        try {
+            return URLEncoder.encode(path, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String decode(String name) {
+        try {
+            return URLDecoder.decode(name, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private class Series {
+
+        private final TreeSet<Chunk> chunks = new TreeSet<>();
+        private final String path;
+        private final File dir;
+
+        /**
+         * Time since which every written value is cached.
+         */
+        private long covered;
+
+        // Values that are not written to a chunk yet
+        private long[] times = new long[64];
+        private Value[] values = new Value[64];
+        private int size;
+        private long firstAppend;
+
+        Series(File dir) {
+            this.dir = dir;
+            this.path = decode(dir.getName());
+            this.covered = opened;
+
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    Chunk c = Chunk.parse(f);
+                    if (c != null) {
+                        chunks.add(c);
+                        diskBytes += f.length();
+                    }
+                }
+            }
+            loadCoverage();
+        }
+
+        void append(long time, Value value) {
+            if (size == 0) {
+                firstAppend = System.currentTimeMillis();
+            } else if (size == times.length) {
+                times = Arrays.copyOf(times, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            times[size] = time;
+            values[size] = value;
+            size++;
+        }
+
+        boolean isFull() {
+            return size >= MAX_CHUNK_VALUES
+                    || System.currentTimeMillis() - firstAppend >= CHUNK_LENGTH;
+        }
+
+        /**
+         * Collects the chunks that overlap the range and copies the
+         * values of the range that are still in memory.
+         */
+        void snapshot(long from, long to, List<Chunk> outChunks, List<Entry> out) {
+            for (Chunk c : chunks) {
+                if (c.end >= from && c.start <= to) {
+                    outChunks.add(c);
+                }
+            }
+            for (int i = 0; i < size; ++i) {
+                if (times[i] >= from && times[i] <= to) {
+                    out.add(new Entry(times[i], values[i]));
+                }
+            }
+        }
+
+        /**
+         * Writes the values in memory to a new chunk.
+         */
+        void seal() {
+            if (size == 0) {
+                return;
+            }
+            long start = Long.MAX_VALUE;
+            long end = Long.MIN_VALUE;
+            for (int i = 0; i < size; ++i) {
+                start = Math.min(start, times[i]);
+                end = Math.max(end, times[i]);
+            }
+
+            // Chunks sealed within the same range get a unique name
+            File file;
+            int seq = 0;
+            do {
+                file = new File(dir, start + "_" + end + "_" + seq++ + CHUNK_SUFFIX);
+            } while (file.exists());
+
+            try {
+                DataOutputStream out = new DataOutputStream(new GZIPOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(file))));
+                try {
+                    out.writeInt(size);
+                    for (int i = 0; i < size; ++i) {
+                        out.writeLong(times[i]);
+                        writeValue(out, values[i]);
+                    }
+                } finally {
+                    out.close();
+                }
+                chunks.add(new Chunk(file, start, end));
+                diskBytes += file.length();
+            } catch (IOException e) {
+                LOGGER.warn("Failed to write history cache of {}", path, e);
+                // The cache no longer holds every value written so far
+                covered = Math.max(covered, end + 1);
+                if (!file.delete()) {
+                    LOGGER.debug("Failed to delete chunk: {}", file);
+                }
+            }
+
+            size = 0;
+            Arrays.fill(values, null);
+        }
+
+        void delete(Chunk c) {
+            chunks.remove(c);
+            diskBytes -= c.file.length();
+            covered = Math.max(covered, c.end + 1);
+            if (!c.file.delete()) {
+                LOGGER.debug("Failed to delete chunk: {}", c.file);
+            }
+        }
+
+        void saveCoverage() {
+            try {
+                DataOutputStream out = new DataOutputStream(
+                        new FileOutputStream(new File(dir, COVERAGE)));
+                try {
+                    out.writeLong(covered);
+                } finally {
+                    out.close();
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Failed to write history cache coverage of {}", path, e);
+            }
+        }
+
+        /**
+         * Restores the coverage that was persisted when the cache was
+         * closed. The file is removed so that a crash resets the coverage.
+         */
+        private void loadCoverage() {
+            File file = new File(dir, COVERAGE);
+            if (!file.isFile()) {
+                return;
+            }
+            try {
+                DataInputStream in = new DataInputStream(new FileInputStream(file));
+                try {
+                    covered = in.readLong();
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Failed to read history cache coverage of {}", path, e);
+            }
+            if (!file.delete()) {
+                // Without the file the coverage is reset after a crash
+                covered = opened;
+            }
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, Value value) throws IOException {
+        Object o = (value == null) ? null : ValueUtils.toObject(value);
+        if (o == null) {
+            out.writeByte(TYPE_NULL);
+        } else if (o instanceof Integer || o instanceof Long
+                || o instanceof Short || o instanceof Byte) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong(((Number) o).longValue());
+        } else if (o instanceof Number) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble(((Number) o).doubleValue());
+        } else {
+            JsonArray array = new JsonArray();
+            array.add(o);
+            byte[] bytes = array.encode();
+            out.writeByte(TYPE_JSON);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static Value readValue(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        if (type == TYPE_LONG) {
+            return new Value(in.readLong());
+        } else if (type == TYPE_DOUBLE) {
+            return new Value(in.readDouble());
+        } else if (type == TYPE_JSON) {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            JsonArray array = new JsonArray(new String(bytes, "UTF-8"));
+            return ValueUtils.toValue(array.get(0));
+        }
+        return null;
+    }
+
+    private static class Chunk implements Comparable<Chunk> {
+
+        private final File file;
+        private final long start;
+        private final long end;
+
+        Chunk(File file, long start, long end) {
+            this.file = file;
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * Reads the values of the range from the file of the chunk.
+         */
+        void read(long from, long to, List<Entry> out) throws IOException {
+            DataInputStream in = new DataInputStream(new GZIPInputStream(
+                    new BufferedInputStream(new FileInputStream(file))));
+            try {
+                int count = in.readInt();
+                for (int i = 0; i < count; ++i) {
+                    long time = in.readLong();
+                    Value value = readValue(in);
+                    if (time >= from && time <= to) {
+                        out.add(new Entry(time, value));
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        @Override
+        public int compareTo(Chunk o) {
+            if (end != o.end) {
+                return end < o.end ? -1 : 1;
+            }
+            return file.getName().compareTo(o.file.getName());
+        }
+
+        /**
+         * @return The chunk stored in the file or {@code null} if the file
+         *         is not a chunk.
+         */
+        static Chunk parse(File file) {
+            String name = file.getName();
+            if (!name.endsWith(CHUNK_SUFFIX)) {
+                return null;
+            }
+            name = name.substring(0, name.length() - CHUNK_SUFFIX.length());
+            String[] split = name.split("_");
+            if (split.length != 3) {
+                return null;
+            }
+            try {
+                long start = Long.parseLong(split[0]);
+                long end = Long.parseLong(split[1]);
+                return new Chunk(file, start, end);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    private static class Entry implements Comparable<Entry> {
+
+        private final long time;
+        private final Value value;
+
+        Entry(long time, Value value) {
+            this.time = time;
+            this.value = value;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            return time < o.time ? -1 : (time == o.time ? 0 : 1);
+        }
+    }
+}
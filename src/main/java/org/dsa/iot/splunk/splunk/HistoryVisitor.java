@@ -0,0 +1,18 @@
+package org.dsa.iot.splunk.splunk;
+
+import org.dsa.iot.dslink.node.value.Value;
+
+/**
+ * Receives the values of a path that are read from a local source of
+ * history, in time order.
+ *
+ * @author Samuel Grenier
+ */
+public interface HistoryVisitor {
+
+    /**
+     * @param time Time of the value in milliseconds.
+     * @param value Value that was read.
+     */
+    void handle(long time, Value value);
+}
@@ -0,0 +1,442 @@
+package org.dsa.iot.splunk.splunk;
+
+import com.splunk.Args;
+import com.splunk.Job;
+import com.splunk.JobResultsArgs;
+import com.splunk.ResponseMessage;
+import com.splunk.Service;
+import org.dsa.iot.dslink.util.Objects;
+import org.dsa.iot.dslink.util.handler.Handler;
+import org.dsa.iot.dslink.util.json.JsonArray;
+import org.dsa.iot.dslink.util.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the search jobs of a {@link Splunk} server until they complete.
+ * Jobs are dispatched without waiting on them and the status of every
+ * job submitted here is retrieved with a single request, filtered to
+ * their sids and to the fields needed to tell whether they are done. The
+ * poll interval starts short and backs off while no job completes. The
+ * amount of jobs running at once is bounded, further jobs wait in a queue
+ * until a slot is available.
+ *
+ * @author Samuel Grenier
+ */
+public class JobTracker {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JobTracker.class);
+    private static final long MIN_POLL_INTERVAL = 250;
+    private static final long MAX_POLL_INTERVAL = TimeUnit.SECONDS.toMillis(5);
+    private static final String[] STATUS_FIELDS = {
+            "sid", "isDone", "isFailed", "dispatchState"
+    };
+
+    private final Deque<Search> pending = new ArrayDeque<>();
+    private final Map<String, Search> running = new HashMap<>();
+    private final Splunk splunk;
+    private final int maxRunning;
+
+    /**
+     * Jobs that are being created and have no sid yet.
+     */
+    private int dispatching;
+    private long interval = MIN_POLL_INTERVAL;
+    private ScheduledFuture<?> poll;
+    private boolean polling;
+    private boolean stopped;
+
+    /**
+     * @param splunk Server the jobs run on.
+     * @param maxRunning Maximum amount of jobs running at once.
+     */
+    public JobTracker(Splunk splunk, int maxRunning) {
+        this.splunk = splunk;
+        this.maxRunning = Math.max(1, maxRunning);
+    }
+
+    /**
+     * Submits a search. The handler receives the results of the search in
+     * the XML format once the job completes. The stream must be closed by
+     * the handler. Searches that fail are logged and never reach the
+     * handler.
+     *
+     * @param query Query to search.
+     * @param onResults Handler that receives the results.
+     * @return The submitted search.
+     */
+    public Search submit(String query, Handler<InputStream> onResults) {
+        return submit(query, onResults, null);
+    }
+
+    /**
+     * Submits a search. The handler receives the results of the search in
+     * the XML format once the job completes. The stream must be closed by
+     * the handler.
+     *
+     * @param query Query to search.
+     * @param onResults Handler that receives the results.
+     * @param onFailure Handler called if the search could not be
+     *                  dispatched, failed, expired or its results could
+     *                  not be retrieved. Not called for searches that
+     *                  are cancelled. May be {@code null}.
+     * @return The submitted search.
+     */
+    public Search submit(String query,
+                         Handler<InputStream> onResults,
+                         Handler<Void> onFailure) {
+        Search search = new Search(query, onResults, onFailure);
+        synchronized (this) {
+            if (stopped) {
+                throw new IllegalStateException("Job tracker is stopped");
+            }
+            pending.add(search);
+        }
+        dispatch();
+        return search;
+    }
+
+    /**
+     * Cancels every job and discards the searches that are still queued.
+     */
+    public void stop() {
+        List<Search> cancel;
+        synchronized (this) {
+            stopped = true;
+            pending.clear();
+            cancel = new ArrayList<>(running.values());
+            running.clear();
+            if (poll != null) {
+                poll.cancel(false);
+                poll = null;
+            }
+        }
+        for (Search s : cancel) {
+            cancelJob(s.job);
+        }
+    }
+
+    /**
+     * @return Amount of searches that are queued or running.
+     */
+    public synchronized int getOutstanding() {
+        return pending.size() + dispatching + running.size();
+    }
+
+    private void dispatch() {
+        while (true) {
+            final Search search;
+            synchronized (this) {
+                if (stopped || pending.isEmpty()
+                        || dispatching + running.size() >= maxRunning) {
+                    return;
+                }
+                search = pending.poll();
+                dispatching++;
+            }
+
+            splunk.getService(new Handler<Service>() {
+                @Override
+                public void handle(Service service) {
+                    Job job = null;
+                    try {
+                        job = service.search(search.query);
+                    } catch (RuntimeException e) {
+                        LOGGER.warn("Failed to dispatch search: {}", search.query, e);
+                    }
+                    boolean cancelled;
+                    synchronized (JobTracker.this) {
+                        dispatching--;
+                        search.job = job;
+                        cancelled = search.cancelled || stopped;
+                        if (job != null && !cancelled) {
+                            running.put(job.getSid(), search);
+                            // A new job is likely to complete soon
+                            interval = MIN_POLL_INTERVAL;
+                            schedulePoll();
+                        }
+                    }
+                    if (cancelled) {
+                        cancelJob(job);
+                    } else if (job == null) {
+                        fail(search);
+                    }
+                    if (job == null || cancelled) {
+                        dispatch();
+                    }
+                }
+            });
+        }
+    }
+
+    private synchronized void cancel(Search search) {
+        if (search.cancelled) {
+            return;
+        }
+        search.cancelled = true;
+        if (pending.remove(search)) {
+            return;
+        }
+        Job job = search.job;
+        if (job != null && running.remove(job.getSid()) != null) {
+            cancelJob(job);
+            Objects.getDaemonThreadPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    dispatch();
+                }
+            });
+        }
+    }
+
+    private void cancelJob(final Job job) {
+        if (job == null) {
+            return;
+        }
+        splunk.getService(new Handler<Service>() {
+            @Override
+            public void handle(Service event) {
+                try {
+                    job.cancel();
+                } catch (RuntimeException e) {
+                    LOGGER.debug("Failed to cancel job {}", job.getSid(), e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Schedules the next poll if there are running jobs and a poll is not
+     * already scheduled or in progress.
+     */
+    private void schedulePoll() {
+        if (stopped || polling || running.isEmpty()) {
+            return;
+        }
+        if (poll != null) {
+            if (poll.getDelay(TimeUnit.MILLISECONDS) <= interval) {
+                return;
+            }
+            poll.cancel(false);
+        }
+        poll = Objects.getDaemonThreadPool().schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (JobTracker.this) {
+                    poll = null;
+                    if (stopped || polling) {
+                        return;
+                    }
+                    polling = true;
+                }
+                splunk.getService(new Handler<Service>() {
+                    @Override
+                    public void handle(Service service) {
+                        poll(service);
+                    }
+                });
+            }
+        }, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Retrieves the status of the running jobs and completes the jobs
+     * that are done.
+     */
+    private void poll(Service service) {
+        List<Search> done = new ArrayList<>();
+        List<Search> failed = new ArrayList<>();
+        boolean completed = false;
+        try {
+            List<String> sids;
+            synchronized (this) {
+                sids = new ArrayList<>(running.keySet());
+            }
+            Map<String, JsonObject> status = readStatus(service, sids);
+            synchronized (this) {
+                for (String sid : sids) {
+                    if (!running.containsKey(sid)) {
+                        // Cancelled in the meantime
+                        continue;
+                    }
+                    JsonObject s = status.get(sid);
+                    if (s == null) {
+                        // The job expired or was removed
+                        LOGGER.warn("Search job {} no longer exists", sid);
+                        failed.add(running.remove(sid));
+                        completed = true;
+                        continue;
+                    }
+
+                    String state = s.get("dispatchState");
+                    if (Boolean.TRUE.equals(s.get("isFailed"))
+                            || "FAILED".equals(state)) {
+                        Search search = running.remove(sid);
+                        LOGGER.warn("Search failed: {}", search.query);
+                        failed.add(search);
+                        completed = true;
+                    } else if (Boolean.TRUE.equals(s.get("isDone"))
+                            || "DONE".equals(state)) {
+                        done.add(running.remove(sid));
+                        completed = true;
+                    }
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.warn("Failed to poll search jobs", e);
+        } finally {
+            synchronized (this) {
+                polling = false;
+                if (completed) {
+                    interval = MIN_POLL_INTERVAL;
+                } else {
+                    interval = Math.min(interval * 2, MAX_POLL_INTERVAL);
+                }
+                schedulePoll();
+            }
+        }
+
+        for (Search search : failed) {
+            fail(search);
+        }
+        for (Search search : done) {
+            complete(search);
+        }
+        if (completed) {
+            dispatch();
+        }
+    }
+
+    private void complete(Search search) {
+        InputStream in;
+        try {
+            JobResultsArgs args = new JobResultsArgs();
+            args.setOutputMode(JobResultsArgs.OutputMode.XML);
+            args.setCount(0);
+            in = search.job.getResults(args);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Failed to retrieve results of {}", search.query, e);
+            fail(search);
+            return;
+        }
+
+        try {
+            search.onResults.handle(in);
+        } catch (RuntimeException e) {
+            LOGGER.error("Failed to handle results of {}", search.query, e);
+        }
+    }
+
+    private void fail(Search search) {
+        if (search.onFailure == null) {
+            return;
+        }
+        try {
+            search.onFailure.handle(null);
+        } catch (RuntimeException e) {
+            LOGGER.error("Failed to handle failure of {}", search.query, e);
+        }
+    }
+
+    /**
+     * Retrieves the status of the jobs with a single request that is
+     * filtered to their sids, other jobs on the search head are never
+     * listed.
+     *
+     * @param sids Jobs to retrieve the status of.
+     * @return The status of each job. Jobs that are not listed no longer
+     *         exist and map to {@code null}.
+     * @throws IOException If the status could not be retrieved.
+     */
+    private static Map<String, JsonObject> readStatus(Service service,
+                                                      List<String> sids) throws IOException {
+        StringBuilder filter = new StringBuilder();
+        for (String sid : sids) {
+            if (filter.length() > 0) {
+                filter.append(" OR ");
+            }
+            filter.append("sid=\"").append(sid).append('"');
+        }
+        Args args = new Args();
+        args.put("output_mode", "json");
+        args.put("count", 0);
+        args.put("search", filter.toString());
+        args.put("f", STATUS_FIELDS);
+        ResponseMessage resp = service.get("search/jobs", args);
+
+        Map<String, JsonObject> status = new HashMap<>();
+        for (String sid : sids) {
+            status.put(sid, null);
+        }
+        JsonObject obj = new JsonObject(readFully(resp.getContent()));
+        JsonArray entries = obj.get("entry");
+        if (entries != null) {
+            for (Object o : entries) {
+                JsonObject entry = (JsonObject) o;
+                JsonObject content = entry.get("content");
+                String sid = content.get("sid");
+                if (sid == null) {
+                    sid = entry.get("name");
+                }
+                if (status.containsKey(sid)) {
+                    status.put(sid, content);
+                }
+            }
+        }
+        return status;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try {
+            byte[] buf = new byte[8192];
+            int read;
+            while ((read = in.read(buf)) != -1) {
+                baos.write(buf, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * A search submitted to the tracker.
+     */
+    public class Search {
+
+        private final String query;
+        private final Handler<InputStream> onResults;
+        private final Handler<Void> onFailure;
+        private volatile Job job;
+        private boolean cancelled;
+
+        private Search(String query,
+                       Handler<InputStream> onResults,
+                       Handler<Void> onFailure) {
+            this.query = query;
+            this.onResults = onResults;
+            this.onFailure = onFailure;
+        }
+
+        /**
+         * Cancels the search. The handler will not receive results unless
+         * the job already completed.
+         */
+        public void cancel() {
+            JobTracker.this.cancel(this);
+        }
+    }
+}
@@ -0,0 +1,423 @@
+package org.dsa.iot.splunk.splunk;
+
+import org.dsa.iot.dslink.node.value.Value;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the results of history searches in memory. Entries are keyed by
+ * the path, interval, rollup and the time range of the search aligned to
+ * the buckets of the interval, or to buckets scaled to the range when
+ * there is no interval, so that repeated requests for a moving
+ * range share an entry until the range moves into another bucket. The
+ * least recently used entries are evicted once the cache exceeds its
+ * memory budget.
+ *
+ * Entries of values as they were written are extended by newer writes of
+ * their path. Entries of values that were rolled up by Splunk can not be
+ * extended, a write within their range invalidates them instead.
+ *
+ * @author Samuel Grenier
+ */
+public class QueryCache {
+
+    /**
+     * Estimated size of an entry without its values.
+     */
+    private static final long ENTRY_BYTES = 256;
+
+    /**
+     * Estimated size of a time and its value.
+     */
+    private static final long VALUE_BYTES = 48;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Set<Entry>> paths = new HashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final long maxBytes;
+    private final long lag;
+    private long bytes;
+
+    /**
+     * @param maxBytes Memory budget of the cache.
+     * @param lag Milliseconds that written values may take to become
+     *            searchable.
+     */
+    public QueryCache(long maxBytes, long lag) {
+        this.maxBytes = maxBytes;
+        this.lag = lag;
+    }
+
+    /**
+     * Lengths of the buckets that ranges without an interval are aligned
+     * to, in milliseconds.
+     */
+    private static final long[] BUCKETS = {
+            TimeUnit.SECONDS.toMillis(1),
+            TimeUnit.SECONDS.toMillis(10),
+            TimeUnit.MINUTES.toMillis(1),
+            TimeUnit.MINUTES.toMillis(5),
+            TimeUnit.MINUTES.toMillis(15),
+            TimeUnit.HOURS.toMillis(1),
+            TimeUnit.DAYS.toMillis(1)
+    };
+
+    /**
+     * Amount of buckets a range without an interval spans at most, the
+     * aligned range is larger than the requested range by at most two
+     * buckets.
+     */
+    private static final long RANGE_BUCKETS = 60;
+
+    /**
+     * Picks the bucket that a range without an interval is aligned to. The
+     * bucket grows with the range so that repeated requests for a moving
+     * range, such as the last few hours, keep sharing an entry for a while
+     * instead of moving into another bucket every second.
+     *
+     * @param range Length of the range in milliseconds.
+     * @return Length of the bucket in milliseconds.
+     */
+    public static long bucketOf(long range) {
+        long min = range / RANGE_BUCKETS;
+        for (long bucket : BUCKETS) {
+            if (bucket >= min) {
+                return bucket;
+            }
+        }
+        return BUCKETS[BUCKETS.length - 1];
+    }
+
+    /**
+     * Aligns the start of a range to a bucket.
+     *
+     * @param time Time in milliseconds.
+     * @param bucket Length of a bucket in milliseconds.
+     * @return Start of the bucket of the time.
+     */
+    public static long alignFrom(long time, long bucket) {
+        long rem = time % bucket;
+        return (rem < 0) ? time - rem - bucket : time - rem;
+    }
+
+    /**
+     * Aligns the end of a range to a bucket.
+     *
+     * @param time Time in milliseconds.
+     * @param bucket Length of a bucket in milliseconds.
+     * @return End of the bucket of the time, inclusive.
+     */
+    public static long alignTo(long time, long bucket) {
+        return alignFrom(time, bucket) + bucket - 1;
+    }
+
+    /**
+     * Looks up an entry.
+     *
+     * @param from Start of the aligned range.
+     * @param to End of the aligned range, inclusive.
+     * @return The entry or {@code null} if the results are not cached.
+     */
+    public synchronized Entry get(String path,
+                                  String interval,
+                                  String rollup,
+                                  long from,
+                                  long to) {
+        Entry e = entries.get(key(path, interval, rollup, from, to));
+        if (e == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return e;
+    }
+
+    /**
+     * Creates an entry that records the results of a search. The entry is
+     * only cached once it is put.
+     *
+     * @param from Start of the aligned range.
+     * @param to End of the aligned range, inclusive.
+     * @return The entry to record into.
+     * @see #put(Entry, Watch)
+     */
+    public Entry create(String path,
+                        String interval,
+                        String rollup,
+                        long from,
+                        long to) {
+        String key = key(path, interval, rollup, from, to);
+        return new Entry(key, path, from, to, maxBytes);
+    }
+
+    /**
+     * Caches a completely recorded entry. Values that were written by the
+     * watch of the path but may not have been searchable yet when the
+     * search started are merged from the recent samples of the watch into
+     * entries of written values. Entries that may be missing such values
+     * and can not be completed are discarded.
+     *
+     * @param entry Entry to cache.
+     * @param watch Watch of the path or {@code null} if it is not watched.
+     */
+    public synchronized void put(final Entry entry, Watch watch) {
+        if (entry.overflow) {
+            return;
+        }
+        boolean recent = entry.to >= entry.started - lag;
+        if (watch != null && entry.rolled) {
+            if (recent) {
+                final boolean[] any = new boolean[1];
+                long from = Math.max(entry.from, entry.started - lag);
+                boolean read = watch.readRecent(from, entry.to, new HistoryVisitor() {
+                    @Override
+                    public void handle(long time, Value value) {
+                        any[0] = true;
+                    }
+                });
+                if (!read || any[0]) {
+                    return;
+                }
+            }
+        } else if (watch != null) {
+            long from = entry.from;
+            if (entry.size > 0) {
+                from = entry.times[entry.size - 1] + 1;
+            }
+            boolean read = from > entry.to;
+            if (!read) {
+                read = watch.readRecent(from, entry.to, new HistoryVisitor() {
+                    @Override
+                    public void handle(long time, Value value) {
+                        entry.add(time, value);
+                    }
+                });
+            }
+            if ((!read && recent) || entry.overflow) {
+                return;
+            }
+        }
+
+        remove(entries.get(entry.key));
+        entries.put(entry.key, entry);
+        Set<Entry> set = paths.get(entry.path);
+        if (set == null) {
+            set = new HashSet<>();
+            paths.put(entry.path, set);
+        }
+        set.add(entry);
+        bytes += entry.bytes;
+        evict();
+    }
+
+    /**
+     * Updates the entries of a path with a value that was written.
+     *
+     * @param path Path of the value.
+     * @param time Time of the value.
+     * @param value Value that was written.
+     */
+    public synchronized void written(String path, long time, Value value) {
+        Set<Entry> set = paths.get(path);
+        if (set == null) {
+            return;
+        }
+        Iterator<Entry> it = set.iterator();
+        while (it.hasNext()) {
+            Entry e = it.next();
+            if (time < e.from || time > e.to) {
+                continue;
+            }
+            if (e.rolled) {
+                it.remove();
+                entries.remove(e.key);
+                bytes -= e.bytes;
+                continue;
+            }
+            // Watches write in time order, older values were either
+            // searched or merged when the entry was put.
+            if (e.size == 0 || time > e.times[e.size - 1]) {
+                if (e.bytes + VALUE_BYTES > maxBytes) {
+                    it.remove();
+                    entries.remove(e.key);
+                    bytes -= e.bytes;
+                } else {
+                    e.add(time, value);
+                    bytes += VALUE_BYTES;
+                }
+            }
+        }
+        if (set.isEmpty()) {
+            paths.remove(path);
+        }
+        evict();
+    }
+
+    /**
+     * Removes every entry.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        paths.clear();
+        bytes = 0;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    private void evict() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Entry e = it.next();
+            it.remove();
+            unlink(e);
+        }
+    }
+
+    private void remove(Entry e) {
+        if (e != null) {
+            entries.remove(e.key);
+            unlink(e);
+        }
+    }
+
+    private void unlink(Entry e) {
+        bytes -= e.bytes;
+        Set<Entry> set = paths.get(e.path);
+        if (set != null) {
+            set.remove(e);
+            if (set.isEmpty()) {
+                paths.remove(e.path);
+            }
+        }
+    }
+
+    private static String key(String path,
+                              String interval,
+                              String rollup,
+                              long from,
+                              long to) {
+        return path + '\n' + interval + '\n' + rollup + '\n' + from + '\n' + to;
+    }
+
+    /**
+     * The values of a path over an aligned range. An entry is filled by a
+     * single search before it is cached, after that it is only modified
+     * while the cache is locked.
+     */
+    public static class Entry {
+
+        private final String key;
+        private final String path;
+        private final long from;
+        private final long to;
+        private final long maxBytes;
+        private final long started = System.currentTimeMillis();
+
+        private long[] times = new long[16];
+        private Value[] values = new Value[16];
+        private int size;
+        private long bytes = ENTRY_BYTES;
+        private boolean rolled;
+        private boolean overflow;
+
+        private Entry(String key, String path, long from, long to, long maxBytes) {
+            this.key = key;
+            this.path = path;
+            this.from = from;
+            this.to = to;
+            this.maxBytes = maxBytes;
+        }
+
+        /**
+         * @return Start of the aligned range.
+         */
+        public long getFrom() {
+            return from;
+        }
+
+        /**
+         * @return End of the aligned range, inclusive.
+         */
+        public long getTo() {
+            return to;
+        }
+
+        /**
+         * Marks the values as rolled up by Splunk, their times are the
+         * start of their bucket.
+         */
+        public void setRolled() {
+            rolled = true;
+        }
+
+        public boolean isRolled() {
+            return rolled;
+        }
+
+        /**
+         * Adds a value, values must be added in time order. Values are
+         * dropped once the entry exceeds the budget of the cache, such an
+         * entry is never cached.
+         */
+        public synchronized void add(long time, Value value) {
+            if (overflow) {
+                return;
+            }
+            bytes += VALUE_BYTES;
+            if (bytes > maxBytes) {
+                overflow = true;
+                times = null;
+                values = null;
+                size = 0;
+                return;
+            }
+            if (size == times.length) {
+                times = Arrays.copyOf(times, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            times[size] = time;
+            values[size] = value;
+            size++;
+        }
+
+        /**
+         * Reads the values in time order.
+         *
+         * @param visitor Visitor that receives the values.
+         */
+        public void read(HistoryVisitor visitor) {
+            long[] t;
+            Value[] v;
+            int count;
+            synchronized (this) {
+                t = times;
+                v = values;
+                count = size;
+            }
+            // Values are only ever appended, so the arrays are safe to
+            // read up to the size at the time they were taken.
+            for (int i = 0; i < count; ++i) {
+                visitor.handle(t[i], v[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package org.dsa.iot.splunk.splunk;
+
+import org.dsa.iot.dslink.node.value.Value;
+
+/**
+ * A bounded ring of the most recent samples of a watch. Times and numeric
+ * values are held in primitive arrays. Non-numeric values are kept in a
+ * separate array that is only allocated once such a value is added.
+ *
+ * @author Samuel Grenier
+ */
+public class SampleRing {
+
+    /**
+     * Marks a sample whose value is {@code null}.
+     */
+    private static final Object NULL = new Object();
+
+    private final long[] times;
+    private final double[] numbers;
+    private Object[] others;
+
+    /**
+     * Index of the next sample to be written.
+     */
+    private int head;
+    private int size;
+
+    /**
+     * Time since which every sample is held.
+     */
+    private long covered;
+
+    /**
+     * @param capacity Maximum amount of samples held.
+     */
+    public SampleRing(int capacity) {
+        this.times = new long[capacity];
+        this.numbers = new double[capacity];
+        this.covered = System.currentTimeMillis();
+    }
+
+    public int getCapacity() {
+        return times.length;
+    }
+
+    /**
+     * Adds a sample, replacing the oldest sample once the ring is full.
+     *
+     * @param time Time of the sample.
+     * @param value Value of the sample.
+     */
+    public synchronized void add(long time, Value value) {
+        if (size == times.length) {
+            covered = Math.max(covered, times[head] + 1);
+        } else {
+            size++;
+        }
+
+        Number num = (value == null) ? null : value.getNumber();
+        times[head] = time;
+        if (num != null) {
+            numbers[head] = num.doubleValue();
+            if (others != null) {
+                others[head] = null;
+            }
+        } else {
+            if (others == null) {
+                others = new Object[times.length];
+            }
+            numbers[head] = Double.NaN;
+            others[head] = (value == null) ? NULL : value;
+        }
+        head = (head + 1) % times.length;
+    }
+
+    /**
+     * Reads the samples of a range in time order if the ring holds every
+     * sample of the range.
+     *
+     * @param from Start of the range in milliseconds.
+     * @param to End of the range in milliseconds, inclusive.
+     * @param visitor Visitor that receives the samples.
+     * @return Whether the range was read, {@code false} if it is not
+     *         completely held.
+     */
+    public boolean read(long from, long to, HistoryVisitor visitor) {
+        long[] t;
+        Value[] v;
+        int count;
+        synchronized (this) {
+            if (covered > from) {
+                return false;
+            }
+            t = new long[size];
+            v = new Value[size];
+            count = 0;
+            int start = (head - size + times.length) % times.length;
+            for (int i = 0; i < size; ++i) {
+                int index = (start + i) % times.length;
+                long time = times[index];
+                if (time < from || time > to) {
+                    continue;
+                }
+                t[count] = time;
+                Object other = (others == null) ? null : others[index];
+                if (other != null) {
+                    v[count] = (other == NULL) ? null : (Value) other;
+                } else {
+                    v[count] = new Value(numbers[index]);
+                }
+                count++;
+            }
+        }
+
+        // Samples are added in write order which is almost always time
+        // order, out of order samples are moved into place.
+        for (int i = 1; i < count; ++i) {
+            long time = t[i];
+            Value value = v[i];
+            int j = i - 1;
+            while (j >= 0 && t[j] > time) {
+                t[j + 1] = t[j];
+                v[j + 1] = v[j];
+                j--;
+            }
+            t[j + 1] = time;
+            v[j + 1] = value;
+        }
+
+        for (int i = 0; i < count; ++i) {
+            visitor.handle(t[i], v[i]);
+        }
+        return true;
+    }
+}
@@ -3,37 +3,97 @@ package org.dsa.iot.splunk.splunk;
 import com.splunk.Service;
 import com.splunk.ServiceArgs;
 import com.splunk.TcpInput;
+import org.dsa.iot.dslink.DSLink;
 import org.dsa.iot.dslink.node.Node;
 import org.dsa.iot.dslink.node.NodeBuilder;
 import org.dsa.iot.dslink.node.Permission;
 import org.dsa.iot.dslink.node.actions.Action;
 import org.dsa.iot.dslink.node.actions.ActionResult;
+import org.dsa.iot.dslink.node.Writable;
 import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.node.value.ValuePair;
+import org.dsa.iot.dslink.node.value.ValueType;
 import org.dsa.iot.splunk.actions.CreateWatchGroupAction;
 import org.dsa.iot.splunk.actions.QueryAction;
+import org.dsa.iot.splunk.output.BalancedOutput;
+import org.dsa.iot.splunk.output.Balancing;
+import org.dsa.iot.splunk.output.HecOutput;
+import org.dsa.iot.splunk.output.Output;
+import org.dsa.iot.splunk.output.OutputType;
+import org.dsa.iot.splunk.output.Spool;
+import org.dsa.iot.splunk.output.TcpOutput;
+import org.dsa.iot.splunk.telemetry.Histogram;
+import org.dsa.iot.splunk.telemetry.Telemetry;
 import org.dsa.iot.splunk.utils.LinkPair;
+import org.dsa.iot.splunk.utils.PathValuePair;
+import org.dsa.iot.dslink.util.Objects;
 import org.dsa.iot.dslink.util.handler.Handler;
+import org.dsa.iot.dslink.util.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.management.ObjectName;
+import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author Samuel Grenier
  */
 public class Splunk {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(Splunk.class);
+    private static final int CONNECT_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(5);
+    private static final int DEFAULT_MAX_SEARCHES = 8;
+    private static final long DEFAULT_TIME_SKEW = 60;
+    private static final int DEFAULT_HISTORY_BATCH_SIZE = 500;
+    private static final long DEFAULT_QUERY_CACHE_SIZE = 32;
+
+    private final Object outputLock = new Object();
     private LinkPair pair;
     private Node node;
 
     private ClientReceiver clientReceiver;
+    private JobTracker jobTracker;
     private String input;
-    private OutputStreamWriter writer;
-    private boolean running = true;
+    private OutputType outputType;
+    private String metricsIndex;
+    private List<String> endpoints;
+    private long timeSkew;
+    private int historyBatchSize;
+    private Output output;
+    private boolean connecting;
+    private volatile boolean running = true;
     private boolean writerEnabled = false;
 
+    private SplunkWriter writer;
+    private Spool spool;
+    private WatchCache watchCache;
+    private HistoryCache historyCache;
+    private QueryCache queryCache;
+    private EventBatch replayBatch;
+    private final Queue<EventBatch> undelivered = new ConcurrentLinkedQueue<>();
+    private volatile int replayRate;
+    private Node spoolPending;
+
+    private Telemetry telemetry;
+    private AtomicLong writtenBatches;
+    private AtomicLong writtenEvents;
+    private AtomicLong writtenBytes;
+    private AtomicLong failedWrites;
+    private AtomicLong spooledEvents;
+    private Histogram writeTimes;
+
     public Splunk(LinkPair pair, Node node) {
         node.setMetaData(this);
         this.pair = pair;
@@ -42,19 +102,42 @@ public class Splunk {
 
     public void stop() {
         running = false;
+        if (jobTracker != null) {
+            jobTracker.stop();
+        }
         clientReceiver.shutdown();
         if (writer != null) {
-            try {
-                writer.close();
-            } catch (IOException ignored) {
+            writer.stop();
+            // The writer thread exited, the state can be captured here
+            watchCache.save(saveState());
+            for (WatchGroup group : writer.getGroups()) {
+                group.stop();
+            }
+        }
+        if (historyCache != null) {
+            historyCache.close();
+        }
+        if (telemetry != null) {
+            telemetry.stop();
+        }
+        synchronized (outputLock) {
+            if (output != null) {
+                invalidateOutput(output);
             }
         }
+        if (spool != null) {
+            spool.close();
+        }
     }
 
     public boolean isRunning() {
         return running;
     }
 
+    public String getName() {
+        return node.getName();
+    }
+
     public void init() {
         {
             NodeBuilder builder = node.createChild("createWatchGroup");
@@ -82,6 +165,7 @@ public class Splunk {
                                 stop();
                             } catch (RuntimeException ignored) {
                             }
+                            deleteData();
                             Node node = event.getNode().getParent();
                             node.getParent().removeChild(node);
                         }
@@ -108,22 +192,105 @@ public class Splunk {
 
         clientReceiver = new ClientReceiver(args);
 
-        Value vIn = node.getConfig("input");
-        if (vIn != null) {
-            writerEnabled = true;
-            input = vIn.getString();
+        {
+            int max = DEFAULT_MAX_SEARCHES;
+            Value v = node.getConfig("maxSearches");
+            if (v != null) {
+                max = Math.max(1, v.getNumber().intValue());
+            }
+            jobTracker = new JobTracker(this, max);
+        }
+
+        {
+            long skew = DEFAULT_TIME_SKEW;
+            Value v = node.getConfig("timeSkew");
+            if (v != null) {
+                skew = Math.max(0, v.getNumber().longValue());
+            }
+            timeSkew = TimeUnit.SECONDS.toMillis(skew);
+        }
+
+        {
+            historyBatchSize = DEFAULT_HISTORY_BATCH_SIZE;
+            Value v = node.getConfig("historyBatchSize");
+            if (v != null) {
+                historyBatchSize = Math.max(1, v.getNumber().intValue());
+            }
+        }
+
+        {
+            Value v = node.getConfig("output");
+            if (v == null) {
+                outputType = OutputType.TCP;
+            } else {
+                outputType = OutputType.toEnum(v.getString());
+            }
+        }
+
+        {
+            Value v = node.getConfig("metricsIndex");
+            if (v != null && !v.getString().trim().isEmpty()) {
+                metricsIndex = v.getString().trim();
+                if (outputType != OutputType.HEC) {
+                    LOGGER.warn("Metrics require the HTTP Event Collector output");
+                }
+            }
+        }
+
+        endpoints = new ArrayList<>();
+        {
+            Value v = node.getConfig("endpoints");
+            if (v != null) {
+                for (String s : v.getString().split(",")) {
+                    s = s.trim();
+                    if (!s.isEmpty()) {
+                        endpoints.add(s);
+                    }
+                }
+            }
+        }
+
+        if (outputType == OutputType.HEC) {
+            writerEnabled = node.getConfig("hecToken") != null;
+        } else {
+            Value vIn = node.getConfig("input");
+            writerEnabled = vIn != null || !endpoints.isEmpty();
+            if (vIn != null) {
+                input = vIn.getString();
+            }
+        }
+
+        if (writerEnabled) {
+            Value v = node.getConfig("spool");
+            if (v != null && v.getBool()) {
+                initSpool();
+            }
+
+            v = node.getConfig("historyCache");
+            if (v != null && v.getBool()) {
+                initHistoryCache();
+            }
+
+            initQueryCache();
+
+            watchCache = new WatchCache(getWatchStateFile());
+            watchCache.load();
+
+            writer = new SplunkWriter(this, node.getName());
+            initTelemetry();
+            writer.start();
+
             Map<String, Node> children = node.getChildren();
             if (children != null) {
                 for (Node child : children.values()) {
-                    if (child.getAction() != null) {
+                    if (child.getAction() != null
+                            || child.getValueType() != null) {
                         continue;
                     }
                     WatchGroup group = new WatchGroup(this, child, pair);
                     group.init(true);
                 }
             }
-        } else {
-            writerEnabled = false;
         }
     }
 
@@ -131,13 +298,253 @@ public class Splunk {
         clientReceiver.get(onServiceReceived, false);
     }
 
-    public void getWriter(final Handler<OutputStreamWriter> onWriterReceived) {
-        if (!writerEnabled) {
-            return;
+    /**
+     * @return The tracker of the search jobs that run on this server.
+     */
+    public JobTracker getJobTracker() {
+        return jobTracker;
+    }
+
+    /**
+     * @return Milliseconds that the indexed time of an event may differ
+     *         from its timestamp, used to widen the bounds of searches.
+     */
+    public long getTimeSkew() {
+        return timeSkew;
+    }
+
+    /**
+     * @return Amount of history rows sent to a requester at once.
+     */
+    public int getHistoryBatchSize() {
+        return historyBatchSize;
+    }
+
+    /**
+     * @return The link that history requests are answered over.
+     */
+    public DSLink getResponder() {
+        return pair.getResponder();
+    }
+
+    /**
+     * @param path Path that is watched.
+     * @return The watch of the path in any group of this server or
+     *         {@code null} if the path is not watched.
+     */
+    public Watch getWatch(String path) {
+        if (writer == null) {
+            return null;
+        }
+        String name = path.replaceAll("/", "%2F");
+        for (WatchGroup group : writer.getGroups()) {
+            Node watches = group.getWatches();
+            Node n = (watches == null) ? null : watches.getChild(name);
+            Object meta = (n == null) ? null : n.getMetaData();
+            if (meta instanceof Watch) {
+                return (Watch) meta;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The local cache of written values or {@code null} if it is
+     *         disabled.
+     */
+    public HistoryCache getHistoryCache() {
+        return historyCache;
+    }
+
+    /**
+     * @return The cache of history searches or {@code null} if it is
+     *         disabled.
+     */
+    public QueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    public WatchCache getWatchCache() {
+        return watchCache;
+    }
+
+    /**
+     * Checkpoints the state of every watch. The state is captured by the
+     * writer thread and written to disk in the background.
+     */
+    protected void checkpoint() {
+        final JsonObject state = saveState();
+        Objects.getDaemonThreadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (watchCache) {
+                    // The final checkpoint at stop must not be overwritten
+                    if (running) {
+                        watchCache.save(state);
+                    }
+                }
+            }
+        });
+    }
+
+    private JsonObject saveState() {
+        JsonObject state = new JsonObject();
+        for (WatchGroup group : writer.getGroups()) {
+            state.put(group.getName(), group.saveState());
+        }
+        return state;
+    }
+
+    /**
+     * @return The format events must be encoded in for the configured
+     *         output.
+     */
+    public EventBatch.Format getFormat() {
+        if (outputType == OutputType.HEC) {
+            if (metricsIndex != null) {
+                return EventBatch.Format.METRICS;
+            }
+            return EventBatch.Format.HEC;
+        }
+        return EventBatch.Format.RAW;
+    }
+
+    /**
+     * @return The metrics index numeric values are written to or
+     *         {@code null} if values are written as events.
+     */
+    public String getMetricsIndex() {
+        if (getFormat() != EventBatch.Format.METRICS) {
+            return null;
         }
+        return metricsIndex;
+    }
+
+    /**
+     * @return A new batch in the format of the configured output.
+     */
+    public EventBatch newBatch() {
+        EventBatch batch = new EventBatch(getFormat());
+        batch.setMetricsIndex(getMetricsIndex());
+        return batch;
+    }
+
+    /**
+     * Publishes an update to the writer thread of this server.
+     *
+     * @param pair Update to publish.
+     * @return Whether the update was accepted.
+     */
+    public boolean publish(PathValuePair pair) {
+        return writer != null && writer.publish(pair);
+    }
+
+    public void addGroup(WatchGroup group) {
         if (writer != null) {
-            onWriterReceived.handle(writer);
-            return;
+            writer.addGroup(group);
+        }
+    }
+
+    public void removeGroup(WatchGroup group) {
+        if (writer != null) {
+            writer.removeGroup(group);
+        }
+    }
+
+    /**
+     * Writes a batch to the output. If the output is unavailable or the
+     * write fails then the batch is appended to the spool, if enabled.
+     * While the spool has events pending, batches are always appended to
+     * it to preserve the order of events.
+     *
+     * @param batch Batch to write.
+     * @return Whether the batch was written or spooled. If not, the batch
+     *         must be retried later.
+     */
+    public boolean write(EventBatch batch) {
+        if (spool != null && spool.hasPending()) {
+            return appendToSpool(batch);
+        } else if (!writeUndelivered()) {
+            return false;
+        }
+
+        Output out = getOutput();
+        if (out != null && writeOutput(out, batch)) {
+            return true;
+        }
+        return spool != null && appendToSpool(batch);
+    }
+
+    /**
+     * Writes the batches that a closed output handed back.
+     *
+     * @return Whether every batch was written.
+     */
+    private boolean writeUndelivered() {
+        EventBatch batch;
+        while ((batch = undelivered.peek()) != null) {
+            Output out = getOutput();
+            if (out == null || !writeOutput(out, batch)) {
+                return false;
+            }
+            undelivered.poll();
+        }
+        return true;
+    }
+
+    private boolean writeOutput(Output out, EventBatch batch) {
+        long start = System.nanoTime();
+        try {
+            out.write(batch);
+        } catch (IOException e) {
+            failedWrites.incrementAndGet();
+            LOGGER.warn("Failed to write batch", e);
+            invalidateOutput(out);
+            return false;
+        }
+        writeTimes.record(System.nanoTime() - start);
+        writtenBatches.incrementAndGet();
+        writtenEvents.addAndGet(batch.size());
+        writtenBytes.addAndGet(batch.getLength());
+        return true;
+    }
+
+    /**
+     * @return Whether a call to {@link #write(EventBatch)} can currently
+     *         succeed.
+     */
+    public boolean isWritable() {
+        return spool != null || getOutput() != null;
+    }
+
+    /**
+     * Retrieves the output to write events to. If indexer endpoints are
+     * configured then the output is balanced across them. Otherwise, if
+     * there is no connection to the TCP input yet then a connection is
+     * attempted in the background.
+     *
+     * @return The connected output or {@code null} if writing is disabled
+     *         or the connection is still being established.
+     */
+    public Output getOutput() {
+        if (!writerEnabled) {
+            return null;
+        }
+        synchronized (outputLock) {
+            if (output != null || connecting) {
+                return output;
+            } else if (!endpoints.isEmpty()) {
+                output = createBalancedOutput();
+                output.setUndeliveredHandler(undeliveredHandler());
+                return output;
+            } else if (outputType == OutputType.HEC) {
+                int port = node.getConfig("hecPort").getNumber().intValue();
+                String host = node.getConfig("host").getString();
+                output = createHecOutput(host + ":" + port);
+                output.setUndeliveredHandler(undeliveredHandler());
+                return output;
+            }
+            connecting = true;
         }
 
         getService(new Handler<Service>() {
@@ -147,12 +554,327 @@ public class Splunk {
                     TcpInput in = (TcpInput) svc.getInputs().get(input);
                     Socket sock = in.attach();
                     OutputStream stream = sock.getOutputStream();
-                    writer = new OutputStreamWriter(stream, "UTF-8");
-                    onWriterReceived.handle(writer);
+                    stream = new BufferedOutputStream(stream);
+                    synchronized (outputLock) {
+                        output = new TcpOutput(stream);
+                    }
                 } catch (Exception e) {
-                    throw new RuntimeException(e);
+                    LOGGER.error("Failed to attach to input: {}", input, e);
+                } finally {
+                    synchronized (outputLock) {
+                        connecting = false;
+                    }
                 }
             }
         });
+
+        synchronized (outputLock) {
+            return output;
+        }
+    }
+
+    /**
+     * Closes the output after a failed write. The next call to
+     * {@link #getOutput()} will reconnect.
+     *
+     * @param out Output that failed.
+     */
+    public void invalidateOutput(Output out) {
+        synchronized (outputLock) {
+            if (output != out) {
+                return;
+            }
+            output = null;
+        }
+        out.close();
+    }
+
+    private Output createBalancedOutput() {
+        int connections = 1;
+        {
+            Value v = node.getConfig("connections");
+            if (v != null) {
+                connections = Math.max(1, v.getNumber().intValue());
+            }
+        }
+        Balancing balancing = Balancing.PATH_HASH;
+        {
+            Value v = node.getConfig("balancing");
+            if (v != null) {
+                balancing = Balancing.toEnum(v.getString());
+            }
+        }
+
+        BalancedOutput.Connector connector = new BalancedOutput.Connector() {
+            @Override
+            public Output connect(String endpoint) throws IOException {
+                if (outputType == OutputType.HEC) {
+                    return createHecOutput(endpoint);
+                }
+                return createTcpOutput(endpoint);
+            }
+        };
+        return new BalancedOutput(endpoints, connections,
+                                  balancing, getFormat(), connector);
+    }
+
+    /**
+     * Connects directly to a TCP input of an indexer.
+     *
+     * @param endpoint Host and port of the input.
+     */
+    private Output createTcpOutput(String endpoint) throws IOException {
+        int i = endpoint.lastIndexOf(':');
+        if (i <= 0) {
+            throw new IOException("Endpoint is missing a port: " + endpoint);
+        }
+        String host = endpoint.substring(0, i);
+        int port;
+        try {
+            port = Integer.parseInt(endpoint.substring(i + 1));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid endpoint port: " + endpoint);
+        }
+
+        Socket sock = new Socket();
+        try {
+            sock.setKeepAlive(true);
+            sock.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+            OutputStream stream = sock.getOutputStream();
+            return new TcpOutput(new BufferedOutputStream(stream));
+        } catch (IOException e) {
+            sock.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param endpoint Host and port of the collector.
+     */
+    private Output createHecOutput(String endpoint) {
+        String scheme = node.getConfig("ssl").getBool() ? "https" : "http";
+        String url = scheme + "://" + endpoint;
+
+        String token = node.getConfig("hecToken").getString();
+        int inFlight = node.getConfig("maxInFlight").getNumber().intValue();
+        boolean ack = node.getConfig("hecAck").getBool();
+        return new HecOutput(url, token, inFlight, ack);
+    }
+
+    /**
+     * Batches that an output could not deliver before it was closed were
+     * already counted as written. They are appended to the spool, if
+     * enabled, or otherwise written again before the next batch.
+     */
+    private Handler<EventBatch> undeliveredHandler() {
+        return new Handler<EventBatch>() {
+            @Override
+            public void handle(EventBatch batch) {
+                if (spool != null && appendToSpool(batch)) {
+                    return;
+                } else if (!running) {
+                    LOGGER.warn("Dropping {} undelivered events on stop",
+                                batch.size());
+                    return;
+                }
+                undelivered.add(batch);
+            }
+        };
+    }
+
+    private boolean appendToSpool(EventBatch batch) {
+        try {
+            if (spool.append(batch)) {
+                spooledEvents.addAndGet(batch.size());
+                return true;
+            }
+            LOGGER.warn("Spool is full, unable to store batch");
+        } catch (IOException e) {
+            LOGGER.error("Failed to append batch to spool", e);
+        }
+        return false;
+    }
+
+    private void initTelemetry() {
+        String name = "type=Server,name=" + ObjectName.quote(node.getName());
+        telemetry = new Telemetry(node, name);
+        telemetry.gauge("pendingUpdates", "Pending Updates", new Telemetry.Gauge() {
+            @Override
+            public long get() {
+                return writer.getPending();
+            }
+        });
+        telemetry.gauge("droppedUpdates", "Dropped Updates", new Telemetry.Gauge() {
+            @Override
+            public long get() {
+                return writer.getDropped();
+            }
+        });
+        writtenBatches = telemetry.counter("writtenBatches", "Written Batches");
+        writtenEvents = telemetry.counter("writtenEvents", "Written Events");
+        writtenBytes = telemetry.counter("writtenBytes", "Written Bytes");
+        failedWrites = telemetry.counter("failedWrites", "Failed Writes");
+        spooledEvents = telemetry.counter("spooledEvents", "Spooled Events");
+        writeTimes = telemetry.histogram("writeLatency", "Write Latency");
+        if (queryCache != null) {
+            telemetry.gauge("queryCacheHits", "Query Cache Hits", new Telemetry.Gauge() {
+                @Override
+                public long get() {
+                    return queryCache.getHits();
+                }
+            });
+            telemetry.gauge("queryCacheMisses", "Query Cache Misses", new Telemetry.Gauge() {
+                @Override
+                public long get() {
+                    return queryCache.getMisses();
+                }
+            });
+            telemetry.gauge("queryCacheBytes", "Query Cache Bytes", new Telemetry.Gauge() {
+                @Override
+                public long get() {
+                    return queryCache.getBytes();
+                }
+            });
+        }
+        telemetry.start();
+    }
+
+    /**
+     * @param type Type of data stored in the directory.
+     * @return Directory of the data of this server.
+     */
+    private File getDataDir(String type) {
+        return new File(new File(pair.getDataDir(), type), node.getName());
+    }
+
+    private File getWatchStateFile() {
+        File dir = new File(pair.getDataDir(), "metadata");
+        return new File(dir, node.getName() + ".json");
+    }
+
+    /**
+     * Deletes the spool, history cache and watch state of a stopped
+     * server so that a server created later with the same name starts
+     * out clean.
+     */
+    private void deleteData() {
+        delete(getDataDir("spool"));
+        delete(getDataDir("history"));
+        delete(getWatchStateFile());
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            LOGGER.warn("Failed to delete {}", file);
+        }
+    }
+
+    private void initHistoryCache() {
+        long retention = node.getConfig("historyCacheRetention").getNumber().longValue();
+        retention = TimeUnit.HOURS.toMillis(retention);
+        long maxSize = node.getConfig("historyCacheSize").getNumber().longValue();
+        maxSize *= 1024 * 1024;
+        File dir = getDataDir("history");
+        try {
+            historyCache = new HistoryCache(dir, retention, maxSize);
+        } catch (IOException e) {
+            LOGGER.error("Failed to open history cache: {}", dir, e);
+        }
+    }
+
+    /**
+     * The query cache relies on the writes of this link to invalidate its
+     * entries, so it is only enabled along with the writer.
+     */
+    private void initQueryCache() {
+        long maxSize = DEFAULT_QUERY_CACHE_SIZE;
+        Value v = node.getConfig("queryCacheSize");
+        if (v != null) {
+            maxSize = Math.max(0, v.getNumber().longValue());
+        }
+        if (maxSize > 0) {
+            queryCache = new QueryCache(maxSize * 1024 * 1024, timeSkew);
+        }
+    }
+
+    private void initSpool() {
+        long maxSize = node.getConfig("spoolMaxSize").getNumber().longValue();
+        maxSize *= 1024 * 1024;
+        File dir = getDataDir("spool");
+        try {
+            spool = new Spool(dir, maxSize);
+        } catch (IOException e) {
+            LOGGER.error("Failed to open spool: {}", dir, e);
+            return;
+        }
+        replayBatch = newBatch();
+
+        {
+            NodeBuilder builder = node.createChild("spoolPending");
+            builder.setDisplayName("Spool Pending");
+            builder.setValueType(ValueType.NUMBER);
+            builder.setValue(new Value(spool.getPendingEvents()));
+            builder.setSerializable(false);
+            spoolPending = builder.build();
+        }
+
+        {
+            NodeBuilder builder = node.createChild("spoolReplayRate");
+            builder.setDisplayName("Spool Replay Rate");
+            builder.setValueType(ValueType.NUMBER);
+            builder.setValue(new Value(10000));
+            builder.setWritable(Writable.WRITE);
+            builder.getListener().setValueHandler(new Handler<ValuePair>() {
+                @Override
+                public void handle(ValuePair event) {
+                    int rate = event.getCurrent().getNumber().intValue();
+                    if (rate <= 0) {
+                        rate = 1;
+                        event.setCurrent(new Value(rate));
+                    }
+                    replayRate = rate;
+                }
+            });
+            Node n = builder.build();
+            replayRate = Math.max(1, n.getValue().getNumber().intValue());
+        }
+    }
+
+    protected boolean hasSpool() {
+        return spool != null;
+    }
+
+    /**
+     * Replays up to a second worth of spooled events, as limited by the
+     * replay rate. Called by the writer thread once a second.
+     */
+    protected void replaySpool() {
+        if (spool.hasPending()) {
+            Output out = getOutput();
+            int budget = replayRate;
+            try {
+                while (out != null && budget > 0 && spool.read(replayBatch)) {
+                    if (!writeOutput(out, replayBatch)) {
+                        break;
+                    }
+                    spool.commit(replayBatch);
+                    budget -= replayBatch.size();
+                }
+            } catch (IOException e) {
+                LOGGER.error("Failed to read spool", e);
+            }
+            replayBatch.clear();
+        }
+
+        Value pending = new Value(spool.getPendingEvents());
+        if (!pending.equals(spoolPending.getValue())) {
+            spoolPending.setValue(pending);
+        }
     }
 }
@@ -0,0 +1,230 @@
+package org.dsa.iot.splunk.splunk;
+
+import org.dsa.iot.dslink.util.handler.Handler;
+import org.dsa.iot.splunk.utils.PathValuePair;
+import org.dsa.iot.splunk.utils.RingBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The single writer thread of a {@link Splunk} server. Subscription
+ * updates are published into a lock-free ring buffer and consumed here,
+ * where they are filtered by their watch group, queued, encoded and
+ * written. Subscription threads therefore never block on Splunk I/O.
+ *
+ * While the writer is busy writing, the ring may fill up. Updates are
+ * then held back by their watch group, which applies its overflow policy,
+ * until the ring was drained. Updates are only dropped here if their
+ * watch no longer belongs to a group.
+ *
+ * @author Samuel Grenier
+ */
+public class SplunkWriter implements Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SplunkWriter.class);
+    private static final int RING_SIZE = 1 << 16;
+    private static final int DRAIN_LIMIT = 4096;
+    private static final long MAX_PARK = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long REPLAY_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+    private static final long CHECKPOINT_INTERVAL = TimeUnit.SECONDS.toNanos(30);
+
+    private final RingBuffer<PathValuePair> ring = new RingBuffer<>(RING_SIZE);
+    private final List<WatchGroup> groups = new CopyOnWriteArrayList<>();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Splunk splunk;
+    private final String name;
+
+    private final Handler<PathValuePair> dispatcher = new Handler<PathValuePair>() {
+        @Override
+        public void handle(PathValuePair pair) {
+            WatchGroup group = pair.getWatch().getGroup();
+            if (group != null) {
+                group.write(pair);
+            }
+        }
+    };
+
+    private volatile boolean running;
+    private volatile boolean parked;
+    private volatile boolean overflowing;
+    private Thread thread;
+    private long lastReplay;
+    private long lastCheckpoint;
+
+    public SplunkWriter(Splunk splunk, String name) {
+        this.splunk = splunk;
+        this.name = name;
+        this.lastReplay = System.nanoTime();
+        this.lastCheckpoint = lastReplay;
+    }
+
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this, "Splunk Writer - " + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the writer thread. Anything still in the ring is filtered and
+     * a final flush of every group is attempted before the thread exits.
+     */
+    public synchronized void stop() {
+        if (thread == null) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+
+    /**
+     * Publishes an update to the writer. Safe to call from any thread.
+     *
+     * @param pair Update to publish.
+     * @return Whether the update was accepted, {@code false} if it was
+     *         discarded.
+     */
+    public boolean publish(PathValuePair pair) {
+        // Once updates overflow, later updates are held back as well so
+        // they are not filtered before older ones
+        if (overflowing || !ring.offer(pair)) {
+            WatchGroup group = pair.getWatch().getGroup();
+            if (group == null) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            overflowing = true;
+            if (!group.overflow(pair)) {
+                return false;
+            }
+        }
+        if (parked) {
+            Thread t = thread;
+            if (t != null) {
+                LockSupport.unpark(t);
+            }
+        }
+        return true;
+    }
+
+    public void addGroup(WatchGroup group) {
+        groups.add(group);
+    }
+
+    public void removeGroup(WatchGroup group) {
+        groups.remove(group);
+    }
+
+    public List<WatchGroup> getGroups() {
+        return groups;
+    }
+
+    /**
+     * @return Approximate amount of updates waiting to be filtered.
+     */
+    public int getPending() {
+        return ring.size();
+    }
+
+    /**
+     * @return Amount of updates rejected due to the ring being full while
+     *         their watch did not belong to a group.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                int drained = ring.drain(dispatcher, DRAIN_LIMIT);
+                drained += drainOverflow();
+                long wait = process(System.nanoTime());
+                if (drained == 0) {
+                    parked = true;
+                    if (ring.isEmpty() && running) {
+                        LockSupport.parkNanos(this, wait);
+                    }
+                    parked = false;
+                }
+            } catch (Exception e) {
+                LOGGER.error("Error in writer loop of {}", name, e);
+            }
+        }
+
+        try {
+            ring.drain(dispatcher, Integer.MAX_VALUE);
+            drainOverflow();
+            for (WatchGroup group : groups) {
+                group.flush();
+            }
+        } catch (Exception e) {
+            LOGGER.error("Failed final flush of {}", name, e);
+        }
+    }
+
+    /**
+     * Filters the updates held back by each group once the ring was
+     * drained, after which updates are published into the ring again.
+     *
+     * @return Amount of updates filtered.
+     */
+    private int drainOverflow() {
+        if (!ring.isEmpty()) {
+            return 0;
+        }
+        // Groups are drained even if nothing overflowed, a producer may
+        // have held back an update just as overflowing was reset
+        overflowing = false;
+        int drained = 0;
+        for (WatchGroup group : groups) {
+            drained += group.drainOverflow();
+        }
+        return drained;
+    }
+
+    /**
+     * Flushes every group that is due, replays the spool and checkpoints
+     * the state of the watches.
+     *
+     * @param now Current time in nanoseconds.
+     * @return Nanoseconds until something needs to be processed again.
+     */
+    private long process(long now) {
+        long wait = MAX_PARK;
+        for (WatchGroup group : groups) {
+            wait = Math.min(wait, group.flushIfDue(now));
+        }
+
+        if (splunk.hasSpool()) {
+            if (now - lastReplay >= REPLAY_INTERVAL) {
+                lastReplay = now;
+                splunk.replaySpool();
+            }
+            wait = Math.min(wait, lastReplay + REPLAY_INTERVAL - now);
+        }
+
+        if (now - lastCheckpoint >= CHECKPOINT_INTERVAL) {
+            lastCheckpoint = now;
+            splunk.checkpoint();
+        }
+        wait = Math.min(wait, lastCheckpoint + CHECKPOINT_INTERVAL - now);
+        return Math.max(0, wait);
+    }
+}
@@ -0,0 +1,125 @@
+package org.dsa.iot.splunk.splunk;
+
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.splunk.utils.PathValuePair;
+
+import java.util.List;
+
+/**
+ * Swinging door trend compression of a single watch. Only the points that
+ * are needed to reconstruct the signal by linear interpolation within the
+ * tolerance are written. The latest point is held back until a later
+ * point falls outside of the door or until it is released.
+ *
+ * The door is the range of slopes of a line starting at the last written
+ * point that stays within the tolerance of every point since. A point is
+ * covered when the line to it falls inside the door, after which it
+ * narrows the door. Once a point isn't covered the held point is written
+ * and becomes the new starting point.
+ *
+ * Non-numeric values and values that don't move forward in time can't
+ * be interpolated and are always written.
+ *
+ * Only accessed by the writer thread.
+ *
+ * @author Samuel Grenier
+ */
+public class SwingingDoor {
+
+    private PathValuePair archived;
+    private PathValuePair held;
+    private double minSlope;
+    private double maxSlope;
+
+    /**
+     * Adds a point to the door.
+     *
+     * @param pair Point to add.
+     * @param tolerance Maximum deviation of the reconstructed signal.
+     * @param out Receives the points that must be written, in order.
+     */
+    public void update(PathValuePair pair, double tolerance, List<PathValuePair> out) {
+        if (archived == null) {
+            archive(pair, out);
+            return;
+        }
+
+        if (fits(pair, tolerance)) {
+            held = pair;
+            return;
+        }
+
+        // The held point is the last one the door could cover
+        release(out);
+        if (!fits(pair, tolerance)) {
+            archive(pair, out);
+            return;
+        }
+        held = pair;
+    }
+
+    /**
+     * Writes the held point, if any, and makes it the new starting point.
+     *
+     * @param out Receives the held point.
+     */
+    public void release(List<PathValuePair> out) {
+        if (held != null) {
+            archive(held, out);
+        }
+    }
+
+    /**
+     * @return Whether a point is being held back.
+     */
+    public boolean isHolding() {
+        return held != null;
+    }
+
+    /**
+     * Checks whether the door still covers the point, narrowing the door
+     * if it does.
+     */
+    private boolean fits(PathValuePair pair, double tolerance) {
+        double v0;
+        double v;
+        {
+            Number n0 = toNumber(archived.getValue());
+            Number n = toNumber(pair.getValue());
+            if (n0 == null || n == null) {
+                return false;
+            }
+            v0 = n0.doubleValue();
+            v = n.doubleValue();
+        }
+        long dt = pair.getTime() - archived.getTime();
+        if (dt <= 0) {
+            return false;
+        }
+
+        // The line to the point itself must be inside the door, otherwise
+        // writing the point would not reconstruct the earlier points
+        double slope = (v - v0) / dt;
+        if (!(slope >= minSlope && slope <= maxSlope)) {
+            return false;
+        }
+        minSlope = Math.max(minSlope, (v - v0 - tolerance) / dt);
+        maxSlope = Math.min(maxSlope, (v - v0 + tolerance) / dt);
+        return true;
+    }
+
+    private void archive(PathValuePair pair, List<PathValuePair> out) {
+        out.add(pair);
+        archived = pair;
+        held = null;
+        minSlope = Double.NEGATIVE_INFINITY;
+        maxSlope = Double.POSITIVE_INFINITY;
+    }
+
+    private static Number toNumber(Value value) {
+        if (value == null) {
+            return null;
+        }
+        return value.getNumber();
+    }
+}
@@ -1,24 +1,28 @@
 package org.dsa.iot.splunk.splunk;
 
-import com.splunk.*;
 import org.dsa.iot.dslink.link.Requester;
 import org.dsa.iot.dslink.node.Node;
 import org.dsa.iot.dslink.node.NodeBuilder;
+import org.dsa.iot.dslink.node.Writable;
 import org.dsa.iot.dslink.node.actions.Action;
 import org.dsa.iot.dslink.node.value.SubscriptionValue;
 import org.dsa.iot.dslink.node.value.Value;
 import org.dsa.iot.dslink.node.value.ValuePair;
 import org.dsa.iot.dslink.node.value.ValueType;
+import org.dsa.iot.dslink.node.value.ValueUtils;
 import org.dsa.iot.splunk.utils.LinkPair;
+import org.dsa.iot.splunk.utils.LoggingType;
 import org.dsa.iot.splunk.utils.PathValuePair;
 import org.dsa.iot.splunk.utils.TimeParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.dsa.iot.dslink.util.handler.Handler;
+import org.dsa.iot.dslink.util.json.JsonObject;
 
-import java.io.IOException;
-import java.io.InputStream;
 import java.lang.ref.WeakReference;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Samuel Grenier
@@ -26,6 +30,7 @@ import java.lang.ref.WeakReference;
 public class Watch implements Handler<SubscriptionValue> {
 
     private static final Logger LOGGER;
+    private static final String GROUP_DEFAULT = "Group Default";
     private final WeakReference<WatchGroup> group;
     private final Node dataNode;
     private final String path;
@@ -37,8 +42,25 @@ public class Watch implements Handler<SubscriptionValue> {
     private final Node startNode;
     private final Node endNode;
 
-    // Data tracking
+    // Logging policy, overrides the group when set
+    private volatile LoggingType loggingType;
+    private volatile double deadband;
+    private volatile boolean deadbandPercent;
+    private volatile long maxSilence;
+
+    // Range of written data
+    private long startTime;
+    private long endTime;
+
+    // Data tracking, only accessed by the writer thread
     private long lastIntervalUpdate;
+    private Value lastValue;
+    private Value lastLoggedValue;
+    private long lastLoggedTime;
+    private SwingingDoor swingingDoor;
+
+    // Recently written samples, written by the writer thread
+    private volatile SampleRing recent;
 
     public Watch(WatchGroup group,
                  Node watchNode,
@@ -47,6 +69,7 @@ public class Watch implements Handler<SubscriptionValue> {
         this.watchNode = watchNode;
         this.dataNode = DataNode.initNodeFromPath(group, path);
         this.path = path;
+        watchNode.setMetaData(this);
 
         realTimeNode = watchNode.createChild("realTimeValue").build();
         lastWrittenNode = watchNode.createChild("lastWrittenValue").build();
@@ -56,14 +79,18 @@ public class Watch implements Handler<SubscriptionValue> {
         initUnsubscribe();
         initRealTimeValue();
         initDbValue();
-        initStartValue();
-        initEndValue();
+        initDateValues();
+        initSettings();
     }
 
     public Node getDataNode() {
         return dataNode;
     }
 
+    public String getPath() {
+        return path;
+    }
+
     public void init() {
         watchNode.getListener().setValueHandler(new Handler<ValuePair>() {
             @Override
@@ -99,7 +126,11 @@ public class Watch implements Handler<SubscriptionValue> {
 
         LOGGER.debug("Received update for {} of {}", path, sValue);
         long time = TimeParser.parse(value.getTimeStamp());
-        getGroup().write(new PathValuePair(this, path, value, time));
+        WatchGroup group = getGroup();
+        PathValuePair pair = new PathValuePair(this, path, value, time);
+        if (!group.getSplunk().publish(pair)) {
+            LOGGER.debug("Dropped update for {}", path);
+        }
     }
 
     public void subscribe() {
@@ -121,10 +152,6 @@ public class Watch implements Handler<SubscriptionValue> {
         lastWrittenNode.setValue(value);
     }
 
-    protected void setEndDate(Value value) {
-        endNode.setValue(value);
-    }
-
     protected void setLastIntervalUpdate(long time) {
         this.lastIntervalUpdate = time;
     }
@@ -133,7 +160,196 @@ public class Watch implements Handler<SubscriptionValue> {
         return lastIntervalUpdate;
     }
 
-    private WatchGroup getGroup() {
+    /**
+     * @return The last update that was received, written or not.
+     */
+    protected Value getLastValue() {
+        return lastValue;
+    }
+
+    protected void setLastValue(Value value) {
+        this.lastValue = value;
+    }
+
+    /**
+     * @return The last update that was queued for writing.
+     */
+    protected Value getLastLoggedValue() {
+        return lastLoggedValue;
+    }
+
+    /**
+     * @return Time of the last update that was queued for writing.
+     */
+    protected long getLastLoggedTime() {
+        return lastLoggedTime;
+    }
+
+    protected void setLastLogged(PathValuePair pair) {
+        this.lastLoggedValue = pair.getValue();
+        this.lastLoggedTime = pair.getTime();
+    }
+
+    /**
+     * Adds a written value to the ring of recent samples. Called by the
+     * writer thread.
+     *
+     * @param time Time of the value.
+     * @param value Value that was written.
+     * @param capacity Amount of samples to hold, 0 disables the ring.
+     */
+    protected void addRecent(long time, Value value, int capacity) {
+        SampleRing ring = recent;
+        if (capacity <= 0) {
+            recent = null;
+            return;
+        } else if (ring == null || ring.getCapacity() != capacity) {
+            ring = new SampleRing(capacity);
+            recent = ring;
+        }
+        ring.add(time, value);
+    }
+
+    /**
+     * Reads recently written values of the watch.
+     *
+     * @param from Start of the range in milliseconds.
+     * @param to End of the range in milliseconds, inclusive.
+     * @param visitor Visitor that receives the values.
+     * @return Whether the range was read, {@code false} if the recent
+     *         samples do not cover it.
+     */
+    public boolean readRecent(long from, long to, HistoryVisitor visitor) {
+        SampleRing ring = recent;
+        return ring != null && ring.read(from, to, visitor);
+    }
+
+    /**
+     * @return Swinging door state of this watch, created on first use.
+     */
+    protected SwingingDoor getSwingingDoor() {
+        if (swingingDoor == null) {
+            swingingDoor = new SwingingDoor();
+        }
+        return swingingDoor;
+    }
+
+    /**
+     * @return The logging type of this watch or {@code null} to use the
+     *         logging type of the group.
+     */
+    protected LoggingType getLoggingType() {
+        return loggingType;
+    }
+
+    /**
+     * @return Maximum time in milliseconds without a write before the
+     *         last value is written again, 0 if disabled.
+     */
+    protected long getMaxSilence() {
+        return maxSilence;
+    }
+
+    /**
+     * Checks whether a numeric update moved far enough from the last
+     * logged value to be written. A percent deadband is relative to the
+     * last logged value.
+     *
+     * @param update Update to check.
+     * @return Whether the update exceeds the deadband. Always {@code true}
+     *         if there is no deadband or either value is not numeric.
+     */
+    protected boolean exceedsDeadband(Value update) {
+        double band = deadband;
+        Value logged = lastLoggedValue;
+        if (band <= 0 || logged == null || update == null) {
+            return true;
+        }
+        Number prev = logged.getNumber();
+        Number curr = update.getNumber();
+        if (prev == null || curr == null) {
+            return true;
+        }
+        double p = prev.doubleValue();
+        double c = curr.doubleValue();
+        if (deadbandPercent) {
+            band = Math.abs(p) * band / 100;
+        }
+        return Math.abs(c - p) > band;
+    }
+
+    /**
+     * @return Whether the watch is still enabled and part of its group.
+     */
+    protected boolean isActive() {
+        WatchGroup group = getGroup();
+        if (group == null || group.getWatches() == null) {
+            return false;
+        }
+        Node n = group.getWatches().getChild(watchNode.getName());
+        Value v = watchNode.getValue();
+        return n == watchNode && v != null && v.getBool();
+    }
+
+    /**
+     * Captures the state of the watch so that it can be restored after a
+     * restart. Called by the writer thread.
+     *
+     * @return State of the watch.
+     */
+    protected JsonObject saveState() {
+        JsonObject obj = new JsonObject();
+        synchronized (this) {
+            obj.put("start", startTime);
+            obj.put("end", endTime);
+        }
+        putValue(obj, "lastWritten", lastWrittenNode.getValue());
+        putValue(obj, "lastValue", lastValue);
+        putValue(obj, "lastLogged", lastLoggedValue);
+        obj.put("lastLoggedTime", lastLoggedTime);
+        obj.put("lastIntervalUpdate", lastIntervalUpdate);
+        return obj;
+    }
+
+    /**
+     * Restores the state that was captured by {@link #saveState()}. Must
+     * be called before the watch is subscribed.
+     *
+     * @param obj State of the watch.
+     */
+    protected void restoreState(JsonObject obj) {
+        updateDates(getLong(obj, "start"), getLong(obj, "end"));
+        Value written = getValue(obj, "lastWritten");
+        if (written != null) {
+            setLastWrittenValue(written);
+        }
+        lastValue = getValue(obj, "lastValue");
+        lastLoggedValue = getValue(obj, "lastLogged");
+        lastLoggedTime = getLong(obj, "lastLoggedTime");
+        lastIntervalUpdate = getLong(obj, "lastIntervalUpdate");
+    }
+
+    private static void putValue(JsonObject obj, String name, Value value) {
+        if (value == null) {
+            return;
+        }
+        Object o = ValueUtils.toObject(value);
+        if (o != null && !(o instanceof byte[])) {
+            obj.put(name, o);
+        }
+    }
+
+    private static Value getValue(JsonObject obj, String name) {
+        Object o = obj.get(name);
+        return (o == null) ? null : ValueUtils.toValue(o);
+    }
+
+    private static long getLong(JsonObject obj, String name) {
+        Number n = obj.get(name);
+        return (n == null) ? 0 : n.longValue();
+    }
+
+    protected WatchGroup getGroup() {
         return group.get();
     }
 
@@ -151,6 +367,98 @@ public class Watch implements Handler<SubscriptionValue> {
         b.build();
     }
 
+    private void initSettings() {
+        {
+            NodeBuilder builder = watchNode.createChild("loggingType");
+            builder.setDisplayName("Logging Type");
+            {
+                Set<String> enums = new LinkedHashSet<>();
+                enums.add(GROUP_DEFAULT);
+                for (LoggingType t : LoggingType.values()) {
+                    enums.add(t.getName());
+                }
+                builder.setValueType(ValueType.makeEnum(enums));
+                builder.setValue(new Value(GROUP_DEFAULT));
+                builder.setWritable(Writable.WRITE);
+                builder.getListener().setValueHandler(new Handler<ValuePair>() {
+                    @Override
+                    public void handle(ValuePair event) {
+                        setLoggingType(event.getCurrent().getString());
+                    }
+                });
+            }
+            Node node = builder.build();
+            setLoggingType(node.getValue().getString());
+        }
+
+        {
+            NodeBuilder builder = watchNode.createChild("deadband");
+            builder.setDisplayName("Deadband");
+            builder.setValueType(ValueType.NUMBER);
+            builder.setValue(new Value(0));
+            builder.setWritable(Writable.WRITE);
+            builder.getListener().setValueHandler(new Handler<ValuePair>() {
+                @Override
+                public void handle(ValuePair event) {
+                    double band = event.getCurrent().getNumber().doubleValue();
+                    if (band < 0) {
+                        band = 0;
+                        event.setCurrent(new Value(band));
+                    }
+                    deadband = band;
+                }
+            });
+            Node node = builder.build();
+            deadband = Math.max(0, node.getValue().getNumber().doubleValue());
+        }
+
+        {
+            NodeBuilder builder = watchNode.createChild("deadbandType");
+            builder.setDisplayName("Deadband Type");
+            builder.setValueType(ValueType.makeBool("Percent", "Absolute"));
+            builder.setValue(new Value(false));
+            builder.setWritable(Writable.WRITE);
+            builder.getListener().setValueHandler(new Handler<ValuePair>() {
+                @Override
+                public void handle(ValuePair event) {
+                    deadbandPercent = event.getCurrent().getBool();
+                }
+            });
+            Node node = builder.build();
+            deadbandPercent = node.getValue().getBool();
+        }
+
+        {
+            NodeBuilder builder = watchNode.createChild("maxSilence");
+            builder.setDisplayName("Max Silence");
+            builder.setValueType(ValueType.NUMBER);
+            builder.setValue(new Value(0));
+            builder.setWritable(Writable.WRITE);
+            builder.getListener().setValueHandler(new Handler<ValuePair>() {
+                @Override
+                public void handle(ValuePair event) {
+                    long time = event.getCurrent().getNumber().longValue();
+                    if (time < 0) {
+                        time = 0;
+                        event.setCurrent(new Value(time));
+                    }
+                    maxSilence = TimeUnit.SECONDS.toMillis(time);
+                }
+            });
+            Node node = builder.build();
+            long time = Math.max(0, node.getValue().getNumber().longValue());
+            maxSilence = TimeUnit.SECONDS.toMillis(time);
+        }
+    }
+
+    private void setLoggingType(String type) {
+        if (GROUP_DEFAULT.equals(type)) {
+            loggingType = null;
+        } else {
+            loggingType = LoggingType.toEnum(type);
+        }
+    }
+
     private void initRealTimeValue() {
         realTimeNode.setValueType(ValueType.DYNAMIC);
         realTimeNode.setDisplayName("Real Time Value");
@@ -161,93 +469,37 @@ public class Watch implements Handler<SubscriptionValue> {
         lastWrittenNode.setDisplayName("Last Written Value");
     }
 
-    protected void initStartValue() {
-        if (startNode.getValue() != null) {
-            return;
-        }
+    private void initDateValues() {
         startNode.setValueType(ValueType.TIME);
         startNode.setDisplayName("Start Date");
-
-        // Grab the first value
-        WatchGroup group = getGroup();
-        Splunk splunk = group.getSplunk();
-        splunk.getService(new Handler<Service>() {
-            @Override
-            public void handle(Service service) {
-                String query = "search path=\"%s\"";
-                query += "| where time > 0";
-                query += "| tail 1";
-                query += "| table time";
-                query = String.format(query, path);
-
-                Job job = service.search(query);
-                while (!job.isDone()) {
-                    try {
-                        Thread.sleep(500);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
-
-                JobResultsArgs jra = new JobResultsArgs();
-                jra.setOutputMode(JobResultsArgs.OutputMode.XML);
-
-                InputStream results = job.getResults(jra);
-                try {
-                    ResultsReader reader = new ResultsReaderXml(results);
-                    Event e = reader.getNextEvent();
-                    if (e != null) {
-                        long time = Long.parseLong(e.get("time"));
-                        String ts = TimeParser.parse(time);
-                        startNode.setValue(new Value(ts));
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        });
-    }
-
-    private void initEndValue() {
         endNode.setValueType(ValueType.TIME);
         endNode.setDisplayName("End Date");
 
-        // Grab the last value
-        WatchGroup group = getGroup();
-        Splunk splunk = group.getSplunk();
-        splunk.getService(new Handler<Service>() {
-            @Override
-            public void handle(Service service) {
-                String query = "search path=\"%s\"";
-                query += "| where time > 0";
-                query += "| head 1";
-                query += "| table time";
-                query = String.format(query, path);
-                Job job = service.search(query);
-                while (!job.isDone()) {
-                    try {
-                        Thread.sleep(500);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
-
-                JobResultsArgs args = new JobResultsArgs();
-                args.setOutputMode(JobResultsArgs.OutputMode.XML);
+        Value start = startNode.getValue();
+        if (start != null) {
+            startTime = TimeParser.parse(start.getString());
+        }
+        Value end = endNode.getValue();
+        if (end != null) {
+            endTime = TimeParser.parse(end.getString());
+        }
+    }
 
-                InputStream results = job.getResults(args);
-                try {
-                    ResultsReader reader = new ResultsReaderXml(results);
-                    Event e = reader.getNextEvent();
-                    if (e != null) {
-                        long time = Long.parseLong(e.get("time"));
-                        endNode.setValue(new Value(TimeParser.parse(time)));
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        });
+    /**
+     * Extends the range of time that the watch has data for.
+     *
+     * @param start Time of the oldest known value.
+     * @param end Time of the newest known value.
+     */
+    protected synchronized void updateDates(long start, long end) {
+        if (start > 0 && (startTime <= 0 || start < startTime)) {
+            startTime = start;
+            startNode.setValue(new Value(TimeParser.parse(start)));
+        }
+        if (end > endTime) {
+            endTime = end;
+            endNode.setValue(new Value(TimeParser.parse(end)));
+        }
     }
 
     static {
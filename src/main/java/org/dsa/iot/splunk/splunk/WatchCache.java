@@ -0,0 +1,116 @@
+package org.dsa.iot.splunk.splunk;
+
+import org.dsa.iot.dslink.util.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A local checkpoint of the state of every watch of a {@link Splunk}
+ * server. Restoring the state from the checkpoint lets a restarted link
+ * resume without searching Splunk first.
+ *
+ * The checkpoint is a JSON object mapping the name of each watch group to
+ * an object that maps the path of each watch to its state. It is written
+ * to a temporary file first and then moved into place so that a crash
+ * while writing never corrupts the previous checkpoint.
+ *
+ * @author Samuel Grenier
+ */
+public class WatchCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WatchCache.class);
+
+    private final File file;
+    private JsonObject state;
+
+    /**
+     * @param file File to store the checkpoint in.
+     */
+    public WatchCache(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the last checkpoint. A missing or unreadable checkpoint is
+     * treated as empty.
+     */
+    public synchronized void load() {
+        state = new JsonObject();
+        if (!file.isFile()) {
+            return;
+        }
+        try {
+            InputStream in = new FileInputStream(file);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try {
+                byte[] buf = new byte[8192];
+                int read;
+                while ((read = in.read(buf)) != -1) {
+                    baos.write(buf, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+            state = new JsonObject(baos.toByteArray());
+        } catch (Exception e) {
+            LOGGER.warn("Failed to read watch cache: {}", file, e);
+        }
+    }
+
+    /**
+     * @param group Name of the watch group.
+     * @param path Path of the watch.
+     * @return The checkpointed state of the watch or {@code null} if it
+     *         is unknown.
+     */
+    public synchronized JsonObject get(String group, String path) {
+        if (state == null) {
+            return null;
+        }
+        JsonObject watches = state.get(group);
+        if (watches == null) {
+            return null;
+        }
+        return watches.get(path);
+    }
+
+    /**
+     * Replaces the checkpoint.
+     *
+     * @param state State of every watch group.
+     */
+    public synchronized void save(JsonObject state) {
+        this.state = state;
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            LOGGER.warn("Failed to create watch cache directory: {}", dir);
+            return;
+        }
+
+        File tmp = new File(dir, file.getName() + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(state.encode());
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                // Renaming over an existing file fails on some platforms
+                if (!file.delete() || !tmp.renameTo(file)) {
+                    throw new IOException("Failed to replace " + file);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Failed to write watch cache: {}", file, e);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package org.dsa.iot.splunk.splunk;
 
-import io.netty.util.CharsetUtil;
+import com.splunk.Event;
+import com.splunk.ResultsReaderXml;
 import org.dsa.iot.dslink.link.Requester;
 import org.dsa.iot.dslink.node.Node;
 import org.dsa.iot.dslink.node.NodeBuilder;
@@ -12,46 +13,119 @@ import org.dsa.iot.dslink.node.value.Value;
 import org.dsa.iot.dslink.node.value.ValuePair;
 import org.dsa.iot.dslink.node.value.ValueType;
 import org.dsa.iot.dslink.node.value.ValueUtils;
-import org.dsa.iot.dslink.util.Objects;
-import org.dsa.iot.dslink.util.json.JsonObject;
 import org.dsa.iot.splunk.actions.watch.AddWatchAction;
+import org.dsa.iot.splunk.stats.Interval;
+import org.dsa.iot.splunk.telemetry.Histogram;
+import org.dsa.iot.splunk.telemetry.Telemetry;
 import org.dsa.iot.splunk.utils.LinkPair;
 import org.dsa.iot.splunk.utils.LoggingType;
+import org.dsa.iot.splunk.utils.OverflowPolicy;
 import org.dsa.iot.splunk.utils.PathValuePair;
-import org.dsa.iot.splunk.utils.TimeParser;
+import org.dsa.iot.splunk.utils.SearchUtils;
+import org.dsa.iot.dslink.util.Objects;
 import org.dsa.iot.dslink.util.handler.Handler;
+import org.dsa.iot.dslink.util.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.io.OutputStreamWriter;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedDeque;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author Samuel Grenier
  */
 public class WatchGroup {
 
-    private final Queue<PathValuePair> queue;
+    private static final Logger LOGGER = LoggerFactory.getLogger(WatchGroup.class);
+    private static final int DEFAULT_QUEUE_CAPACITY = 100000;
+    private static final int DATE_QUERY_PATHS = 500;
+    private static final long RECONCILE_DELAY = TimeUnit.MINUTES.toMillis(1);
+    private static final long MIN_ADAPTIVE_INTERVAL = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long IDLE_WAIT = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long TICK_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+    private static final long AGGREGATE_GRACE = TimeUnit.SECONDS.toMillis(2);
+    private static final String DEFAULT_AGGREGATE_INTERVAL = "1M";
+    private static final String DEFAULT_AGGREGATE_ROLLUPS = "avg,min,max,count";
+
+    private final EventQueue queue;
+
+    /**
+     * Updates that did not fit into the ring of the writer, waiting to be
+     * filtered. Uses the same capacity and overflow policy as the queue.
+     */
+    private final EventQueue overflow;
+    private final Map<Watch, PathValuePair> written = new LinkedHashMap<>();
+
+    /**
+     * Watches with a maximum silence, only accessed by the writer thread.
+     */
+    private final Set<Watch> heartbeats = new LinkedHashSet<>();
+    private long lastTick;
+
+    /**
+     * Aggregation state of each watch, only accessed by the writer thread.
+     */
+    private final Map<Watch, Interval> aggregates = new LinkedHashMap<>();
+    private volatile String aggregateInterval = DEFAULT_AGGREGATE_INTERVAL;
+    private volatile String aggregateRollups = DEFAULT_AGGREGATE_ROLLUPS;
+    private volatile boolean aggregatesChanged;
+
+    /**
+     * Watches holding back a swinging door point, only accessed by the
+     * writer thread.
+     */
+    private final Set<Watch> holding = new LinkedHashSet<>();
+    private final List<PathValuePair> released = new ArrayList<>();
+    private final EventBatch batch;
+    private final Object flushLock = new Object();
     private final Splunk splunk;
 
     private final Node watchGroup;
     private final LinkPair pair;
 
-    private final Object writeLoopLock = new Object();
-    private ScheduledFuture<?> writeLoop;
-    private int writeTime;
+    private volatile long writeInterval;
+    private volatile int flushEvents;
+    private volatile int recentSamples;
+    private volatile long flushBytes;
+    private volatile boolean adaptiveFlush;
+    private long lastFlush;
+
+    /**
+     * Moving average of the time a flush takes, in nanoseconds.
+     */
+    private long flushLatency;
+
+    /**
+     * Average size of an encoded event, used to estimate the amount of
+     * bytes pending in the queue.
+     */
+    private int eventBytes = 128;
 
     private LoggingType loggingType;
     private long intervalWriteTime;
+    private volatile double tolerance;
 
     private Node watches;
     private Node data;
     private Node logging;
 
+    private Telemetry telemetry;
+    private AtomicLong receivedUpdates;
+    private AtomicLong filteredUpdates;
+    private AtomicLong writtenEvents;
+    private AtomicLong writtenBytes;
+    private AtomicLong failedWrites;
+    private Histogram flushTimes;
+
     public WatchGroup(Splunk splunk, Node watchGroup, LinkPair pair) {
-        this.queue = new ConcurrentLinkedDeque<>();
+        this.queue = new EventQueue(DEFAULT_QUEUE_CAPACITY, OverflowPolicy.DROP_OLDEST);
+        this.overflow = new EventQueue(DEFAULT_QUEUE_CAPACITY, OverflowPolicy.DROP_OLDEST);
+        this.batch = splunk.newBatch();
+        this.lastFlush = System.nanoTime();
         this.splunk = splunk;
         this.watchGroup = watchGroup;
         this.pair = pair;
@@ -65,6 +139,10 @@ public class WatchGroup {
         return pair;
     }
 
+    public String getName() {
+        return watchGroup.getName();
+    }
+
     public Node getWatches() {
         return watches;
     }
@@ -73,15 +151,56 @@ public class WatchGroup {
         return data;
     }
 
+    /**
+     * Holds back an update that did not fit into the ring of the writer.
+     * Safe to call from any thread.
+     *
+     * @param pair Update to hold back.
+     * @return Whether the update was kept, {@code false} if the overflow
+     *         policy discarded it.
+     */
+    public boolean overflow(PathValuePair pair) {
+        return overflow.offer(pair);
+    }
+
+    /**
+     * Filters the updates that were held back because the ring of the
+     * writer was full. Called by the writer thread of the server.
+     *
+     * @return Amount of updates filtered.
+     */
+    public int drainOverflow() {
+        int count = 0;
+        PathValuePair pair;
+        while ((pair = overflow.peek()) != null) {
+            overflow.remove(pair);
+            write(pair);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Filters the update according to the logging type and queues it for
+     * writing. Called by the writer thread of the server.
+     *
+     * @param pair Update to write.
+     */
     public void write(PathValuePair pair) {
+        receivedUpdates.incrementAndGet();
+        Watch w = pair.getWatch();
+        LoggingType type = w.getLoggingType();
+        if (type == null) {
+            type = loggingType;
+        }
+
         boolean doWrite = false;
-        switch (loggingType) {
+        switch (type) {
             case ALL_DATA: {
                 doWrite = true;
                 break;
             }
             case INTERVAL: {
-                Watch w = pair.getWatch();
                 long currTime = pair.getTime();
                 long lastTime = w.getLastIntervalUpdate();
                 if (currTime - lastTime > intervalWriteTime) {
@@ -91,19 +210,17 @@ public class WatchGroup {
                 break;
             }
             case POINT_CHANGE: {
-                Watch w = pair.getWatch();
-                Value curr = w.getDataNode().getValue();
+                Value curr = w.getLastValue();
                 Value update = pair.getValue();
                 if ((curr != null && update == null)
                         || (curr == null && update != null)
                         || (curr != null && !curr.equals(update))) {
-                    doWrite = true;
+                    doWrite = w.exceedsDeadband(update);
                 }
                 break;
             }
             case POINT_TIME: {
-                Watch w = pair.getWatch();
-                Value vCurr = w.getDataNode().getValue();
+                Value vCurr = w.getLastValue();
                 Value vUpdate = pair.getValue();
                 long curr = (vCurr == null) ? 0 : vCurr.getTime();
                 long update = (vUpdate == null) ? 0 : vUpdate.getTime();
@@ -113,19 +230,176 @@ public class WatchGroup {
                 }
                 break;
             }
+            case AGGREGATE: {
+                doWrite = !aggregate(pair);
+                break;
+            }
+            case SWINGING_DOOR: {
+                SwingingDoor door = w.getSwingingDoor();
+                door.update(pair, tolerance, released);
+                if (door.isHolding()) {
+                    holding.add(w);
+                } else {
+                    holding.remove(w);
+                }
+                offerReleased();
+                break;
+            }
+        }
+
+        // Aggregates are written per period, a raw update would not belong
+        // to any period
+        long silence = w.getMaxSilence();
+        if (silence > 0 && type != LoggingType.NONE
+                && type != LoggingType.AGGREGATE) {
+            if (!doWrite && pair.getTime() - w.getLastLoggedTime() >= silence) {
+                if (type == LoggingType.SWINGING_DOOR) {
+                    // Writing the held point moves the door along with it
+                    releaseDoor(w);
+                } else {
+                    doWrite = true;
+                }
+            }
+            heartbeats.add(w);
         }
 
+        w.setLastValue(pair.getValue());
         if (doWrite) {
-            if (writeTime <= 0) {
-                dbWrite(pair);
-                Watch watch = pair.getWatch();
-                Value value = new Value(TimeParser.parse(pair.getTime()));
-                watch.setEndDate(value);
-                watch.initStartValue();
-                watch.setLastWrittenValue(pair.getValue());
-                return;
+            w.setLastLogged(pair);
+            queue.offer(pair);
+        } else {
+            filteredUpdates.incrementAndGet();
+        }
+    }
+
+    /**
+     * Adds a numeric update to the current period of its watch. When the
+     * update completes a period then the rolled up period is queued.
+     *
+     * @param pair Update to aggregate.
+     * @return Whether the update was aggregated, {@code false} if it is
+     *         not numeric and must be written as is.
+     */
+    private boolean aggregate(PathValuePair pair) {
+        Value value = pair.getValue();
+        if (value == null || value.getNumber() == null) {
+            return false;
+        }
+        if (aggregatesChanged) {
+            // Periods in progress are discarded when the settings change
+            aggregatesChanged = false;
+            aggregates.clear();
+        }
+
+        Watch w = pair.getWatch();
+        Interval interval = aggregates.get(w);
+        if (interval == null) {
+            interval = Interval.parse(aggregateInterval, aggregateRollups);
+            if (interval == null) {
+                return false;
+            }
+            aggregates.put(w, interval);
+        }
+        if (interval.update(value, pair.getTime())) {
+            offerAggregate(w, interval);
+        }
+        return true;
+    }
+
+    /**
+     * Queues every aggregation period that has ended, even if no update
+     * of the next period was received yet.
+     */
+    private void writeAggregates() {
+        long now = System.currentTimeMillis() - AGGREGATE_GRACE;
+        Iterator<Map.Entry<Watch, Interval>> it = aggregates.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Watch, Interval> entry = it.next();
+            Watch w = entry.getKey();
+            if (!w.isActive()) {
+                it.remove();
+            } else if (entry.getValue().completeBy(now)) {
+                offerAggregate(w, entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Queues the completed period of an aggregate. With several rollups
+     * the value is the first rollup, so that the event stays readable as
+     * a plain number, and every rollup is written as a field of its own.
+     */
+    private void offerAggregate(Watch w, Interval interval) {
+        Value value = interval.getCompletedValue();
+        long time = interval.getCompletedTime();
+        Map<String, Value> rollups = interval.getCompletedRollups();
+        if (rollups != null && !rollups.isEmpty()) {
+            value = rollups.values().iterator().next();
+        }
+        PathValuePair pair = new PathValuePair(w, w.getPath(), value, time, rollups);
+        w.setLastLogged(pair);
+        queue.offer(pair);
+    }
+
+    /**
+     * Queues the held back point of every swinging door.
+     */
+    private void releaseHeld() {
+        for (Watch w : holding) {
+            w.getSwingingDoor().release(released);
+        }
+        holding.clear();
+        offerReleased();
+    }
+
+    /**
+     * Queues the held back point of the swinging door of a watch.
+     */
+    private void releaseDoor(Watch w) {
+        if (holding.remove(w)) {
+            w.getSwingingDoor().release(released);
+            offerReleased();
+        }
+    }
+
+    private void offerReleased() {
+        for (PathValuePair p : released) {
+            p.getWatch().setLastLogged(p);
+            queue.offer(p);
+        }
+        released.clear();
+    }
+
+    /**
+     * Writes the last value of every watch that was silent for longer
+     * than its maximum silence, stamped with the current time.
+     */
+    private void writeHeartbeats() {
+        long now = System.currentTimeMillis();
+        Iterator<Watch> it = heartbeats.iterator();
+        while (it.hasNext()) {
+            Watch w = it.next();
+            long silence = w.getMaxSilence();
+            LoggingType type = w.getLoggingType();
+            if (type == null) {
+                type = loggingType;
+            }
+            if (silence <= 0 || type == LoggingType.NONE
+                    || type == LoggingType.AGGREGATE || !w.isActive()) {
+                it.remove();
+                continue;
+            }
+
+            Value value = w.getLastValue();
+            if (value != null && now - w.getLastLoggedTime() >= silence) {
+                if (type == LoggingType.SWINGING_DOOR && holding.contains(w)) {
+                    releaseDoor(w);
+                    continue;
+                }
+                PathValuePair pair = new PathValuePair(w, w.getPath(), value, now);
+                w.setLastLogged(pair);
+                queue.offer(pair);
             }
-            queue.add(pair);
         }
     }
 
@@ -143,6 +417,7 @@ public class WatchGroup {
         Watch watch = new Watch(this, builder.getChild(), path);
         watch.init();
         builder.build();
+        queryDates(Collections.singletonList(watch));
     }
 
     public void init(boolean subscribe) {
@@ -150,6 +425,8 @@ public class WatchGroup {
         createWatchTracker();
         createDataTracker();
         initSettings();
+        initTelemetry();
+        splunk.addGroup(this);
         if (subscribe) {
             restoreSubscriptions();
         }
@@ -160,6 +437,9 @@ public class WatchGroup {
         if (children == null) {
             return;
         }
+        WatchCache cache = splunk.getWatchCache();
+        List<Watch> restored = new ArrayList<>();
+        final List<Watch> cached = new ArrayList<>();
         for (Node watch : children.values()) {
             if (watch.getAction() != null) {
                 continue;
@@ -167,8 +447,162 @@ public class WatchGroup {
 
             String path = watch.getName().replaceAll("%2F", "/");
             Watch w = new Watch(this, watch, path);
+            JsonObject state = cache.get(getName(), path);
+            if (state != null) {
+                w.restoreState(state);
+                cached.add(w);
+            } else {
+                restored.add(w);
+            }
             w.init();
         }
+        queryDates(restored);
+
+        if (!cached.isEmpty()) {
+            // Cached dates are reconciled once the link settled down
+            Objects.getDaemonThreadPool().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (splunk.isRunning()) {
+                        queryDates(cached);
+                    }
+                }
+            }, RECONCILE_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Captures the state of every watch of the group. Called by the writer
+     * thread.
+     *
+     * @return State of each watch mapped by its path.
+     */
+    protected JsonObject saveState() {
+        JsonObject obj = new JsonObject();
+        Node watches = this.watches;
+        Map<String, Node> children = (watches == null) ? null : watches.getChildren();
+        if (children != null) {
+            for (Node n : children.values()) {
+                Object meta = n.getMetaData();
+                if (meta instanceof Watch) {
+                    Watch w = (Watch) meta;
+                    obj.put(w.getPath(), w.saveState());
+                }
+            }
+        }
+        return obj;
+    }
+
+    /**
+     * Retrieves the start and end dates of the watches. The dates of all
+     * watches are looked up with a single search, split into chunks to
+     * keep the search string at a reasonable length. With a metrics index
+     * numeric values are written as measurements, so the dates of the
+     * measurements are looked up with a second search and merged with
+     * those of the events. The searches run as jobs of the
+     * {@link JobTracker} so no thread waits on them.
+     *
+     * @param watches Watches to look up.
+     */
+    private void queryDates(List<Watch> watches) {
+        String index = splunk.getMetricsIndex();
+        for (int i = 0; i < watches.size(); i += DATE_QUERY_PATHS) {
+            int end = Math.min(watches.size(), i + DATE_QUERY_PATHS);
+            final Map<String, Watch> paths = new HashMap<>();
+            StringBuilder query = new StringBuilder("search (");
+            StringBuilder names = new StringBuilder();
+            for (Watch w : watches.subList(i, end)) {
+                if (!paths.isEmpty()) {
+                    query.append(" OR ");
+                    names.append(", ");
+                }
+                paths.put(w.getPath(), w);
+                query.append("path=").append(SearchUtils.quote(w.getPath()));
+                names.append(SearchUtils.quote(w.getPath()));
+            }
+            query.append(")");
+            query.append("| spath timestamp");
+            query.append("| where timestamp > 0");
+            query.append("| stats min(timestamp) as start max(timestamp) as end by path");
+            submitDates(query.toString(), paths);
+
+            if (index != null) {
+                query = new StringBuilder("| mstats min(_time) as start max(_time) as end");
+                query.append(" WHERE index=").append(SearchUtils.quote(index));
+                query.append(" AND metric_name IN (").append(names).append(")");
+                query.append(" BY metric_name");
+                query.append("| eval start=round(start*1000), end=round(end*1000)");
+                query.append("| rename metric_name as path");
+                submitDates(query.toString(), paths);
+            }
+        }
+    }
+
+    /**
+     * Submits a search of the start and end dates by path.
+     */
+    private void submitDates(String query, final Map<String, Watch> paths) {
+        splunk.getJobTracker().submit(query, new Handler<InputStream>() {
+            @Override
+            public void handle(InputStream results) {
+                readDates(results, paths);
+            }
+        }, new Handler<Void>() {
+            @Override
+            public void handle(Void event) {
+                retryDates(paths.values());
+            }
+        });
+    }
+
+    /**
+     * Looks up the dates of the watches again after a failed search, once
+     * the server had time to recover.
+     */
+    private void retryDates(Collection<Watch> watches) {
+        final List<Watch> retry = new ArrayList<>(watches);
+        Objects.getDaemonThreadPool().schedule(new Runnable() {
+            @Override
+            public void run() {
+                Iterator<Watch> it = retry.iterator();
+                while (it.hasNext()) {
+                    if (!it.next().isActive()) {
+                        it.remove();
+                    }
+                }
+                if (splunk.isRunning() && !retry.isEmpty()) {
+                    queryDates(retry);
+                }
+            }
+        }, RECONCILE_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    private void readDates(InputStream stream, Map<String, Watch> paths) {
+        ResultsReaderXml reader = null;
+        try {
+            reader = new ResultsReaderXml(stream);
+            for (Event e : reader) {
+                Watch w = paths.get(e.get("path"));
+                String start = e.get("start");
+                String end = e.get("end");
+                if (w == null || start == null || end == null) {
+                    continue;
+                }
+                // Stats may format large numbers in exponent notation
+                long s = (long) Double.parseDouble(start);
+                long t = (long) Double.parseDouble(end);
+                w.updateDates(s, t);
+            }
+        } catch (IOException | NumberFormatException e) {
+            LOGGER.warn("Failed to read the dates of watches", e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
     }
 
     private void createDeleteWatchAction() {
@@ -176,6 +610,8 @@ public class WatchGroup {
         builder.setAction(new Action(Permission.READ, new Handler<ActionResult>() {
             @Override
             public void handle(ActionResult event) {
+                splunk.removeGroup(WatchGroup.this);
+                stop();
                 watchGroup.getParent().removeChild(watchGroup);
                 Map<String, Node> children = watches.getChildren();
                 if (children != null) {
@@ -209,6 +645,57 @@ public class WatchGroup {
     }
 
     private void initSettings() {
+        {
+            NodeBuilder builder = watchGroup.createChild("queueCapacity");
+            builder.setDisplayName("Queue Capacity");
+            builder.setValueType(ValueType.NUMBER);
+            builder.setValue(new Value(DEFAULT_QUEUE_CAPACITY));
+            builder.setWritable(Writable.WRITE);
+            builder.getListener().setValueHandler(new Handler<ValuePair>() {
+                @Override
+                public void handle(ValuePair event) {
+                    int capacity = event.getCurrent().getNumber().intValue();
+                    if (capacity <= 0) {
+                        capacity = 1;
+                        event.setCurrent(new Value(capacity));
+                    }
+                    queue.setCapacity(capacity);
+                    overflow.setCapacity(capacity);
+                }
+            });
+
+            Node node = builder.build();
+            int capacity = node.getValue().getNumber().intValue();
+            queue.setCapacity(Math.max(1, capacity));
+            overflow.setCapacity(Math.max(1, capacity));
+        }
+
+        {
+            NodeBuilder builder = watchGroup.createChild("overflowPolicy");
+            builder.setDisplayName("Overflow Policy");
+            {
+                Set<String> enums = new LinkedHashSet<>();
+                for (OverflowPolicy p : OverflowPolicy.values()) {
+                    enums.add(p.getName());
+                }
+                builder.setValueType(ValueType.makeEnum(enums));
+                builder.setValue(new Value(OverflowPolicy.DROP_OLDEST.getName()));
+                builder.setWritable(Writable.WRITE);
+                builder.getListener().setValueHandler(new Handler<ValuePair>() {
+                    @Override
+                    public void handle(ValuePair event) {
+                        OverflowPolicy policy = OverflowPolicy.toEnum(event.getCurrent().getString());
+                        queue.setPolicy(policy);
+                        overflow.setPolicy(policy);
+                    }
+                });
+            }
+            Node node = builder.build();
+            OverflowPolicy policy = OverflowPolicy.toEnum(node.getValue().getString());
+            queue.setPolicy(policy);
+            overflow.setPolicy(policy);
+        }
+
         {
             NodeBuilder builder = watchGroup.createChild("writeTime");
             builder.setDisplayName("Write Time");
@@ -218,19 +705,100 @@ public class WatchGroup {
             builder.getListener().setValueHandler(new Handler<ValuePair>() {
                 @Override
                 public void handle(ValuePair event) {
-                    int time = event.getCurrent().getNumber().intValue();
-                    WatchGroup.this.writeTime = time;
+                    double time = event.getCurrent().getNumber().doubleValue();
                     if (time < 0) {
-                        WatchGroup.this.writeTime = 0;
-                        event.setCurrent(new Value(WatchGroup.this.writeTime));
+                        time = 0;
+                        event.setCurrent(new Value(0));
+                    }
+                    setWriteTime(time);
+                }
+            });
+
+            Node node = builder.build();
+            setWriteTime(Math.max(0, node.getValue().getNumber().doubleValue()));
+        }
+
+        {
+            NodeBuilder builder = watchGroup.createChild("flushEvents");
+            builder.setDisplayName("Flush Events");
+            builder.setValueType(ValueType.NUMBER);
+            builder.setValue(new Value(0));
+            builder.setWritable(Writable.WRITE);
+            builder.getListener().setValueHandler(new Handler<ValuePair>() {
+                @Override
+                public void handle(ValuePair event) {
+                    int events = event.getCurrent().getNumber().intValue();
+                    if (events < 0) {
+                        events = 0;
+                        event.setCurrent(new Value(events));
+                    }
+                    flushEvents = events;
+                }
+            });
+
+            Node node = builder.build();
+            flushEvents = Math.max(0, node.getValue().getNumber().intValue());
+        }
+
+        {
+            NodeBuilder builder = watchGroup.createChild("flushBytes");
+            builder.setDisplayName("Flush Bytes");
+            builder.setValueType(ValueType.NUMBER);
+            builder.setValue(new Value(0));
+            builder.setWritable(Writable.WRITE);
+            builder.getListener().setValueHandler(new Handler<ValuePair>() {
+                @Override
+                public void handle(ValuePair event) {
+                    long bytes = event.getCurrent().getNumber().longValue();
+                    if (bytes < 0) {
+                        bytes = 0;
+                        event.setCurrent(new Value(bytes));
+                    }
+                    flushBytes = bytes;
+                }
+            });
+
+            Node node = builder.build();
+            flushBytes = Math.max(0, node.getValue().getNumber().longValue());
+        }
+
+        {
+            NodeBuilder builder = watchGroup.createChild("recentSamples");
+            builder.setDisplayName("Recent Samples");
+            builder.setValueType(ValueType.NUMBER);
+            builder.setValue(new Value(100));
+            builder.setWritable(Writable.WRITE);
+            builder.getListener().setValueHandler(new Handler<ValuePair>() {
+                @Override
+                public void handle(ValuePair event) {
+                    int samples = event.getCurrent().getNumber().intValue();
+                    if (samples < 0) {
+                        samples = 0;
+                        event.setCurrent(new Value(samples));
                     }
-                    setupTimer();
+                    recentSamples = samples;
+                }
+            });
+
+            Node node = builder.build();
+            recentSamples = Math.max(0, node.getValue().getNumber().intValue());
+        }
+
+        {
+            NodeBuilder builder = watchGroup.createChild("adaptiveFlush");
+            builder.setDisplayName("Adaptive Flush");
+            builder.setValueType(ValueType.BOOL);
+            builder.setValue(new Value(false));
+            builder.setWritable(Writable.WRITE);
+            builder.getListener().setValueHandler(new Handler<ValuePair>() {
+                @Override
+                public void handle(ValuePair event) {
+                    adaptiveFlush = event.getCurrent().getBool();
                 }
             });
 
             Node node = builder.build();
-            writeTime = node.getValue().getNumber().intValue();
-            setupTimer();
+            adaptiveFlush = node.getValue().getBool();
         }
 
         {
@@ -259,45 +827,39 @@ public class WatchGroup {
         }
     }
 
-    private void setupTimer() {
-        synchronized (writeLoopLock) {
-            if (writeLoop != null) {
-                writeLoop.cancel(false);
-                writeLoop = null;
+    private void initTelemetry() {
+        String name = "type=WatchGroup";
+        name += ",server=" + ObjectName.quote(splunk.getName());
+        name += ",name=" + ObjectName.quote(watchGroup.getName());
+        telemetry = new Telemetry(watchGroup, name);
+        telemetry.gauge("queueDepth", "Queue Depth", new Telemetry.Gauge() {
+            @Override
+            public long get() {
+                return queue.size();
             }
-
-            if (writeTime <= 0) {
-                return;
+        });
+        telemetry.gauge("droppedEvents", "Dropped Events", new Telemetry.Gauge() {
+            @Override
+            public long get() {
+                return queue.getDropped() + overflow.getDropped();
             }
+        });
+        receivedUpdates = telemetry.counter("receivedUpdates", "Received Updates");
+        filteredUpdates = telemetry.counter("filteredUpdates", "Filtered Updates");
+        writtenEvents = telemetry.counter("writtenEvents", "Written Events");
+        writtenBytes = telemetry.counter("writtenBytes", "Written Bytes");
+        failedWrites = telemetry.counter("failedWrites", "Failed Writes");
+        flushTimes = telemetry.histogram("flushLatency", "Flush Latency");
+        telemetry.start();
+    }
 
-            ScheduledThreadPoolExecutor stpe = Objects.getDaemonThreadPool();
-            writeLoop = stpe.scheduleWithFixedDelay(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        PathValuePair pair = null;
-                        int size = queue.size();
-                        for (int i = 0; i < size; ++i) {
-                            pair = queue.poll();
-                            dbWrite(pair);
-                        }
-
-                        if (pair != null) {
-                            Watch watch = pair.getWatch();
-                            Value value = pair.getValue();
-                            watch.initStartValue();
-                            watch.setLastWrittenValue(value);
-
-                            String time = TimeParser.parse(value.getTime());
-                            value = new Value(time);
-                            watch.setEndDate(value);
-                        }
-                    } catch (Exception e) {
-                        e.printStackTrace(System.err);
-                    }
-
-                }
-            }, writeTime, writeTime, TimeUnit.SECONDS);
+    /**
+     * Releases the resources of the group once it is deleted or its
+     * server is stopped.
+     */
+    protected void stop() {
+        if (telemetry != null) {
+            telemetry.stop();
         }
     }
 
@@ -305,6 +867,7 @@ public class WatchGroup {
         switch (type) {
             case NONE:
             case POINT_CHANGE:
+            case POINT_TIME:
             case ALL_DATA: {
                 logging.clearChildren();
                 break;
@@ -329,34 +892,241 @@ public class WatchGroup {
                 Node node = builder.build();
                 intervalWriteTime = node.getValue().getNumber().longValue();
                 intervalWriteTime = TimeUnit.SECONDS.toMillis(intervalWriteTime);
+                logging.removeChild("tolerance");
+                logging.removeChild("aggregateInterval");
+                logging.removeChild("aggregateRollups");
+                break;
+            }
+            case SWINGING_DOOR: {
+                NodeBuilder builder = logging.createChild("tolerance");
+                builder.setDisplayName("Tolerance");
+                builder.setValueType(ValueType.NUMBER);
+                builder.setValue(new Value(0));
+                builder.setWritable(Writable.WRITE);
+                builder.getListener().setValueHandler(new Handler<ValuePair>() {
+                    @Override
+                    public void handle(ValuePair event) {
+                        double tol = event.getCurrent().getNumber().doubleValue();
+                        if (tol < 0) {
+                            tol = 0;
+                            event.setCurrent(new Value(tol));
+                        }
+                        tolerance = tol;
+                    }
+                });
+                Node node = builder.build();
+                tolerance = Math.max(0, node.getValue().getNumber().doubleValue());
+                logging.removeChild("interval");
+                logging.removeChild("aggregateInterval");
+                logging.removeChild("aggregateRollups");
+                break;
+            }
+            case AGGREGATE: {
+                {
+                    NodeBuilder builder = logging.createChild("aggregateInterval");
+                    builder.setDisplayName("Aggregate Interval");
+                    builder.setValueType(ValueType.STRING);
+                    builder.setValue(new Value(DEFAULT_AGGREGATE_INTERVAL));
+                    builder.setWritable(Writable.WRITE);
+                    builder.getListener().setValueHandler(new Handler<ValuePair>() {
+                        @Override
+                        public void handle(ValuePair event) {
+                            String s = event.getCurrent().getString();
+                            try {
+                                Interval.parse(s, aggregateRollups);
+                            } catch (RuntimeException e) {
+                                LOGGER.warn("Invalid aggregate interval: {}", s);
+                                event.setCurrent(event.getPrevious());
+                                return;
+                            }
+                            aggregateInterval = s;
+                            aggregatesChanged = true;
+                        }
+                    });
+                    Node node = builder.build();
+                    aggregateInterval = node.getValue().getString();
+                }
+                {
+                    NodeBuilder builder = logging.createChild("aggregateRollups");
+                    builder.setDisplayName("Aggregate Rollups");
+                    builder.setValueType(ValueType.STRING);
+                    builder.setValue(new Value(DEFAULT_AGGREGATE_ROLLUPS));
+                    builder.setWritable(Writable.WRITE);
+                    builder.getListener().setValueHandler(new Handler<ValuePair>() {
+                        @Override
+                        public void handle(ValuePair event) {
+                            String s = event.getCurrent().getString();
+                            try {
+                                Interval.parse(aggregateInterval, s);
+                            } catch (RuntimeException e) {
+                                LOGGER.warn("Invalid aggregate rollups: {}", s);
+                                event.setCurrent(event.getPrevious());
+                                return;
+                            }
+                            aggregateRollups = s;
+                            aggregatesChanged = true;
+                        }
+                    });
+                    Node node = builder.build();
+                    aggregateRollups = node.getValue().getString();
+                }
+                aggregatesChanged = true;
+                logging.removeChild("interval");
+                logging.removeChild("tolerance");
                 break;
             }
         }
         this.loggingType = type;
     }
 
-    private void dbWrite(final PathValuePair pair) {
-        String path = pair.getPath();
-        Value value = pair.getValue();
-        long time = value.getTime();
+    private void setWriteTime(double seconds) {
+        writeInterval = (long) (seconds * TimeUnit.SECONDS.toNanos(1));
+    }
 
-        final JsonObject obj = new JsonObject();
-        obj.put("timestamp", time);
-        obj.put("path", path);
-        obj.put("value", value);
+    /**
+     * Flushes the group if its write time has elapsed or enough events
+     * are pending. Called by the writer thread.
+     *
+     * In adaptive mode the write time is only an upper bound. The group is
+     * flushed again once as much time passed as a flush takes on average,
+     * so events are written almost immediately at low load while batches
+     * grow with the load when writing becomes the bottleneck.
+     *
+     * @param now Current time in nanoseconds.
+     * @return Nanoseconds until the next flush is due.
+     */
+    protected long flushIfDue(long now) {
+        if (now - lastTick >= TICK_INTERVAL) {
+            lastTick = now;
+            if (!heartbeats.isEmpty()) {
+                writeHeartbeats();
+            }
+            if (!aggregates.isEmpty()) {
+                writeAggregates();
+            }
+        }
 
-        splunk.getWriter(new Handler<OutputStreamWriter>() {
-            @Override
-            public void handle(OutputStreamWriter writer) {
-                try {
-                    writer.write(new String(obj.encode(), CharsetUtil.UTF_8));
-                    writer.write("\r\n");
-                    writer.flush();
-                } catch (Exception e) {
-                    dbWrite(pair);
-                    throw new RuntimeException(e);
+        long interval = writeInterval;
+        if (adaptiveFlush) {
+            long latency = Math.max(MIN_ADAPTIVE_INTERVAL, flushLatency);
+            interval = Math.min(interval, latency);
+        }
+
+        boolean due = interval <= 0
+                || now - lastFlush >= interval
+                || isFlushThresholdReached();
+        if (!due) {
+            return lastFlush + interval - now;
+        } else if (interval > 0 && interval < IDLE_WAIT
+                && queue.isEmpty() && holding.isEmpty()) {
+            // Nothing to flush, the next update wakes up the writer
+            return IDLE_WAIT;
+        }
+
+        flush();
+        lastFlush = now;
+        return (interval <= 0) ? Long.MAX_VALUE : interval;
+    }
+
+    /**
+     * @return Whether the amount of pending events or the estimated amount
+     *         of pending bytes reached their configured threshold.
+     */
+    private boolean isFlushThresholdReached() {
+        int events = flushEvents;
+        long bytes = flushBytes;
+        if (events <= 0 && bytes <= 0) {
+            return false;
+        }
+        int size = queue.size();
+        return (events > 0 && size >= events)
+                || (bytes > 0 && (long) size * eventBytes >= bytes);
+    }
+
+    /**
+     * Drains the queue in batches. Each batch is written to Splunk with a
+     * single flush. Events of a failed batch are put back at the front of
+     * the queue to be retried on the next flush. Points held back by a
+     * swinging door are released first.
+     */
+    protected void flush() {
+        synchronized (flushLock) {
+            releaseHeld();
+            if (queue.isEmpty()) {
+                return;
+            }
+            if (!splunk.isWritable()) {
+                return;
+            }
+
+            int events = 0;
+            long bytes = 0;
+            long start = System.nanoTime();
+            while (!queue.isEmpty()) {
+                batch.clear();
+                PathValuePair pair;
+                while ((pair = queue.peek()) != null && batch.add(pair)) {
+                    queue.remove(pair);
+                }
+                if (batch.isEmpty()) {
+                    break;
                 }
+
+                if (!splunk.write(batch)) {
+                    failedWrites.incrementAndGet();
+                    LOGGER.warn("Failed to write batch, retrying later");
+                    queue.requeue(batch.getPairs());
+                    batch.clear();
+                    return;
+                }
+
+                events += batch.size();
+                bytes += batch.getLength();
+                writtenEvents.addAndGet(batch.size());
+                writtenBytes.addAndGet(batch.getLength());
+                updateWritten(batch.getPairs());
             }
-        });
+            batch.clear();
+
+            long elapsed = System.nanoTime() - start;
+            if (events > 0) {
+                flushTimes.record(elapsed);
+                eventBytes = (int) Math.max(1, bytes / events);
+                if (flushLatency == 0) {
+                    flushLatency = elapsed;
+                } else {
+                    flushLatency += (elapsed - flushLatency) / 4;
+                }
+            }
+
+            if (LOGGER.isDebugEnabled()) {
+                long ms = TimeUnit.NANOSECONDS.toMillis(elapsed);
+                long rate = (ms > 0) ? (events * 1000L / ms) : events;
+                LOGGER.debug("Wrote {} events ({} bytes) in {} ms ({} events/s)",
+                        events, bytes, ms, rate);
+            }
+        }
+    }
+
+    private void updateWritten(List<PathValuePair> pairs) {
+        HistoryCache cache = splunk.getHistoryCache();
+        QueryCache queries = splunk.getQueryCache();
+        int samples = recentSamples;
+        for (PathValuePair pair : pairs) {
+            written.put(pair.getWatch(), pair);
+            pair.getWatch().addRecent(pair.getTime(), pair.getValue(), samples);
+            if (cache != null) {
+                cache.append(pair.getPath(), pair.getTime(), pair.getValue());
+            }
+            if (queries != null) {
+                queries.written(pair.getPath(), pair.getTime(), pair.getValue());
+            }
+        }
+        for (PathValuePair pair : written.values()) {
+            Watch watch = pair.getWatch();
+            watch.setLastWrittenValue(pair.getValue());
+            watch.updateDates(pair.getTime(), pair.getTime());
+        }
+        written.clear();
     }
 }
@@ -6,6 +6,7 @@ import org.dsa.iot.splunk.stats.rollup.*;
 import org.dsa.iot.splunk.utils.TimeParser;
 
 import java.util.Calendar;
+import java.util.Map;
 import java.util.TimeZone;
 
 /**
@@ -55,6 +56,13 @@ public class Interval {
         this.rollup = rollup;
     }
 
+    /**
+     * Time and value of the last completed interval period.
+     */
+    private long completedTime;
+    private Value completedValue;
+    private Map<String, Value> completedRollups;
+
     /**
      *
      * @param value Value retrieved from the database.
@@ -62,9 +70,26 @@ public class Interval {
      * @return An update or null to skip the update.
      */
     public Row getRowUpdate(Value value, long fullTs) {
+        if (update(value, fullTs)) {
+            return getRowUpdate(completedTime, completedValue);
+        }
+        return null;
+    }
+
+    /**
+     * Updates the interval with a value. When the value starts a new
+     * period then the previous period is completed.
+     *
+     * @param value Value to update.
+     * @param fullTs Full timestamp of the value.
+     * @return Whether a period was completed.
+     * @see #getCompletedTime()
+     * @see #getCompletedValue()
+     */
+    public boolean update(Value value, long fullTs) {
         final long alignedTs = alignTime(fullTs);
 
-        Row row = null;
+        boolean completed = false;
         if (alignedTs == lastValueTimeTrunc) {
             // Update the last value with the same time stamp in the interval
             lastValue = value;
@@ -73,12 +98,8 @@ public class Interval {
             }
         } else if (lastValue != null) {
             // Finish up the rollup, the interval for this period is completed
-            if (rollup == null) {
-                row = getRowUpdate(lastValueTimeTrunc, lastValue);
-            } else {
-                row = getRowUpdate(lastValueTimeTrunc, rollup.getValue());
-            }
-            lastValue = null;
+            complete();
+            completed = true;
         }
 
         // New interval period has been started
@@ -90,7 +111,102 @@ public class Interval {
                 rollup.update(lastValue, fullTs);
             }
         }
-        return row;
+        return completed;
+    }
+
+    /**
+     * Completes the current period if it has ended by the given time
+     * without waiting for a value of the next period.
+     *
+     * @param ts Current time.
+     * @return Whether a period was completed.
+     */
+    public boolean completeBy(long ts) {
+        if (lastValue == null || alignTime(ts) - lastValueTimeTrunc < incrementTime) {
+            return false;
+        }
+        complete();
+        return true;
+    }
+
+    /**
+     * @return Start time of the last completed period.
+     */
+    public long getCompletedTime() {
+        return completedTime;
+    }
+
+    /**
+     * @return Rolled up value of the last completed period.
+     */
+    public Value getCompletedValue() {
+        return completedValue;
+    }
+
+    /**
+     * @return Value of each rollup of the last completed period by its
+     *         name or {@code null} if the interval has a single rollup.
+     */
+    public Map<String, Value> getCompletedRollups() {
+        return completedRollups;
+    }
+
+    private void complete() {
+        completedTime = lastValueTimeTrunc;
+        if (rollup == null) {
+            completedValue = lastValue;
+        } else {
+            completedValue = rollup.getValue();
+        }
+        if (rollup instanceof CompositeRollup) {
+            completedRollups = ((CompositeRollup) rollup).getValues();
+        }
+        lastValue = null;
+    }
+
+    /**
+     * Converts the interval into a Splunk span. Splunk buckets periods on
+     * multiples of the span since the epoch, while periods of an interval
+     * start at the aligned time of the first value. The two only agree
+     * when a period is a single aligned second, minute or hour, such as
+     * {@code 1M}, so only those intervals can be converted.
+     *
+     * @return The span in seconds, such as {@code 60s}, or {@code null}
+     *         if Splunk would bucket the values differently.
+     */
+    public String toSpan() {
+        int units = 0;
+        boolean aligned = false;
+        for (int num : new int[] { seconds, minutes, hours, days, weeks, months, years }) {
+            if (num > -1) {
+                units++;
+            }
+        }
+        if (seconds == 1) {
+            aligned = alignSeconds;
+        } else if (minutes == 1) {
+            aligned = alignMinutes;
+        } else if (hours == 1) {
+            aligned = alignHours;
+        }
+        long length = getLength();
+        if (units != 1 || !aligned || length <= 0 || length % 1000 != 0) {
+            return null;
+        }
+        return (length / 1000) + "s";
+    }
+
+    /**
+     * @return Length of a period in milliseconds or -1 if the interval
+     *         depends on the calendar.
+     */
+    public long getLength() {
+        if (weeks > -1 || months > -1 || years > -1 || alignDays) {
+            return -1;
+        } else if (incrementTime <= 0) {
+            return -1;
+        }
+        return incrementTime;
     }
 
     private Row getRowUpdate(long ts, Value value) {
@@ -154,6 +270,7 @@ public class Interval {
         return c.getTime().getTime();
     }
 
+    @SuppressWarnings("fallthrough")
     private void update(char interval, String number) {
         int num = Integer.parseInt(number);
         switch (interval) {
@@ -252,25 +369,20 @@ public class Interval {
             return null;
         }
 
-        Rollup roll = null;
-        if ("avg".equals(rollup)) {
-            roll = new AvgRollup();
-        } else if ("count".equals(rollup)) {
-            roll = new CountRollup();
-        } else if ("first".equals(rollup)) {
-            roll = new FirstRollup();
-        } else if ("last".equals(rollup)) {
-            roll = new LastRollup();
-        } else if ("max".equals(rollup)) {
-            roll = new MaxRollup();
-        } else if ("min".equals(rollup)) {
-            roll = new MinRollup();
-        } else if ("sum".equals(rollup)) {
-            roll = new SumRollup();
-        } else if ("delta".equals(rollup)) {
-            roll = new DeltaRollup();
-        } else if (!"none".equals(rollup)) {
-            throw new RuntimeException("Invalid rollup: " + rollup);
+        Rollup roll;
+        if (rollup != null && rollup.indexOf(',') >= 0) {
+            CompositeRollup composite = new CompositeRollup();
+            for (String name : rollup.split(",")) {
+                name = name.trim();
+                Rollup r = parseRollup(name);
+                if (r == null) {
+                    throw new RuntimeException("Invalid rollup: " + name);
+                }
+                composite.add(name, r);
+            }
+            roll = composite;
+        } else {
+            roll = parseRollup(rollup);
         }
 
         final Interval i = new Interval(roll);
@@ -292,4 +404,28 @@ public class Interval {
         i.finishParsing();
         return i;
     }
+
+    private static Rollup parseRollup(String rollup) {
+        Rollup roll = null;
+        if ("avg".equals(rollup)) {
+            roll = new AvgRollup();
+        } else if ("count".equals(rollup)) {
+            roll = new CountRollup();
+        } else if ("first".equals(rollup)) {
+            roll = new FirstRollup();
+        } else if ("last".equals(rollup)) {
+            roll = new LastRollup();
+        } else if ("max".equals(rollup)) {
+            roll = new MaxRollup();
+        } else if ("min".equals(rollup)) {
+            roll = new MinRollup();
+        } else if ("sum".equals(rollup)) {
+            roll = new SumRollup();
+        } else if ("delta".equals(rollup)) {
+            roll = new DeltaRollup();
+        } else if (!"none".equals(rollup)) {
+            throw new RuntimeException("Invalid rollup: " + rollup);
+        }
+        return roll;
+    }
 }
@@ -18,11 +18,18 @@ public class AvgRollup extends Rollup {
 
     @Override
     public void update(Value value, long ts) {
+        Number num = toNumber(value);
+        if (num == null) {
+            return;
+        }
         count++;
-        total += value.getNumber().doubleValue();
+        total += num.doubleValue();
     }
 
     public Value getValue() {
+        if (count == 0) {
+            return null;
+        }
         double avg = total / count;
         return new Value(avg);
     }
@@ -0,0 +1,59 @@
+package org.dsa.iot.splunk.stats.rollup;
+
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.node.value.ValueUtils;
+import org.dsa.iot.dslink.util.json.JsonObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Combines several rollups over the same values. The value of the rollup
+ * is a map of each rollup name to its value.
+ *
+ * @author Samuel Grenier
+ */
+public class CompositeRollup extends Rollup {
+
+    private final Map<String, Rollup> rollups = new LinkedHashMap<>();
+
+    public void add(String name, Rollup rollup) {
+        rollups.put(name, rollup);
+    }
+
+    @Override
+    public void reset() {
+        for (Rollup r : rollups.values()) {
+            r.reset();
+        }
+    }
+
+    @Override
+    public void update(Value value, long ts) {
+        for (Rollup r : rollups.values()) {
+            r.update(value, ts);
+        }
+    }
+
+    /**
+     * @return The value of each rollup by its name, in the order they
+     *         were added.
+     */
+    public Map<String, Value> getValues() {
+        Map<String, Value> values = new LinkedHashMap<>();
+        for (Map.Entry<String, Rollup> entry : rollups.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().getValue());
+        }
+        return values;
+    }
+
+    @Override
+    public Value getValue() {
+        JsonObject obj = new JsonObject();
+        for (Map.Entry<String, Rollup> entry : rollups.entrySet()) {
+            Value v = entry.getValue().getValue();
+            obj.put(entry.getKey(), ValueUtils.toObject(v));
+        }
+        return new Value(obj);
+    }
+}
@@ -18,10 +18,13 @@ public class DeltaRollup extends Rollup {
 
     @Override
     public void update(Value value, long ts) {
-        if (start == null) {
-            start = value.getNumber();
+        Number num = toNumber(value);
+        if (num == null) {
+            return;
+        } else if (start == null) {
+            start = num;
         }
-        end = value.getNumber();
+        end = num;
     }
 
     @Override
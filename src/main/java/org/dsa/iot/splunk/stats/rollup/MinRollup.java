@@ -16,8 +16,10 @@ public class MinRollup extends Rollup {
 
     @Override
     public void update(Value value, long ts) {
-        Number num = value.getNumber();
-        if (number == null) {
+        Number num = toNumber(value);
+        if (num == null) {
+            return;
+        } else if (number == null) {
             number = num;
         } else {
             double a = num.doubleValue();
@@ -28,6 +30,6 @@ public class MinRollup extends Rollup {
 
     @Override
     public Value getValue() {
-        return new Value(number);
+        return (number == null) ? null : new Value(number);
     }
 }
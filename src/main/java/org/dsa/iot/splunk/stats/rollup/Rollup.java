@@ -24,4 +24,12 @@ public abstract class Rollup {
      * @return The statistical value of the rollup.
      */
     public abstract Value getValue();
+
+    /**
+     * @return The number of the value or {@code null} if the value is not
+     *         numeric, such values are skipped by numeric rollups.
+     */
+    protected static Number toNumber(Value value) {
+        return (value == null) ? null : value.getNumber();
+    }
 }
@@ -16,7 +16,10 @@ public class SumRollup extends Rollup {
 
     @Override
     public void update(Value value, long ts) {
-        sum += value.getNumber().doubleValue();
+        Number num = toNumber(value);
+        if (num != null) {
+            sum += num.doubleValue();
+        }
     }
 
     @Override
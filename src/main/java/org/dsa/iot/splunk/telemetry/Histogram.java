@@ -0,0 +1,99 @@
+package org.dsa.iot.splunk.telemetry;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram with power of two buckets in
+ * microseconds. Recording a sample is a single atomic increment.
+ * Percentiles are estimated from the samples recorded since the previous
+ * {@link #snapshot()}, so they reflect recent latency rather than the
+ * whole lifetime of the histogram.
+ *
+ * @author Samuel Grenier
+ */
+public class Histogram {
+
+    private static final int BUCKETS = 40;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final long[] previous = new long[BUCKETS];
+    private final long[] window = new long[BUCKETS];
+
+    private double p50;
+    private double p99;
+    private double max;
+
+    /**
+     * Records a sample.
+     *
+     * @param nanos Latency in nanoseconds.
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        counts.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+    }
+
+    /**
+     * Computes the percentiles of the samples recorded since the previous
+     * snapshot. If no samples were recorded then the previous percentiles
+     * are retained.
+     */
+    public synchronized void snapshot() {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            long c = counts.get(i);
+            window[i] = c - previous[i];
+            previous[i] = c;
+            total += window[i];
+        }
+        if (total == 0) {
+            return;
+        }
+        p50 = percentile(total, 0.5);
+        p99 = percentile(total, 0.99);
+        max = percentile(total, 1);
+    }
+
+    /**
+     * @return Estimated median of the last snapshot in milliseconds.
+     */
+    public synchronized double getP50() {
+        return p50;
+    }
+
+    /**
+     * @return Estimated 99th percentile of the last snapshot in
+     *         milliseconds.
+     */
+    public synchronized double getP99() {
+        return p99;
+    }
+
+    /**
+     * @return Upper bound of the largest sample of the last snapshot in
+     *         milliseconds.
+     */
+    public synchronized double getMax() {
+        return max;
+    }
+
+    /**
+     * @return The upper bound of the bucket containing the percentile, in
+     *         milliseconds.
+     */
+    private double percentile(long total, double p) {
+        long rank = (long) Math.ceil(total * p);
+        long seen = 0;
+        int i = 0;
+        for (; i < BUCKETS; ++i) {
+            seen += window[i];
+            if (seen >= rank) {
+                break;
+            }
+        }
+        long micros = (i == 0) ? 0 : (1L << i) - 1;
+        return micros / 1000.0;
+    }
+}
@@ -0,0 +1,265 @@
+package org.dsa.iot.splunk.telemetry;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.NodeBuilder;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.node.value.ValueType;
+import org.dsa.iot.dslink.util.Objects;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A set of metrics that are published as child nodes of a node and over
+ * JMX. Counters and histograms are updated by the write pipeline without
+ * locking, their published values are refreshed once a second.
+ *
+ * Counters are {@link AtomicLong}s since the link targets Java 7. They
+ * are mostly incremented by a single writer thread, so contention is
+ * low.
+ *
+ * @author Samuel Grenier
+ */
+public class Telemetry {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Telemetry.class);
+    private static final String DOMAIN = "org.dsa.iot.splunk";
+
+    private final Map<String, Metric> metrics = new LinkedHashMap<>();
+    private final Map<String, Object> snapshot = new ConcurrentHashMap<>();
+    private final Node node;
+    private final ObjectName name;
+
+    private ScheduledFuture<?> refresher;
+    private boolean registered;
+
+    /**
+     * @param node Node to create the metric nodes on.
+     * @param properties Key properties of the JMX name, such as
+     *                   {@code type=Server,name=splunk}.
+     */
+    public Telemetry(Node node, String properties) {
+        this.node = node;
+        ObjectName n = null;
+        try {
+            n = new ObjectName(DOMAIN + ":" + properties);
+        } catch (MalformedObjectNameException e) {
+            LOGGER.warn("Invalid JMX name: {}", properties, e);
+        }
+        this.name = n;
+    }
+
+    /**
+     * Creates a counter.
+     *
+     * @param name Name of the metric.
+     * @param displayName Display name of the node.
+     * @return The counter to increment.
+     */
+    public AtomicLong counter(String name, String displayName) {
+        final AtomicLong counter = new AtomicLong();
+        gauge(name, displayName, new Gauge() {
+            @Override
+            public long get() {
+                return counter.get();
+            }
+        });
+        return counter;
+    }
+
+    /**
+     * Creates a metric whose value is read when it is published.
+     *
+     * @param name Name of the metric.
+     * @param displayName Display name of the node.
+     * @param gauge Provides the value.
+     */
+    public synchronized void gauge(String name, String displayName, final Gauge gauge) {
+        final Node n = createNode(name, displayName);
+        metrics.put(name, new Metric() {
+            @Override
+            public void refresh() {
+                publish(n, gauge.get());
+            }
+        });
+    }
+
+    /**
+     * Creates a latency histogram. Its median, 99th percentile and maximum
+     * are published in milliseconds.
+     *
+     * @param name Name of the metric.
+     * @param displayName Display name of the node.
+     * @return The histogram to record samples into.
+     */
+    public synchronized Histogram histogram(String name, String displayName) {
+        final Histogram histogram = new Histogram();
+        final Node p50 = createNode(name + "P50", displayName + " P50");
+        final Node p99 = createNode(name + "P99", displayName + " P99");
+        final Node max = createNode(name + "Max", displayName + " Max");
+        metrics.put(name, new Metric() {
+            @Override
+            public void refresh() {
+                histogram.snapshot();
+                publish(p50, histogram.getP50());
+                publish(p99, histogram.getP99());
+                publish(max, histogram.getMax());
+            }
+        });
+        return histogram;
+    }
+
+    /**
+     * Starts refreshing the metrics and registers them with JMX. All
+     * metrics must be created before starting.
+     */
+    public synchronized void start() {
+        if (refresher != null) {
+            return;
+        }
+        refresh();
+        refresher = Objects.getDaemonThreadPool().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh();
+                } catch (Exception e) {
+                    LOGGER.warn("Failed to refresh telemetry", e);
+                }
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+
+        if (name != null) {
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+                server.registerMBean(new Bean(), name);
+                registered = true;
+            } catch (Exception e) {
+                LOGGER.warn("Failed to register {} with JMX", name, e);
+            }
+        }
+    }
+
+    public synchronized void stop() {
+        if (refresher != null) {
+            refresher.cancel(false);
+            refresher = null;
+        }
+        if (registered) {
+            registered = false;
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (Exception e) {
+                LOGGER.debug("Failed to unregister {} from JMX", name, e);
+            }
+        }
+    }
+
+    private synchronized void refresh() {
+        for (Metric m : metrics.values()) {
+            m.refresh();
+        }
+    }
+
+    private Node createNode(String name, String displayName) {
+        NodeBuilder builder = node.createChild(name);
+        builder.setDisplayName(displayName);
+        builder.setValueType(ValueType.NUMBER);
+        builder.setValue(new Value(0));
+        builder.setSerializable(false);
+        return builder.build();
+    }
+
+    private void publish(Node n, Number number) {
+        snapshot.put(n.getName(), number);
+        Value value = new Value(number);
+        if (!value.equals(n.getValue())) {
+            n.setValue(value);
+        }
+    }
+
+    /**
+     * Provides the value of a metric.
+     */
+    public interface Gauge {
+        long get();
+    }
+
+    private interface Metric {
+        void refresh();
+    }
+
+    /**
+     * Exposes the last published value of every metric as a read-only
+     * attribute.
+     */
+    private class Bean implements DynamicMBean {
+
+        private final MBeanInfo info;
+
+        public Bean() {
+            MBeanAttributeInfo[] attrs = new MBeanAttributeInfo[snapshot.size()];
+            int i = 0;
+            for (Map.Entry<String, Object> entry : snapshot.entrySet()) {
+                String type = entry.getValue().getClass().getName();
+                attrs[i++] = new MBeanAttributeInfo(entry.getKey(), type,
+                                            entry.getKey(), true, false, false);
+            }
+            info = new MBeanInfo(Telemetry.class.getName(), "DSA Splunk telemetry",
+                                 attrs, null, null, null);
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Object o = snapshot.get(attribute);
+            if (o == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return o;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attr : attributes) {
+                Object o = snapshot.get(attr);
+                if (o != null) {
+                    list.add(new Attribute(attr, o));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Telemetry is read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature)
+                throws MBeanException {
+            throw new MBeanException(new UnsupportedOperationException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            return info;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package org.dsa.iot.splunk.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A streaming reader of CSV search results. Records are parsed one at a
+ * time into a reused array of fields, so reading does not build a map for
+ * each result. Quoted fields may contain separators, line breaks and
+ * escaped quotes.
+ *
+ * The first record is the header. Exports may repeat the header before
+ * every chunk of results, those repetitions are skipped.
+ *
+ * @author Samuel Grenier
+ */
+public class CsvReader implements Closeable {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final StringBuilder field = new StringBuilder();
+    private final char[] buf = new char[8192];
+    private final Reader reader;
+    private final String[] header;
+
+    private String[] fields = new String[8];
+    private int count;
+    private int pos;
+    private int limit;
+
+    /**
+     * Reads the header of the results.
+     *
+     * @param in Results in CSV.
+     * @throws IOException If the header could not be read.
+     */
+    public CsvReader(InputStream in) throws IOException {
+        this.reader = new InputStreamReader(in, UTF_8);
+        if (readRecord()) {
+            header = Arrays.copyOf(fields, count);
+        } else {
+            header = new String[0];
+        }
+    }
+
+    /**
+     * @param column Name of the column.
+     * @return Index of the column or -1 if the results don't have it.
+     */
+    public int indexOf(String column) {
+        for (int i = 0; i < header.length; ++i) {
+            if (header[i].equals(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the next record.
+     *
+     * @return Whether a record was read, {@code false} at the end of the
+     *         results.
+     * @throws IOException If reading failed.
+     */
+    public boolean next() throws IOException {
+        while (readRecord()) {
+            if (count == 1 && fields[0].isEmpty()) {
+                // Blank line
+                continue;
+            } else if (isHeader()) {
+                continue;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param index Index of the column.
+     * @return The field of the current record or {@code null} if the
+     *         record has no such column or the field is empty.
+     */
+    public String get(int index) {
+        if (index < 0 || index >= count) {
+            return null;
+        }
+        String s = fields[index];
+        return s.isEmpty() ? null : s;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private boolean isHeader() {
+        if (count != header.length) {
+            return false;
+        }
+        for (int i = 0; i < count; ++i) {
+            if (!header[i].equals(fields[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses the next record into the fields.
+     *
+     * @return Whether a record was read.
+     */
+    private boolean readRecord() throws IOException {
+        count = 0;
+        field.setLength(0);
+        boolean quoted = false;
+        boolean any = false;
+        while (true) {
+            if (pos >= limit) {
+                limit = reader.read(buf, 0, buf.length);
+                pos = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    if (any) {
+                        addField();
+                    }
+                    return any;
+                }
+            }
+
+            char c = buf[pos++];
+            any = true;
+            if (quoted) {
+                if (c == '"') {
+                    int next = peek();
+                    if (next == '"') {
+                        pos++;
+                        field.append('"');
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                addField();
+            } else if (c == '\n') {
+                addField();
+                return true;
+            } else if (c != '\r') {
+                field.append(c);
+            }
+        }
+    }
+
+    /**
+     * @return The next character without consuming it or -1 at the end
+     *         of the stream.
+     */
+    private int peek() throws IOException {
+        if (pos >= limit) {
+            limit = reader.read(buf, 0, buf.length);
+            pos = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buf[pos];
+    }
+
+    private void addField() {
+        if (count == fields.length) {
+            fields = Arrays.copyOf(fields, count * 2);
+        }
+        fields[count++] = field.toString();
+        field.setLength(0);
+    }
+}
@@ -2,6 +2,8 @@ package org.dsa.iot.splunk.utils;
 
 import org.dsa.iot.dslink.DSLink;
 
+import java.io.File;
+
 /**
  * @author Samuel Grenier
  */
@@ -9,6 +11,7 @@ public class LinkPair {
 
     private DSLink requester;
     private DSLink responder;
+    private File dataDir = new File("data");
 
     public DSLink getRequester() {
         return requester;
@@ -18,6 +21,14 @@ public class LinkPair {
         return responder;
     }
 
+    /**
+     * @return Directory that the spools, history caches and watch state
+     *         of every server are stored in.
+     */
+    public File getDataDir() {
+        return dataDir;
+    }
+
     public void setRequester(DSLink link) {
         this.requester = link;
     }
@@ -25,4 +36,8 @@ public class LinkPair {
     public void setResponder(DSLink link) {
         this.responder = link;
     }
+
+    public void setDataDir(File dataDir) {
+        this.dataDir = dataDir;
+    }
 }
@@ -9,7 +9,9 @@ public enum LoggingType {
     NONE("None"),
     INTERVAL("Interval"),
     POINT_CHANGE("Point Change"),
-    POINT_TIME("Point Time");
+    POINT_TIME("Point Time"),
+    SWINGING_DOOR("Swinging Door"),
+    AGGREGATE("Aggregate");
 
     private final String name;
 
@@ -32,6 +34,10 @@ public enum LoggingType {
             return POINT_CHANGE;
         } else if (POINT_TIME.getName().equals(s)) {
             return POINT_TIME;
+        } else if (SWINGING_DOOR.getName().equals(s)) {
+            return SWINGING_DOOR;
+        } else if (AGGREGATE.getName().equals(s)) {
+            return AGGREGATE;
         } else {
             throw new IllegalArgumentException("Invalid logging type: " + s);
         }
@@ -0,0 +1,33 @@
+package org.dsa.iot.splunk.utils;
+
+/**
+ * @author Samuel Grenier
+ */
+public enum OverflowPolicy {
+
+    DROP_OLDEST("Drop Oldest"),
+    DROP_NEWEST("Drop Newest"),
+    LATEST_PER_PATH("Latest Per Path");
+
+    private final String name;
+
+    OverflowPolicy(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public static OverflowPolicy toEnum(String s) {
+        if (DROP_OLDEST.getName().equals(s)) {
+            return DROP_OLDEST;
+        } else if (DROP_NEWEST.getName().equals(s)) {
+            return DROP_NEWEST;
+        } else if (LATEST_PER_PATH.getName().equals(s)) {
+            return LATEST_PER_PATH;
+        } else {
+            throw new IllegalArgumentException("Invalid overflow policy: " + s);
+        }
+    }
+}
@@ -3,6 +3,8 @@ package org.dsa.iot.splunk.utils;
 import org.dsa.iot.dslink.node.value.Value;
 import org.dsa.iot.splunk.splunk.Watch;
 
+import java.util.Map;
+
 /**
  * @author Samuel Grenier
  */
@@ -12,12 +14,26 @@ public class PathValuePair {
     private final String path;
     private final Value value;
     private final long time;
+    private final Map<String, Value> rollups;
 
     public PathValuePair(Watch watch, String path, Value value, long time) {
+        this(watch, path, value, time, null);
+    }
+
+    /**
+     * @param rollups Value of each rollup of an aggregated period, written
+     *                as separate fields next to the value.
+     */
+    public PathValuePair(Watch watch,
+                         String path,
+                         Value value,
+                         long time,
+                         Map<String, Value> rollups) {
         this.watch = watch;
         this.path = path;
         this.value = value;
         this.time = time;
+        this.rollups = rollups;
     }
 
     public Watch getWatch() {
@@ -35,4 +51,12 @@ public class PathValuePair {
     public long getTime() {
         return time;
     }
+
+    /**
+     * @return Value of each rollup by its name or {@code null} if the
+     *         pair is not an aggregate of several rollups.
+     */
+    public Map<String, Value> getRollups() {
+        return rollups;
+    }
 }
@@ -0,0 +1,117 @@
+package org.dsa.iot.splunk.utils;
+
+import org.dsa.iot.dslink.util.handler.Handler;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free, bounded ring buffer that supports many producers and a
+ * single consumer. Producers claim a sequence with a CAS on the claim
+ * cursor, store the item in its slot and then publish the sequence for
+ * that slot. The consumer only reads slots whose sequence was published,
+ * so a slow producer never exposes a partially written slot.
+ *
+ * @author Samuel Grenier
+ */
+public class RingBuffer<T> {
+
+    private final Object[] entries;
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong();
+    private final int mask;
+
+    /**
+     * Next sequence to be consumed. Only written by the consumer.
+     */
+    private volatile long consumed;
+
+    /**
+     * @param capacity Capacity of the ring, must be a power of two.
+     */
+    public RingBuffer(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("capacity must be a power of two");
+        }
+        this.entries = new Object[capacity];
+        this.published = new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+        for (int i = 0; i < capacity; ++i) {
+            published.set(i, -1);
+        }
+    }
+
+    /**
+     * Publishes an item into the ring. Safe to call from any thread.
+     *
+     * @param item Item to publish.
+     * @return Whether the item was published, {@code false} if the ring
+     *         is full.
+     */
+    public boolean offer(T item) {
+        if (item == null) {
+            throw new NullPointerException("item");
+        }
+        long seq;
+        do {
+            seq = claimed.get();
+            if (seq - consumed >= entries.length) {
+                return false;
+            }
+        } while (!claimed.compareAndSet(seq, seq + 1));
+
+        int index = (int) seq & mask;
+        entries[index] = item;
+        published.lazySet(index, seq);
+        return true;
+    }
+
+    /**
+     * Consumes published items in order. Must only be called from the
+     * consuming thread.
+     *
+     * @param handler Handler that receives each item.
+     * @param max Maximum amount of items to consume.
+     * @return Amount of items consumed.
+     */
+    @SuppressWarnings("unchecked")
+    public int drain(Handler<T> handler, int max) {
+        long seq = consumed;
+        int count = 0;
+        try {
+            while (count < max) {
+                int index = (int) seq & mask;
+                if (published.get(index) != seq) {
+                    break;
+                }
+                T item = (T) entries[index];
+                entries[index] = null;
+                seq++;
+                count++;
+                handler.handle(item);
+            }
+        } finally {
+            consumed = seq;
+        }
+        return count;
+    }
+
+    /**
+     * @return Whether there is nothing left to consume.
+     */
+    public boolean isEmpty() {
+        long seq = consumed;
+        return published.get((int) seq & mask) != seq;
+    }
+
+    /**
+     * @return Approximate amount of items waiting to be consumed.
+     */
+    public int size() {
+        return (int) Math.max(0, claimed.get() - consumed);
+    }
+
+    public int getCapacity() {
+        return entries.length;
+    }
+}
@@ -0,0 +1,18 @@
+package org.dsa.iot.splunk.utils;
+
+/**
+ * @author Samuel Grenier
+ */
+public class SearchUtils {
+
+    /**
+     * Quotes a value for a search, such as a path or an index name, so
+     * that quotes and backslashes within it are matched literally.
+     *
+     * @param value Value to quote.
+     * @return The value as a quoted string of a search.
+     */
+    public static String quote(String value) {
+        return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+}
@@ -0,0 +1,105 @@
+package org.dsa.iot.splunk.actions;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * @author Samuel Grenier
+ */
+public class FlightsTest {
+
+    @Test(timeout = 30000)
+    public void startsOneSearchPerKey() throws Exception {
+        final int keys = 4;
+        final int requests = 32;
+        for (int round = 0; round < 100; ++round) {
+            final Flights<Flight> flights = new Flights<>();
+            final AtomicInteger searches = new AtomicInteger();
+            final AtomicInteger joined = new AtomicInteger();
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < requests; ++i) {
+                final String key = "key" + (i % keys);
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        Flight f = flights.join(key, new Flights.Joiner<Flight>() {
+                            @Override
+                            public Flight create(String key) {
+                                return new Flight();
+                            }
+
+                            @Override
+                            public boolean join(Flight flight) {
+                                joined.incrementAndGet();
+                                return flight.joinable;
+                            }
+                        });
+                        if (f != null) {
+                            searches.incrementAndGet();
+                        }
+                    }
+                });
+                t.start();
+                threads.add(t);
+            }
+            start.countDown();
+            for (Thread t : threads) {
+                t.join();
+            }
+            assertEquals(keys, searches.get());
+            assertEquals(requests, joined.get());
+            assertEquals(keys, flights.size());
+        }
+    }
+
+    @Test
+    public void replacesFlightsThatNoLongerAcceptRequests() {
+        Flights<Flight> flights = new Flights<>();
+        Flight first = flights.join("a", joiner());
+        assertNotNull(first);
+        assertNull(flights.join("a", joiner()));
+
+        first.joinable = false;
+        Flight second = flights.join("a", joiner());
+        assertNotNull(second);
+
+        // The finished first flight must not remove the second one
+        flights.remove("a", first);
+        assertNull(flights.join("a", joiner()));
+        flights.remove("a", second);
+        assertEquals(0, flights.size());
+    }
+
+    private static Flights.Joiner<Flight> joiner() {
+        return new Flights.Joiner<Flight>() {
+            @Override
+            public Flight create(String key) {
+                return new Flight();
+            }
+
+            @Override
+            public boolean join(Flight flight) {
+                return flight.joinable;
+            }
+        };
+    }
+
+    private static class Flight {
+
+        private volatile boolean joinable = true;
+    }
+}
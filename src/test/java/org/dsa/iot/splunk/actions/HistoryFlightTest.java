@@ -0,0 +1,162 @@
+package org.dsa.iot.splunk.actions;
+
+import org.dsa.iot.dslink.node.actions.table.BatchRow;
+import org.dsa.iot.dslink.node.actions.table.Row;
+import org.dsa.iot.dslink.node.actions.table.Table;
+import org.dsa.iot.dslink.node.value.Value;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Samuel Grenier
+ */
+public class HistoryFlightTest {
+
+    @Test
+    public void sendsFullBatchesAndTheRestOnClose() {
+        RecordingTable table = new RecordingTable(null);
+        HistoryFlight flight = new HistoryFlight("key", null);
+        flight.join(new HistoryStream(table, null, 2, 0), null);
+        for (int i = 0; i < 5; ++i) {
+            flight.handle(i, new Value(i));
+        }
+        assertEquals(2, table.batches.size());
+
+        flight.finish();
+        assertEquals(3, table.batches.size());
+        assertEquals(1, table.batches.get(2).getRows().size());
+        assertEquals(5, table.values().size());
+        assertTrue(table.closed);
+    }
+
+    @Test
+    public void closesOnceTheRowLimitIsReached() {
+        RecordingTable table = new RecordingTable(null);
+        HistoryFlight flight = new HistoryFlight("key", null);
+        flight.join(new HistoryStream(table, null, 2, 3), null);
+        for (int i = 0; i < 5 && !flight.isDone(); ++i) {
+            flight.handle(i, new Value(i));
+        }
+        assertTrue(flight.isDone());
+        assertTrue(table.closed);
+
+        List<Row> rows = table.rows();
+        assertEquals(4, rows.size());
+        for (int i = 0; i < 3; ++i) {
+            assertEquals(i, rows.get(i).getValues().get(1).getNumber().intValue());
+        }
+        Row status = rows.get(3);
+        assertEquals(rows.get(2).getValues().get(0), status.getValues().get(0));
+        assertNull(status.getValues().get(1));
+        assertEquals("Reached the limit of 3 rows", status.getValues().get(2).getString());
+    }
+
+    @Test
+    public void hasNoStatusRowWithinTheLimit() {
+        RecordingTable table = new RecordingTable(null);
+        HistoryFlight flight = new HistoryFlight("key", null);
+        flight.join(new HistoryStream(table, null, 2, 3), null);
+        for (int i = 0; i < 3; ++i) {
+            flight.handle(i, new Value(i));
+        }
+        assertFalse(flight.isDone());
+
+        flight.finish();
+        assertEquals(3, table.rows().size());
+        assertEquals(Arrays.asList(0, 1, 2), table.values());
+    }
+
+    @Test(timeout = 10000)
+    public void joinsWhileAStreamIsBlocked() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingTable slow = new RecordingTable(release);
+        RecordingTable late = new RecordingTable(null);
+        final HistoryFlight flight = new HistoryFlight("key", null);
+        flight.join(new HistoryStream(slow, null, 1, 0), null);
+
+        final int count = 10;
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < count; ++i) {
+                    flight.handle(i, new Value(i));
+                }
+            }
+        });
+        producer.start();
+        assertTrue(slow.sending.await(5, TimeUnit.SECONDS));
+
+        // The producer is stuck sending to the slow stream
+        assertTrue(flight.join(new HistoryStream(late, null, 1, 0), null));
+        release.countDown();
+        producer.join();
+        flight.finish();
+
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            expected.add(i);
+        }
+        assertEquals(expected, slow.values());
+        assertEquals(expected, late.values());
+    }
+
+    private static class RecordingTable extends Table {
+
+        private final List<BatchRow> batches = new ArrayList<>();
+        private final CountDownLatch sending = new CountDownLatch(1);
+        private final CountDownLatch release;
+        private volatile boolean closed;
+
+        private RecordingTable(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public void addBatchRows(BatchRow batch) {
+            sending.countDown();
+            if (release != null) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            synchronized (batches) {
+                batches.add(batch);
+            }
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        private List<Row> rows() {
+            List<Row> rows = new ArrayList<>();
+            synchronized (batches) {
+                for (BatchRow batch : batches) {
+                    rows.addAll(batch.getRows());
+                }
+            }
+            return rows;
+        }
+
+        private List<Integer> values() {
+            List<Integer> values = new ArrayList<>();
+            for (Row row : rows()) {
+                values.add(row.getValues().get(1).getNumber().intValue());
+            }
+            return values;
+        }
+    }
+}
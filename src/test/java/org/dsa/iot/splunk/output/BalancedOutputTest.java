@@ -0,0 +1,161 @@
+package org.dsa.iot.splunk.output;
+
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.util.handler.Handler;
+import org.dsa.iot.splunk.splunk.EventBatch;
+import org.dsa.iot.splunk.utils.PathValuePair;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Writes batches split by path through lanes of local stand-in outputs.
+ *
+ * @author Samuel Grenier
+ */
+public class BalancedOutputTest {
+
+    private static final int LANES = 2;
+
+    private final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+    private final List<EventBatch> undelivered = new CopyOnWriteArrayList<>();
+    private final List<String> failing = new CopyOnWriteArrayList<>();
+    private BalancedOutput output;
+    private String good;
+    private String bad;
+
+    @Before
+    public void setUp() {
+        output = new BalancedOutput(Arrays.asList("a:1", "b:1"), LANES,
+                                    Balancing.PATH_HASH, EventBatch.Format.RAW,
+                                    new BalancedOutput.Connector() {
+            @Override
+            public Output connect(String endpoint) {
+                return new FakeOutput();
+            }
+        });
+
+        // One path of each lane
+        for (int i = 0; good == null || bad == null; ++i) {
+            String path = "/point" + i;
+            if (laneOf(path) == 0) {
+                good = (good == null) ? path : good;
+            } else {
+                bad = (bad == null) ? path : bad;
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        output.close();
+    }
+
+    @Test
+    public void writesEveryLane() throws IOException {
+        output.setUndeliveredHandler(handler());
+        output.write(batch(good, bad, good, bad));
+        assertEquals(4, written.size());
+        assertEquals(0, undelivered.size());
+    }
+
+    @Test
+    public void handsBackOnlyFailedLanes() throws IOException {
+        output.setUndeliveredHandler(handler());
+        failing.add(bad);
+        output.write(batch(good, bad, good, bad));
+
+        assertEquals(Arrays.asList(good, good), written);
+        assertEquals(1, undelivered.size());
+        EventBatch back = undelivered.get(0);
+        assertEquals(2, back.size());
+        for (PathValuePair pair : back.getPairs()) {
+            assertEquals(bad, pair.getPath());
+        }
+    }
+
+    @Test
+    public void failsWhenEveryLaneFails() {
+        output.setUndeliveredHandler(handler());
+        failing.add(good);
+        failing.add(bad);
+        try {
+            output.write(batch(good, bad));
+            fail("Write succeeded");
+        } catch (IOException expected) {
+        }
+        assertTrue(written.isEmpty());
+        assertTrue(undelivered.isEmpty());
+    }
+
+    @Test
+    public void failsWithoutUndeliveredHandler() {
+        failing.add(bad);
+        try {
+            output.write(batch(good, bad));
+            fail("Write succeeded");
+        } catch (IOException expected) {
+        }
+        assertEquals(Collections.singletonList(good), written);
+    }
+
+    private Handler<EventBatch> handler() {
+        return new Handler<EventBatch>() {
+            @Override
+            public void handle(EventBatch batch) {
+                undelivered.add(batch);
+            }
+        };
+    }
+
+    private static EventBatch batch(String... paths) {
+        EventBatch batch = new EventBatch(EventBatch.Format.RAW);
+        for (int i = 0; i < paths.length; ++i) {
+            batch.add(new PathValuePair(null, paths[i], new Value(i), 1000 + i));
+        }
+        return batch;
+    }
+
+    private static int laneOf(String path) {
+        return (path.hashCode() & Integer.MAX_VALUE) % LANES;
+    }
+
+    /**
+     * Records the paths of written events and fails batches that contain
+     * a failing path.
+     */
+    private class FakeOutput extends Output {
+
+        @Override
+        public EventBatch.Format getFormat() {
+            return EventBatch.Format.RAW;
+        }
+
+        @Override
+        public void write(EventBatch batch) throws IOException {
+            for (PathValuePair pair : batch.getPairs()) {
+                if (failing.contains(pair.getPath())) {
+                    throw new IOException("Failed to write " + pair.getPath());
+                }
+            }
+            for (PathValuePair pair : batch.getPairs()) {
+                written.add(pair.getPath());
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package org.dsa.iot.splunk.output;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.dsa.iot.dslink.util.handler.Handler;
+import org.dsa.iot.splunk.splunk.EventBatch;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Posts batches to a local stand-in of the HTTP event collector.
+ *
+ * @author Samuel Grenier
+ */
+public class HecOutputTest {
+
+    private static final String TOKEN = "00000000-0000-0000-0000-000000000000";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final BlockingQueue<Request> requests = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Integer> codes = new LinkedBlockingQueue<>();
+    private final List<EventBatch> undelivered = new CopyOnWriteArrayList<>();
+    private HttpServer server;
+    private HecOutput output;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/services/collector/event", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                Request req = new Request();
+                req.auth = exchange.getRequestHeaders().getFirst("Authorization");
+                InputStream in = exchange.getRequestBody();
+                if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                    in = new GZIPInputStream(in);
+                }
+                req.body = new String(readFully(in), StandardCharsets.UTF_8);
+                requests.add(req);
+
+                Integer code = codes.poll();
+                if (code == null) {
+                    code = 200;
+                }
+                byte[] resp = "{\"text\":\"Success\",\"code\":0}".getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(code, resp.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(resp);
+                out.close();
+            }
+        });
+        server.start();
+
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+        output = new HecOutput(url, TOKEN, 1, false);
+        output.setUndeliveredHandler(new Handler<EventBatch>() {
+            @Override
+            public void handle(EventBatch batch) {
+                undelivered.add(batch);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        output.close();
+        server.stop(0);
+    }
+
+    @Test(timeout = 10000)
+    public void postsCompressedBatch() throws Exception {
+        output.write(batch("{\"event\":1}\r\n", 1));
+
+        Request req = requests.poll(5, TimeUnit.SECONDS);
+        assertNotNull(req);
+        assertEquals("Splunk " + TOKEN, req.auth);
+        assertEquals("{\"event\":1}\r\n", req.body);
+
+        output.close();
+        assertTrue(undelivered.isEmpty());
+    }
+
+    @Test(timeout = 10000)
+    public void dropsRejectedBatch() throws Exception {
+        codes.add(400);
+        output.write(batch("{\"event\":1}\r\n", 1));
+        assertEquals("{\"event\":1}\r\n", requests.poll(5, TimeUnit.SECONDS).body);
+
+        // The only permit is released without retrying the rejected batch
+        output.write(batch("{\"event\":2}\r\n", 1));
+        assertEquals("{\"event\":2}\r\n", requests.poll(5, TimeUnit.SECONDS).body);
+
+        output.close();
+        assertTrue(undelivered.isEmpty());
+        assertNull(requests.poll());
+    }
+
+    @Test(timeout = 10000)
+    public void retriesUnauthorizedBatch() throws Exception {
+        codes.add(403);
+        output.write(batch("{\"event\":1}\r\n", 1));
+        assertNotNull(requests.poll(5, TimeUnit.SECONDS));
+
+        // Handed back for the spool rather than dropped
+        output.close();
+        assertEquals(1, undelivered.size());
+    }
+
+    @Test(timeout = 10000)
+    public void handsBackRetriedBatchOnClose() throws Exception {
+        codes.add(503);
+        output.write(batch("{\"event\":1}\r\n{\"event\":2}\r\n", 2));
+        assertNotNull(requests.poll(5, TimeUnit.SECONDS));
+
+        output.close();
+        assertEquals(1, undelivered.size());
+        EventBatch batch = undelivered.get(0);
+        assertEquals(2, batch.size());
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        batch.writeTo(baos);
+        assertEquals("{\"event\":1}\r\n{\"event\":2}\r\n",
+                     new String(baos.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test(timeout = 10000)
+    public void spoolsMeasurementsHandedBackOnClose() throws Exception {
+        codes.add(503);
+        String metric = "{\"time\":1.000,\"event\":\"metric\",\"fields\":"
+                + "{\"metric_name\":\"/a\",\"_value\":1}}\r\n";
+        output.write(batch(EventBatch.Format.METRICS, metric, 1));
+        assertNotNull(requests.poll(5, TimeUnit.SECONDS));
+        output.close();
+        assertEquals(1, undelivered.size());
+        assertEquals(EventBatch.Format.METRICS, undelivered.get(0).getFormat());
+
+        Spool spool = new Spool(folder.getRoot(), 64L * 1024 * 1024);
+        try {
+            assertTrue(spool.append(undelivered.get(0)));
+            EventBatch replayed = new EventBatch(EventBatch.Format.METRICS);
+            assertTrue(spool.read(replayed));
+            assertEquals(1, replayed.size());
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            replayed.writeTo(baos);
+            assertEquals(metric, new String(baos.toByteArray(), StandardCharsets.UTF_8));
+        } finally {
+            spool.close();
+        }
+    }
+
+    @Test
+    public void rejectsOnlyClientErrors() {
+        assertTrue(HecOutput.isRejected(400));
+        assertTrue(HecOutput.isRejected(413));
+        assertTrue(!HecOutput.isRejected(401));
+        assertTrue(!HecOutput.isRejected(403));
+        assertTrue(!HecOutput.isRejected(404));
+        assertTrue(!HecOutput.isRejected(408));
+        assertTrue(!HecOutput.isRejected(429));
+        assertTrue(!HecOutput.isRejected(500));
+        assertTrue(!HecOutput.isRejected(503));
+    }
+
+    private static EventBatch batch(String events, int count) {
+        return batch(EventBatch.Format.HEC, events, count);
+    }
+
+    private static EventBatch batch(EventBatch.Format format, String events, int count) {
+        byte[] data = events.getBytes(StandardCharsets.UTF_8);
+        EventBatch batch = new EventBatch(format);
+        batch.read(ByteBuffer.wrap(data), data.length, count);
+        return batch;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int read;
+        while ((read = in.read(buf)) != -1) {
+            baos.write(buf, 0, read);
+        }
+        return baos.toByteArray();
+    }
+
+    private static class Request {
+
+        private String auth;
+        private String body;
+    }
+}
@@ -0,0 +1,132 @@
+package org.dsa.iot.splunk.output;
+
+import org.dsa.iot.splunk.splunk.EventBatch;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Samuel Grenier
+ */
+public class SpoolTest {
+
+    private static final long MAX_BYTES = 64L * 1024 * 1024;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replaysInOrder() throws IOException {
+        Spool spool = new Spool(folder.getRoot(), MAX_BYTES);
+        assertFalse(spool.hasPending());
+        assertTrue(spool.append(batch(EventBatch.Format.RAW, "a", "b")));
+        assertTrue(spool.append(batch(EventBatch.Format.RAW, "c")));
+        assertEquals(3, spool.getPendingEvents());
+
+        EventBatch batch = new EventBatch(EventBatch.Format.RAW);
+        assertTrue(spool.read(batch));
+        assertEquals("a\r\nb\r\n", content(batch));
+        // Reading again without committing returns the same record
+        batch.clear();
+        assertTrue(spool.read(batch));
+        assertEquals("a\r\nb\r\n", content(batch));
+        spool.commit(batch);
+
+        batch.clear();
+        assertTrue(spool.read(batch));
+        assertEquals("c\r\n", content(batch));
+        spool.commit(batch);
+
+        batch.clear();
+        assertFalse(spool.read(batch));
+        assertFalse(spool.hasPending());
+        spool.close();
+    }
+
+    @Test
+    public void resumesAfterRestart() throws IOException {
+        File dir = folder.getRoot();
+        Spool spool = new Spool(dir, MAX_BYTES);
+        spool.append(batch(EventBatch.Format.HEC, "a"));
+        spool.append(batch(EventBatch.Format.HEC, "b", "c"));
+        EventBatch batch = new EventBatch(EventBatch.Format.HEC);
+        assertTrue(spool.read(batch));
+        spool.commit(batch);
+        spool.close();
+
+        spool = new Spool(dir, MAX_BYTES);
+        assertEquals(2, spool.getPendingEvents());
+        spool.append(batch(EventBatch.Format.HEC, "d"));
+        assertEquals(3, spool.getPendingEvents());
+
+        batch.clear();
+        assertTrue(spool.read(batch));
+        assertEquals("b\r\nc\r\n", content(batch));
+        spool.commit(batch);
+        spool.close();
+
+        spool = new Spool(dir, MAX_BYTES);
+        assertEquals(1, spool.getPendingEvents());
+        batch.clear();
+        assertTrue(spool.read(batch));
+        assertEquals("d\r\n", content(batch));
+        spool.commit(batch);
+        batch.clear();
+        assertFalse(spool.read(batch));
+        spool.close();
+
+        spool = new Spool(dir, MAX_BYTES);
+        assertFalse(spool.hasPending());
+        spool.close();
+    }
+
+    @Test
+    public void discardsRecordsOfOtherFormats() throws IOException {
+        Spool spool = new Spool(folder.getRoot(), MAX_BYTES);
+        spool.append(batch(EventBatch.Format.RAW, "a"));
+        spool.append(batch(EventBatch.Format.HEC, "b"));
+
+        EventBatch batch = new EventBatch(EventBatch.Format.HEC);
+        assertTrue(spool.read(batch));
+        assertEquals("b\r\n", content(batch));
+        assertEquals(1, spool.getPendingEvents());
+        spool.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void requiresReadBeforeCommit() throws IOException {
+        Spool spool = new Spool(folder.getRoot(), MAX_BYTES);
+        try {
+            spool.commit(new EventBatch(EventBatch.Format.RAW));
+        } finally {
+            spool.close();
+        }
+    }
+
+    private static EventBatch batch(EventBatch.Format format, String... events) {
+        StringBuilder sb = new StringBuilder();
+        for (String e : events) {
+            sb.append(e).append("\r\n");
+        }
+        byte[] data = sb.toString().getBytes(StandardCharsets.UTF_8);
+        EventBatch batch = new EventBatch(format);
+        batch.read(ByteBuffer.wrap(data), data.length, events.length);
+        return batch;
+    }
+
+    private static String content(EventBatch batch) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        batch.writeTo(baos);
+        return new String(baos.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
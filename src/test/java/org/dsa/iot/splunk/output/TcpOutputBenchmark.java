@@ -0,0 +1,140 @@
+package org.dsa.iot.splunk.output;
+
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.util.json.JsonObject;
+import org.dsa.iot.splunk.splunk.EventBatch;
+import org.dsa.iot.splunk.utils.PathValuePair;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Measures how many events per second are written to a TCP input, once
+ * the way watch groups used to write them, with a {@link JsonObject} and
+ * a flush per event, and once batched through a {@link TcpOutput} with a
+ * single flush per batch. The input is a local socket that discards what
+ * it reads.
+ *
+ * Not a test, run it with {@code main} and optionally the amount of
+ * events as the first argument.
+ *
+ * @author Samuel Grenier
+ */
+public class TcpOutputBenchmark {
+
+    private static final int PATHS = 1000;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int events = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+        PathValuePair[] pairs = new PathValuePair[events];
+        long time = System.currentTimeMillis();
+        for (int i = 0; i < events; ++i) {
+            String path = "/downstream/bench/point" + (i % PATHS);
+            pairs[i] = new PathValuePair(null, path, new Value(i * 0.5), time + i);
+        }
+
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        try {
+            for (int round = 0; round < ROUNDS; ++round) {
+                // The first round warms up both paths
+                double before = perEvent(server, pairs);
+                double after = batched(server, pairs);
+                System.out.printf("round %d: per event %.0f events/s, batched %.0f events/s (%.1fx)%n",
+                                  round, before, after, after / before);
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * Writes every event on its own, as watch groups did before batching.
+     */
+    private static double perEvent(ServerSocket server, PathValuePair[] pairs) throws Exception {
+        Sink sink = new Sink(server);
+        OutputStreamWriter writer = new OutputStreamWriter(sink.out, "UTF-8");
+        long start = System.nanoTime();
+        for (PathValuePair pair : pairs) {
+            JsonObject obj = new JsonObject();
+            obj.put("timestamp", pair.getTime());
+            obj.put("path", pair.getPath());
+            obj.put("value", pair.getValue().getNumber());
+            writer.write(new String(obj.encode(), StandardCharsets.UTF_8));
+            writer.write("\r\n");
+            writer.flush();
+        }
+        writer.close();
+        return sink.finish(pairs.length, start);
+    }
+
+    /**
+     * Encodes the events into batches that are each written with a single
+     * flush.
+     */
+    private static double batched(ServerSocket server, PathValuePair[] pairs) throws Exception {
+        Sink sink = new Sink(server);
+        TcpOutput output = new TcpOutput(sink.out);
+        EventBatch batch = new EventBatch(output.getFormat());
+        long start = System.nanoTime();
+        for (PathValuePair pair : pairs) {
+            if (!batch.add(pair)) {
+                output.write(batch);
+                batch.clear();
+                batch.add(pair);
+            }
+        }
+        if (!batch.isEmpty()) {
+            output.write(batch);
+        }
+        output.close();
+        return sink.finish(pairs.length, start);
+    }
+
+    /**
+     * A connection to the local input that is read until it is closed.
+     */
+    private static class Sink {
+
+        private final OutputStream out;
+        private final Thread reader;
+
+        private Sink(ServerSocket server) throws IOException {
+            Socket client = new Socket(server.getInetAddress(), server.getLocalPort());
+            final Socket accepted = server.accept();
+            this.out = client.getOutputStream();
+            this.reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] buf = new byte[65536];
+                    try {
+                        InputStream in = accepted.getInputStream();
+                        while (in.read(buf) != -1) {
+                            // Discarded
+                        }
+                        accepted.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            });
+            reader.start();
+        }
+
+        /**
+         * Waits until every written byte was read.
+         *
+         * @return Events per second since the start.
+         */
+        private double finish(int events, long start) throws InterruptedException {
+            reader.join();
+            long nanos = System.nanoTime() - start;
+            return events / (nanos / 1e9);
+        }
+    }
+}
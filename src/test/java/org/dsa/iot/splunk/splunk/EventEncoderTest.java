@@ -0,0 +1,245 @@
+package org.dsa.iot.splunk.splunk;
+
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.util.json.JsonArray;
+import org.dsa.iot.dslink.util.json.JsonObject;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that encoded events are identical to what {@link JsonObject}
+ * encodes for the same event.
+ *
+ * @author Samuel Grenier
+ */
+public class EventEncoderTest {
+
+    private static final long TIME = 1451703845678L;
+
+    private final EventEncoder encoder = new EventEncoder(16);
+
+    @Test
+    public void encodesStringsLikeJsonObject() {
+        String[] strings = {
+                "",
+                "plain",
+                "quote \" and backslash \\ and slash /",
+                "control \b\t\n\f\r \u0000 \u001F \u007F",
+                "latin \u00E9, euro \u20AC, cjk \u4E2D",
+                "\uFFFF"
+        };
+        for (String s : strings) {
+            assertValue(new Value(s));
+        }
+    }
+
+    @Test
+    public void encodesNumbersLikeJsonObject() {
+        Number[] numbers = {
+                0, -1, Integer.MAX_VALUE, Integer.MIN_VALUE,
+                Long.MAX_VALUE, Long.MIN_VALUE, 1234567890123L,
+                0.0, -0.0, 1.5, -2.25, 1e-7, 1.0E22, Double.MAX_VALUE, Double.MIN_VALUE,
+                Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                1.5f, Float.NaN,
+                new BigDecimal("12345678901234567890.123")
+        };
+        for (Number n : numbers) {
+            assertValue(new Value(n));
+        }
+    }
+
+    @Test
+    public void encodesOtherValuesLikeJsonObject() {
+        assertValue(new Value(true));
+        assertValue(new Value(false));
+        assertValue(null);
+
+        JsonObject map = new JsonObject();
+        map.put("a", 1);
+        map.put("b \u00E9", "c\n");
+        map.put("d", new JsonArray().add(1.5).add(null).add(false));
+        map.put("e", new JsonObject());
+        assertValue(new Value(map));
+        assertValue(new Value(new JsonArray()));
+    }
+
+    @Test
+    public void encodesBinaryLikeJsonObject() {
+        for (int length = 0; length < 8; ++length) {
+            byte[] data = new byte[length];
+            for (int i = 0; i < length; ++i) {
+                data[i] = (byte) (i * 73 - 128);
+            }
+            encoder.reset();
+            encoder.writeByte('[');
+            encoder.writeObject(data);
+            encoder.writeByte(']');
+            assertEquals(string(new JsonArray().add(data).encode()), encoded());
+        }
+    }
+
+    @Test
+    public void writesSupplementaryCharactersAsUtf8() {
+        String s = "emoji \uD83D\uDE00 and \uD834\uDD1E";
+        encoder.reset();
+        encoder.writeString(s);
+        assertEquals('"' + s + '"', encoded());
+
+        // Decodes to the same string as the escapes of JsonObject
+        encoder.reset();
+        encoder.writeRaw("{\"value\":".getBytes(StandardCharsets.UTF_8));
+        encoder.writeString(s);
+        encoder.writeByte('}');
+        assertEquals(s, new JsonObject(encoded()).get("value"));
+    }
+
+    @Test
+    public void escapesLoneSurrogates() {
+        encoder.reset();
+        encoder.writeString("a\uD800b\uDC00");
+        assertEquals("\"a\\uD800b\\uDC00\"", encoded());
+    }
+
+    @Test
+    public void encodesRawEvents() {
+        JsonObject expected = new JsonObject();
+        expected.put("time", isoTime(TIME));
+        expected.put("timestamp", TIME);
+        expected.put("path", "/downstream/a/b");
+        expected.put("value", 3);
+
+        encoder.encode("/downstream/a/b", new Value(3), TIME, EventBatch.Format.RAW);
+        assertEquals(string(expected.encode()), encoded());
+    }
+
+    @Test
+    public void encodesHecEvents() {
+        Map<String, Value> rollups = new LinkedHashMap<>();
+        rollups.put("min", new Value(1));
+        rollups.put("max", new Value(4.5));
+
+        JsonObject event = new JsonObject();
+        event.put("timestamp", TIME);
+        event.put("path", "/a");
+        event.put("value", 1);
+        event.put("value_min", 1);
+        event.put("value_max", 4.5);
+        JsonObject expected = new JsonObject();
+        expected.put("time", BigDecimal.valueOf(TIME, 3));
+        expected.put("event", event);
+
+        encoder.encode("/a", new Value(1), rollups, TIME, EventBatch.Format.HEC);
+        assertEquals(string(expected.encode()), encoded());
+    }
+
+    @Test
+    public void encodesMeasurements() {
+        JsonObject fields = new JsonObject();
+        fields.put("metric_name", "/a");
+        fields.put("_value", 2.5);
+        JsonObject expected = new JsonObject();
+        expected.put("time", BigDecimal.valueOf(TIME, 3));
+        expected.put("event", "metric");
+        expected.put("index", "dsa_metrics");
+        expected.put("fields", fields);
+
+        encoder.setMetricsIndex("dsa_metrics");
+        encoder.encode("/a", new Value(2.5), TIME, EventBatch.Format.METRICS);
+        assertEquals(string(expected.encode()), encoded());
+    }
+
+    @Test
+    public void fallsBackToEventsForNonNumericMeasurements() {
+        Value[] values = {new Value("on"), new Value(Double.NaN), null};
+        for (Value v : values) {
+            encoder.reset();
+            encoder.encode("/a", v, TIME, EventBatch.Format.METRICS);
+            String metric = encoded();
+
+            encoder.reset();
+            encoder.encode("/a", v, TIME, EventBatch.Format.HEC);
+            assertEquals(encoded(), metric);
+        }
+    }
+
+    @Test
+    public void writesSecondsLikeBigDecimal() {
+        long[] times = {0, 1, 999, 1000, 1001, -1, -999, -1000, -1001, TIME, -TIME};
+        for (long t : times) {
+            encoder.reset();
+            encoder.writeSeconds(t);
+            assertEquals(BigDecimal.valueOf(t, 3).toString(), encoded());
+        }
+    }
+
+    @Test
+    public void writesIsoTimes() {
+        long[] times = {
+                0, 1, -1, TIME, 951782400000L, 4102444799999L, -62135596800000L,
+                -2208988800001L
+        };
+        for (long t : times) {
+            encoder.reset();
+            encoder.writeIsoTime(t);
+            assertEquals('"' + isoTime(t) + '"', encoded());
+        }
+    }
+
+    private void assertValue(Value value) {
+        JsonObject expected = new JsonObject();
+        expected.put("timestamp", TIME);
+        expected.put("path", "/p");
+        expected.put("value", value == null ? null : toObject(value));
+
+        encoder.reset();
+        encoder.writeRaw(("{\"timestamp\":" + TIME + ",\"path\":\"/p\",\"value\":")
+                                 .getBytes(StandardCharsets.UTF_8));
+        encoder.writeObject(value);
+        encoder.writeByte('}');
+        assertEquals(String.valueOf(value), string(expected.encode()), encoded());
+    }
+
+    private static Object toObject(Value value) {
+        if (value.getNumber() != null) {
+            return value.getNumber();
+        } else if (value.getString() != null) {
+            return value.getString();
+        } else if (value.getBool() != null) {
+            return value.getBool();
+        } else if (value.getMap() != null) {
+            return value.getMap();
+        }
+        return value.getArray();
+    }
+
+    private String encoded() {
+        ByteBuffer buf = encoder.getBuffer();
+        byte[] bytes = Arrays.copyOf(buf.array(), buf.position());
+        return string(bytes);
+    }
+
+    private static String string(byte[] bytes) {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String isoTime(long ms) {
+        // ISO 8601 dates are proleptic Gregorian
+        GregorianCalendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+        calendar.setGregorianChange(new Date(Long.MIN_VALUE));
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setCalendar(calendar);
+        return format.format(new Date(ms));
+    }
+}
@@ -0,0 +1,128 @@
+package org.dsa.iot.splunk.splunk;
+
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.splunk.utils.OverflowPolicy;
+import org.dsa.iot.splunk.utils.PathValuePair;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Samuel Grenier
+ */
+public class EventQueueTest {
+
+    @Test
+    public void dropsOldest() {
+        EventQueue queue = new EventQueue(3, OverflowPolicy.DROP_OLDEST);
+        for (int i = 0; i < 5; ++i) {
+            assertTrue(queue.offer(pair("/a", i)));
+        }
+        assertEquals(2, queue.getDropped());
+        assertEquals(Arrays.asList(2L, 3L, 4L), drain(queue));
+    }
+
+    @Test
+    public void dropsNewest() {
+        EventQueue queue = new EventQueue(3, OverflowPolicy.DROP_NEWEST);
+        for (int i = 0; i < 5; ++i) {
+            assertEquals(i < 3, queue.offer(pair("/a", i)));
+        }
+        assertEquals(2, queue.getDropped());
+        assertEquals(Arrays.asList(0L, 1L, 2L), drain(queue));
+    }
+
+    @Test
+    public void replacesLatestOfPath() {
+        EventQueue queue = new EventQueue(3, OverflowPolicy.LATEST_PER_PATH);
+        queue.offer(pair("/a", 0));
+        queue.offer(pair("/b", 1));
+        queue.offer(pair("/a", 2));
+        // Replaces the queued value of /b in place
+        assertTrue(queue.offer(pair("/b", 3)));
+        assertEquals(3, queue.size());
+        // The latest of /a is replaced, the head is never replaced
+        assertTrue(queue.offer(pair("/a", 4)));
+        // Nothing of /c is queued, the head is dropped instead
+        assertTrue(queue.offer(pair("/c", 5)));
+        assertEquals(3, queue.getDropped());
+        assertEquals(Arrays.asList(3L, 4L, 5L), drain(queue));
+    }
+
+    @Test
+    public void keepsHeadThatIsBeingRead() {
+        EventQueue queue = new EventQueue(2, OverflowPolicy.DROP_OLDEST);
+        queue.offer(pair("/a", 0));
+        queue.offer(pair("/a", 1));
+        PathValuePair head = queue.peek();
+        queue.offer(pair("/a", 2));
+
+        // The peeked head was dropped, removing it must not remove another
+        queue.remove(head);
+        assertEquals(2, queue.size());
+        assertEquals(Arrays.asList(1L, 2L), drain(queue));
+    }
+
+    @Test
+    public void requeuesAtHead() {
+        EventQueue queue = new EventQueue(4, OverflowPolicy.DROP_OLDEST);
+        queue.offer(pair("/a", 3));
+        queue.offer(pair("/a", 4));
+        List<PathValuePair> failed = Arrays.asList(pair("/a", 0), pair("/a", 1), pair("/a", 2));
+        queue.requeue(failed);
+
+        // Only the newest of the failed events fit back in
+        assertEquals(1, queue.getDropped());
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L), drain(queue));
+    }
+
+    @Test
+    public void shrinksByDroppingOldest() {
+        EventQueue queue = new EventQueue(4, OverflowPolicy.LATEST_PER_PATH);
+        for (int i = 0; i < 4; ++i) {
+            queue.offer(pair("/" + i, i));
+        }
+        queue.setCapacity(2);
+        assertEquals(2, queue.getCapacity());
+        assertEquals(2, queue.getDropped());
+
+        // The index of latest values still points at the right slots
+        assertTrue(queue.offer(pair("/3", 5)));
+        assertEquals(Arrays.asList(2L, 5L), drain(queue));
+        assertTrue(queue.isEmpty());
+        assertNull(queue.peek());
+    }
+
+    @Test
+    public void growsKeepingOrder() {
+        EventQueue queue = new EventQueue(2, OverflowPolicy.DROP_NEWEST);
+        queue.offer(pair("/a", 0));
+        queue.offer(pair("/a", 1));
+        queue.setCapacity(4);
+        assertTrue(queue.offer(pair("/a", 2)));
+        assertTrue(queue.offer(pair("/a", 3)));
+        assertFalse(queue.offer(pair("/a", 4)));
+        assertEquals(Arrays.asList(0L, 1L, 2L, 3L), drain(queue));
+    }
+
+    private static List<Long> drain(EventQueue queue) {
+        List<Long> times = new ArrayList<>();
+        PathValuePair pair;
+        while ((pair = queue.peek()) != null) {
+            queue.remove(pair);
+            times.add(pair.getTime());
+        }
+        return times;
+    }
+
+    private static PathValuePair pair(String path, long time) {
+        return new PathValuePair(null, path, new Value(time), time);
+    }
+}
@@ -0,0 +1,132 @@
+package org.dsa.iot.splunk.splunk;
+
+import org.dsa.iot.dslink.node.value.Value;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * @author Samuel Grenier
+ */
+public class QueryCacheTest {
+
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    public void alignsToBuckets() {
+        assertEquals(1000, QueryCache.alignFrom(1999, 1000));
+        assertEquals(1999, QueryCache.alignTo(1000, 1000));
+        assertEquals(-1000, QueryCache.alignFrom(-1, 1000));
+        assertEquals(-1, QueryCache.alignTo(-1000, 1000));
+        assertEquals(0, QueryCache.alignFrom(0, 1000));
+    }
+
+    @Test
+    public void scalesBucketsToRange() {
+        assertEquals(1000, QueryCache.bucketOf(0));
+        assertEquals(1000, QueryCache.bucketOf(TimeUnit.SECONDS.toMillis(60)));
+        assertEquals(TimeUnit.MINUTES.toMillis(1), QueryCache.bucketOf(TimeUnit.HOURS.toMillis(1)));
+        assertEquals(TimeUnit.MINUTES.toMillis(15), QueryCache.bucketOf(TimeUnit.HOURS.toMillis(12)));
+        assertEquals(TimeUnit.HOURS.toMillis(1), QueryCache.bucketOf(TimeUnit.DAYS.toMillis(1)));
+        assertEquals(TimeUnit.DAYS.toMillis(1), QueryCache.bucketOf(TimeUnit.DAYS.toMillis(365)));
+    }
+
+    @Test
+    public void cachesPutEntries() {
+        QueryCache cache = new QueryCache(MB, 0);
+        assertNull(cache.get("/a", "none", "none", 0, 999));
+        QueryCache.Entry entry = cache.create("/a", "none", "none", 0, 999);
+        entry.add(1, new Value(1));
+        entry.add(2, new Value(2));
+        // Not cached until it is put
+        assertNull(cache.get("/a", "none", "none", 0, 999));
+
+        cache.put(entry, null);
+        assertSame(entry, cache.get("/a", "none", "none", 0, 999));
+        assertNull(cache.get("/a", "1m", "avg", 0, 999));
+        assertEquals(1, cache.getHits());
+        assertEquals(3, cache.getMisses());
+        assertEquals(Arrays.asList(1L, 2L), times(entry));
+    }
+
+    @Test
+    public void extendsEntriesWithWrites() {
+        QueryCache cache = new QueryCache(MB, 0);
+        QueryCache.Entry entry = cache.create("/a", "none", "none", 0, 999);
+        entry.add(1, new Value(1));
+        cache.put(entry, null);
+
+        cache.written("/a", 5, new Value(5));
+        // Older than the entry or outside of its range
+        cache.written("/a", 3, new Value(3));
+        cache.written("/a", 1000, new Value(1000));
+        cache.written("/b", 6, new Value(6));
+        assertEquals(Arrays.asList(1L, 5L), times(entry));
+    }
+
+    @Test
+    public void invalidatesRolledEntriesOnWrites() {
+        QueryCache cache = new QueryCache(MB, 0);
+        QueryCache.Entry entry = cache.create("/a", "1m", "avg", 0, 59999);
+        entry.setRolled();
+        entry.add(0, new Value(1));
+        cache.put(entry, null);
+
+        cache.written("/a", 60000, new Value(1));
+        assertNotNull(cache.get("/a", "1m", "avg", 0, 59999));
+        cache.written("/a", 30000, new Value(1));
+        assertNull(cache.get("/a", "1m", "avg", 0, 59999));
+        assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        QueryCache cache = new QueryCache(1024, 0);
+        QueryCache.Entry a = fill(cache.create("/a", "none", "none", 0, 999), 5);
+        QueryCache.Entry b = fill(cache.create("/b", "none", "none", 0, 999), 5);
+        cache.put(a, null);
+        cache.put(b, null);
+        assertNotNull(cache.get("/a", "none", "none", 0, 999));
+
+        QueryCache.Entry c = fill(cache.create("/c", "none", "none", 0, 999), 5);
+        cache.put(c, null);
+        assertNull(cache.get("/b", "none", "none", 0, 999));
+        assertNotNull(cache.get("/a", "none", "none", 0, 999));
+        assertNotNull(cache.get("/c", "none", "none", 0, 999));
+    }
+
+    @Test
+    public void skipsEntriesOverBudget() {
+        QueryCache cache = new QueryCache(1024, 0);
+        QueryCache.Entry entry = fill(cache.create("/a", "none", "none", 0, 999), 100);
+        cache.put(entry, null);
+        assertNull(cache.get("/a", "none", "none", 0, 999));
+        assertEquals(0, cache.getBytes());
+    }
+
+    private static QueryCache.Entry fill(QueryCache.Entry entry, int count) {
+        for (int i = 0; i < count; ++i) {
+            entry.add(i, new Value(i));
+        }
+        return entry;
+    }
+
+    private static List<Long> times(QueryCache.Entry entry) {
+        final List<Long> times = new ArrayList<>();
+        entry.read(new HistoryVisitor() {
+            @Override
+            public void handle(long time, Value value) {
+                times.add(time);
+            }
+        });
+        return times;
+    }
+}
@@ -0,0 +1,106 @@
+package org.dsa.iot.splunk.splunk;
+
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.splunk.utils.PathValuePair;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Samuel Grenier
+ */
+public class SwingingDoorTest {
+
+    private final SwingingDoor door = new SwingingDoor();
+    private final List<PathValuePair> out = new ArrayList<>();
+
+    @Test
+    public void holdsPointsOnALine() {
+        PathValuePair first = pair(0, 0);
+        door.update(first, 0.5, out);
+        PathValuePair last = null;
+        for (int i = 1; i <= 10; ++i) {
+            last = pair(i * 1000, i);
+            door.update(last, 0.5, out);
+        }
+        assertEquals(1, out.size());
+        assertSame(first, out.get(0));
+        assertTrue(door.isHolding());
+
+        door.release(out);
+        assertEquals(2, out.size());
+        assertSame(last, out.get(1));
+        assertFalse(door.isHolding());
+    }
+
+    @Test
+    public void writesHeldPointOnAStep() {
+        door.update(pair(0, 0), 0.5, out);
+        PathValuePair held = pair(1000, 0);
+        door.update(held, 0.5, out);
+        PathValuePair step = pair(2000, 10);
+        door.update(step, 0.5, out);
+
+        // The step is covered by a new door starting at the held point
+        assertEquals(2, out.size());
+        assertSame(held, out.get(1));
+        assertTrue(door.isHolding());
+    }
+
+    @Test
+    public void writesValuesThatCantBeInterpolated() {
+        door.update(pair(0, 0), 0.5, out);
+        door.update(pair(1000, 0.1), 0.5, out);
+        PathValuePair text = new PathValuePair(null, "/a", new Value("on"), 2000);
+        door.update(text, 0.5, out);
+        assertEquals(3, out.size());
+        assertSame(text, out.get(2));
+
+        PathValuePair same = pair(2000, 1);
+        door.update(same, 0.5, out);
+        assertSame(same, out.get(3));
+        assertFalse(door.isHolding());
+    }
+
+    @Test
+    public void reconstructsWithinTolerance() {
+        Random random = new Random(42);
+        double tolerance = 0.25;
+        List<PathValuePair> in = new ArrayList<>();
+        double v = 0;
+        for (int i = 0; i < 10000; ++i) {
+            v += random.nextGaussian() * 0.1;
+            PathValuePair p = pair(i * 100L + random.nextInt(50), v);
+            in.add(p);
+            door.update(p, tolerance, out);
+        }
+        door.release(out);
+        assertTrue("Compressed " + out.size(), out.size() < in.size() / 2);
+
+        int segment = 0;
+        for (PathValuePair p : in) {
+            while (out.get(segment + 1).getTime() < p.getTime()) {
+                segment++;
+            }
+            PathValuePair a = out.get(segment);
+            PathValuePair b = out.get(segment + 1);
+            double va = a.getValue().getNumber().doubleValue();
+            double vb = b.getValue().getNumber().doubleValue();
+            double t = (double) (p.getTime() - a.getTime()) / (b.getTime() - a.getTime());
+            double expected = va + (vb - va) * t;
+            double actual = p.getValue().getNumber().doubleValue();
+            assertEquals(expected, actual, tolerance + 1e-9);
+        }
+    }
+
+    private static PathValuePair pair(long time, double value) {
+        return new PathValuePair(null, "/a", new Value(value), time);
+    }
+}
@@ -0,0 +1,119 @@
+package org.dsa.iot.splunk.utils;
+
+import org.dsa.iot.dslink.util.handler.Handler;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Samuel Grenier
+ */
+public class RingBufferTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void requiresPowerOfTwo() {
+        new RingBuffer<Integer>(12);
+    }
+
+    @Test
+    public void rejectsOffersWhenFull() {
+        RingBuffer<Integer> ring = new RingBuffer<>(4);
+        assertTrue(ring.isEmpty());
+        for (int i = 0; i < 4; ++i) {
+            assertTrue(ring.offer(i));
+        }
+        assertFalse(ring.offer(4));
+        assertEquals(4, ring.size());
+
+        List<Integer> out = new ArrayList<>();
+        assertEquals(1, ring.drain(collect(out), 1));
+        assertTrue(ring.offer(4));
+        assertFalse(ring.offer(5));
+    }
+
+    @Test
+    public void drainsInOrderAcrossWraps() {
+        RingBuffer<Integer> ring = new RingBuffer<>(8);
+        List<Integer> out = new ArrayList<>();
+        int next = 0;
+        for (int round = 0; round < 10; ++round) {
+            for (int i = 0; i < 5; ++i) {
+                assertTrue(ring.offer(next++));
+            }
+            assertEquals(3, ring.drain(collect(out), 3));
+            assertEquals(2, ring.drain(collect(out), 100));
+            assertTrue(ring.isEmpty());
+        }
+        for (int i = 0; i < next; ++i) {
+            assertEquals(i, (int) out.get(i));
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void keepsOrderOfEachProducer() throws Exception {
+        final int producers = 4;
+        final int items = 100000;
+        final RingBuffer<long[]> ring = new RingBuffer<>(64);
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; ++p) {
+            final int producer = p;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < items; ++i) {
+                        long[] item = {producer, i};
+                        while (!ring.offer(item)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+            threads[p].start();
+        }
+
+        final int[] expected = new int[producers];
+        final int[] received = new int[1];
+        Handler<long[]> handler = new Handler<long[]>() {
+            @Override
+            public void handle(long[] item) {
+                int producer = (int) item[0];
+                assertEquals(expected[producer]++, item[1]);
+                received[0]++;
+            }
+        };
+        start.countDown();
+        while (received[0] < producers * items) {
+            if (ring.drain(handler, 16) == 0) {
+                Thread.yield();
+            }
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertTrue(ring.isEmpty());
+        for (int count : expected) {
+            assertEquals(items, count);
+        }
+    }
+
+    private static Handler<Integer> collect(final List<Integer> out) {
+        return new Handler<Integer>() {
+            @Override
+            public void handle(Integer item) {
+                out.add(item);
+            }
+        };
+    }
+}
@@ -0,0 +1,22 @@
+package org.dsa.iot.splunk.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Samuel Grenier
+ */
+public class SearchUtilsTest {
+
+    @Test
+    public void quotesPlainValues() {
+        assertEquals("\"/downstream/a\"", SearchUtils.quote("/downstream/a"));
+    }
+
+    @Test
+    public void escapesQuotesAndBackslashes() {
+        assertEquals("\"/a \\\"b\\\" c\\\\d\"", SearchUtils.quote("/a \"b\" c\\d"));
+        assertEquals("\"\\\\\\\"\"", SearchUtils.quote("\\\""));
+    }
+}